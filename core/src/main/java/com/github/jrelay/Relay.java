@@ -5,12 +5,15 @@ import com.github.jrelay.dummy.RelayDummyDriver;
 import com.github.jrelay.task.RelayCloseTask;
 import com.github.jrelay.task.RelayDisposeTask;
 import com.github.jrelay.task.RelayOpenTask;
+import com.github.jrelay.task.RelayPulseTask;
+import com.github.jrelay.task.RelayToggleTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by nightingale on 24.04.16.
@@ -59,14 +62,32 @@ public class Relay {
     private static boolean autoOpen = false;
 
     /**
-     * Relay listeners.
+     * Empty listeners array.
      */
-    private List<RelayListener> listeners = new CopyOnWriteArrayList<RelayListener>();
+    private static final RelayListener[] NO_LISTENERS = new RelayListener[0];
 
     /**
-     * Shutdown hook.
+     * Relay listeners. Array is replaced whenever listener is added or removed, so it can be
+     * iterated without lock and without allocating an iterator.
      */
-    private RelayShutdownHook hook = null;
+    private volatile RelayListener[] listeners = NO_LISTENERS;
+
+    /**
+     * Lock guarding listeners array modifications and lazy creation of the relay lock and
+     * mailbox.
+     */
+    private final Object listenersLock = new Object();
+
+
+    /**
+     * Open task reused by the blocking open, null when it's currently in use.
+     */
+    private final AtomicReference<RelayOpenTask> openTask = new AtomicReference<RelayOpenTask>();
+
+    /**
+     * Close task reused by the blocking close, null when it's currently in use.
+     */
+    private final AtomicReference<RelayCloseTask> closeTask = new AtomicReference<RelayCloseTask>();
 
     /**
      * Is relay open?
@@ -86,29 +107,30 @@ public class Relay {
     /**
      * Underlying relay device.
      */
-    private RelayDevice device = new RelayDummyDevice(Integer.MIN_VALUE);
+    private final RelayDevice device;
 
     /**
      * Lock which denies access to the given relay when it's already in use by other
-     * API process or thread.
+     * API process or thread. It's created when relay is open for the first time, so relays
+     * which are only discovered stay lightweight.
      */
-    private RelayLock lock = null;
+    private volatile RelayLock lock = null;
 
     /**
-     * Executor service for notifications.
+     * Mailbox of events waiting to be delivered to the listeners. It's created when the first
+     * listener is added, events are never posted to relay without listeners.
      */
-    private ExecutorService notificator = null;
+    private volatile RelayEventDispatcher.Mailbox mailbox = null;
 
-    private final class NotificationThreadFactory implements ThreadFactory {
+    /**
+     * Relay handle, -1 until relay has been discovered.
+     */
+    private volatile int handle = -1;
 
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new Thread(r, String.format("notificator-[%s]", getName()));
-            t.setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
-            t.setDaemon(true);
-            return t;
-        }
-    }
+    /**
+     * Board of the physical device this relay belongs to, null if relay is not part of any board.
+     */
+    private volatile RelayBoard board = null;
 
     /**
      * Relay class.
@@ -121,7 +143,6 @@ public class Relay {
             throw new IllegalArgumentException("Relay device cannot be null");
         }
         this.device = device;
-        this.lock = new RelayLock(this);
     }
 
     /**
@@ -138,73 +159,147 @@ public class Relay {
 
     /**
      * Open the relay in either blocking (synchronous) or non-blocking
-     * (asynchronous) mode.
+     * (asynchronous) mode. In non-blocking mode this method returns immediately and the relay is
+     * open in background.
      * @param async true for non-blocking mode, false for blocking
      *
-     * @return True if relay has been open
+     * @return True if relay has been open (or opening has been started in non-blocking mode)
      * @throws RelayException when something went wrong
+     * @see #openAsync()
      */
     public boolean open(boolean async) {
 
-        if (open.compareAndSet(false, true)) {
-            assert lock != null;
-
-            notificator = Executors.newSingleThreadExecutor(new NotificationThreadFactory());
+        if (async) {
+            openAsync();
+            return true;
+        }
 
+        if (open.compareAndSet(false, true)) {
             // lock relay for other Java (only) processes
 
-            lock.lock();
+            try {
+                acquireLock();
+            } catch (RelayException e) {
+                open.set(false);
+                throw e;
+            }
 
             // open relay device
-            RelayOpenTask task = new RelayOpenTask(driver, device);
+            RelayOpenTask task = openTask.getAndSet(null);
+            if (task == null) {
+                task = new RelayOpenTask(driver, device);
+            }
+            fence(task);
             try {
                 task.open();
             } catch (InterruptedException e) {
-                lock.unlock();
                 open.set(false);
+                releaseLock();
                 LOG.debug("Thread has been interrupted in the middle of relay opening process!", e);
                 return false;
             } catch (RelayException e) {
-                lock.unlock();
                 open.set(false);
+                releaseLock();
                 LOG.debug("Relay exception when opening", e);
                 throw e;
             }
 
-            LOG.debug("Relay is now open {}", getName());
+            recycle(openTask, task);
 
-            // install shutdown hook
-            try {
-                Runtime.getRuntime().addShutdownHook(hook = new RelayShutdownHook(this));
-            } catch (IllegalStateException e) {
+            return opened();
 
-                LOG.debug("Shutdown in progress, do not open device");
-                LOG.trace(e.getMessage(), e);
+        } else {
+            LOG.debug("Relay is already open {}", getName());
+        }
 
-                close();
+        return true;
+    }
 
-                return false;
-            }
+    /**
+     * Open the relay in non-blocking (asynchronous) mode. This method never waits for the
+     * device, it returns immediately and the returned future is completed when relay has been
+     * open. Future callbacks are invoked by the processor thread and should not block.
+     *
+     * @return Future completed with true if relay has been open, false otherwise
+     * @see #open()
+     */
+    public RelayFuture<Boolean> openAsync() {
 
+        if (!open.compareAndSet(false, true)) {
+            LOG.debug("Relay is already open {}", getName());
+            return RelayFuture.completed(true);
+        }
 
-            // notify listeners
-            RelayEvent we = new RelayEvent(RelayEventType.OPEN, this);
-            Iterator<RelayListener> wli = listeners.iterator();
-            RelayListener l = null;
+        // lock relay for other Java (only) processes
 
-            while (wli.hasNext()) {
-                l = wli.next();
+        try {
+            acquireLock();
+        } catch (RelayException e) {
+            open.set(false);
+            return RelayFuture.failed(e);
+        }
+
+        // open relay device in background
+
+        final RelayFuture<Boolean> result = new RelayFuture<Boolean>();
+
+        fence(new RelayOpenTask(driver, device)).openAsync().addCallback(new RelayFuture.Callback<Void>() {
+
+            @Override
+            public void completed(Void nothing) {
                 try {
-                    l.relayOpen(we);
-                } catch (Exception e) {
-                    LOG.error(String.format("Notify relay open, exception when calling listener %s", l.getClass()), e);
+                    result.complete(opened());
+                } catch (RuntimeException e) {
+                    result.fail(e);
                 }
             }
 
-        } else {
-            LOG.debug("Relay is already open {}", getName());
+            @Override
+            public void failed(Throwable t) {
+                open.set(false);
+                releaseLock();
+                LOG.debug("Relay exception when opening", t);
+                result.fail(t);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Finish relay opening after device has been open.
+     *
+     * @return True if relay has been open, false otherwise
+     */
+    private boolean opened() {
+
+        LOG.debug("Relay is now open {}", getName());
+
+        // register relay to be disposed on JVM exit, it's only done once
+
+        RelayShutdownCoordinator coordinator = RelayShutdownCoordinator.getInstance();
+        coordinator.register(this);
+
+        if (coordinator.isShuttingDown()) {
+
+            LOG.debug("Shutdown in progress, do not open device");
+
+            close();
+
+            return false;
+        }
+
+        // channel is known to be open, there is no need to read it back
+
+        if (device instanceof RelayDevice.StateReadable) {
+            RelayStateCache.getInstance().update(device, true);
         }
 
+        RelayStateJournal.getInstance().record(getName(), true);
+
+        // notify listeners
+        postEvent(RelayEventType.OPEN);
+
         return true;
     }
 
@@ -214,15 +309,30 @@ public class Relay {
      * @return True if relay has been open, false otherwise
      */
     public boolean close() {
+        return close(RelayTask.Priority.NORMAL);
+    }
+
+    /**
+     * Close the relay with given priority. Use {@link RelayTask.Priority#CRITICAL} for safety
+     * related switching (e.g. emergency off), so it is not delayed by routine work pending for
+     * the same device.
+     *
+     * @param priority the close task priority
+     * @return True if relay has been open, false otherwise
+     */
+    public boolean close(RelayTask.Priority priority) {
 
         if (open.compareAndSet(true, false)) {
 
             LOG.debug("Closing relay {}", getName());
 
-            assert lock != null;
-
             // close relay
-            RelayCloseTask task = new RelayCloseTask(driver, device);
+            RelayCloseTask task = closeTask.getAndSet(null);
+            if (task == null) {
+                task = new RelayCloseTask(driver, device);
+            }
+            fence(task);
+            task.setPriority(priority);
             try {
                 task.close();
             } catch (InterruptedException e) {
@@ -234,43 +344,358 @@ public class Relay {
                 throw e;
             }
 
+            recycle(closeTask, task);
 
-            // remove shutdown hook (it's not more necessary)
-            removeShutdownHook();
+            return closed();
 
-            // unlock relay so other Java processes can start using it
-            lock.unlock();
+        } else {
+            LOG.debug("Relay {} is already closed", getName());
+        }
 
-            // notify listeners
+        return true;
+    }
 
-            RelayEvent we = new RelayEvent(RelayEventType.CLOSED, this);
-            Iterator<RelayListener> wli = listeners.iterator();
-            RelayListener l = null;
+    /**
+     * Close the relay in non-blocking (asynchronous) mode. This method never waits for the
+     * device, it returns immediately and the returned future is completed when relay has been
+     * closed. Future callbacks are invoked by the processor thread and should not block.
+     *
+     * @return Future completed with true if relay has been closed, false otherwise
+     * @see #close()
+     */
+    public RelayFuture<Boolean> closeAsync() {
+        return closeAsync(RelayTask.Priority.NORMAL);
+    }
 
-            while (wli.hasNext()) {
-                l = wli.next();
+    /**
+     * Close the relay with given priority in non-blocking (asynchronous) mode.
+     *
+     * @param priority the close task priority
+     * @return Future completed with true if relay has been closed, false otherwise
+     * @see #close(RelayTask.Priority)
+     */
+    public RelayFuture<Boolean> closeAsync(RelayTask.Priority priority) {
+
+        if (!open.compareAndSet(true, false)) {
+            LOG.debug("Relay {} is already closed", getName());
+            return RelayFuture.completed(true);
+        }
+
+        LOG.debug("Closing relay {}", getName());
+
+        // close relay device in background
+
+        final RelayFuture<Boolean> result = new RelayFuture<Boolean>();
+
+        RelayCloseTask task = fence(new RelayCloseTask(driver, device));
+        task.setPriority(priority);
+        task.closeAsync().addCallback(new RelayFuture.Callback<Void>() {
+
+            @Override
+            public void completed(Void nothing) {
                 try {
-                    l.relayClosed(we);
-                } catch (Exception e) {
-                    LOG.error(String.format("Notify relay closed, exception when calling %s listener", l.getClass()), e);
+                    result.complete(closed());
+                } catch (RuntimeException e) {
+                    result.fail(e);
                 }
             }
 
-            notificator.shutdown();
-            while (!notificator.isTerminated()) {
+            @Override
+            public void failed(Throwable t) {
+                open.set(true);
+                LOG.debug("Relay exception when closing", t);
+                result.fail(t);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Flip the relay, open it if it's closed and close it if it's open, as single operation. No
+     * other command of the same device can interleave, and when device supports it (see
+     * {@link RelayDevice.Toggleable}) it's flipped with single request. Relay state is taken from
+     * the device after toggle, so it's correct even if device has been switched manually.
+     *
+     * @return True if relay is open after toggle, false if it is closed
+     * @throws RelayException when something went wrong
+     */
+    public boolean toggle() {
+
+        try {
+            return toggleAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RelayException(String.format("Interrupted while toggling %s", getName()), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RelayException) {
+                throw (RelayException) e.getCause();
+            }
+            throw new RelayException("Cannot execute task", e.getCause());
+        }
+    }
+
+    /**
+     * Flip the relay in non-blocking (asynchronous) mode. This method never waits for the device.
+     * Future callbacks are invoked by the processor thread and should not block.
+     *
+     * @return Future completed with true if relay is open after toggle, false if it is closed
+     * @see #toggle()
+     */
+    public RelayFuture<Boolean> toggleAsync() {
+
+        // relay which is closed is going to be open by the toggle, so lock it for other Java
+        // processes, relay which is open is only closed and, just like when it's closed
+        // explicitly, the lock is not touched before the device has been switched
+
+        if (!open.get()) {
+            try {
+                acquireLock();
+            } catch (RelayException e) {
+                return RelayFuture.failed(e);
+            }
+        }
+
+        final RelayFuture<Boolean> result = new RelayFuture<Boolean>();
+        final RelayToggleTask task = fence(new RelayToggleTask(driver, device));
+
+        // callback is invoked by the device lane before next task of the device is processed,
+        // so relay state is updated in the same order the device has been toggled
+
+        task.toggleAsync().addCallback(new RelayFuture.Callback<Void>() {
+
+            @Override
+            public void completed(Void nothing) {
                 try {
-                    notificator.awaitTermination(100, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    return false;
+                    result.complete(toggled(task.getState()));
+                } catch (RuntimeException e) {
+                    result.fail(e);
                 }
             }
 
-            LOG.debug("Relay {} has been closed", getName());
+            @Override
+            public void failed(Throwable t) {
+                releaseLock();
+                LOG.debug("Relay exception when toggling", t);
+                result.fail(t);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Update relay state after device has been toggled.
+     *
+     * @param state the device state after toggle
+     * @return The relay state
+     */
+    private boolean toggled(boolean state) {
 
+        if (state) {
+            if (open.compareAndSet(false, true)) {
+                return opened();
+            }
         } else {
-            LOG.debug("Relay {} is already closed", getName());
+            if (open.compareAndSet(true, false)) {
+                return !closed();
+            }
+            releaseLock();
         }
 
+        // relay state did not change, but device has been switched manually
+
+        if (device instanceof RelayDevice.StateReadable) {
+            RelayStateCache.getInstance().update(device, state);
+        }
+
+        return state;
+    }
+
+    /**
+     * Close the relay after given delay. This method returns immediately, no thread is waiting
+     * for the delay to elapse, the close is scheduled in the shared {@link RelayTimer}.
+     *
+     * @param delay the delay
+     * @param unit the time unit
+     * @return Future completed with true when relay has been closed
+     * @throws IllegalArgumentException when delay is negative or unit is null
+     */
+    public RelayFuture<Boolean> closeAfter(long delay, TimeUnit unit) {
+
+        if (delay < 0) {
+            throw new IllegalArgumentException(String.format("Delay cannot be negative (%d)", delay));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+
+        RelayFuture<Boolean> result = new RelayFuture<Boolean>();
+        scheduleClose(delay, unit, result);
+
+        return result;
+    }
+
+    /**
+     * Open the relay in blocking mode and close it after given time. Relay which is already open
+     * is only closed after given time.
+     *
+     * @param duration the time relay stays open
+     * @param unit the time unit
+     * @return Future completed with true when relay has been closed, or with false if it could not
+     *         be open
+     * @throws IllegalArgumentException when duration is negative or unit is null
+     * @throws RelayException when something went wrong
+     * @see #closeAfter(long, TimeUnit)
+     */
+    public RelayFuture<Boolean> openFor(long duration, TimeUnit unit) {
+
+        if (duration < 0) {
+            throw new IllegalArgumentException(String.format("Duration cannot be negative (%d)", duration));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+
+        if (!open()) {
+            return RelayFuture.completed(false);
+        }
+
+        return closeAfter(duration, unit);
+    }
+
+    /**
+     * Open the relay for given time. This method returns immediately. When device supports
+     * momentary switching with the same duration (see {@link RelayDevice.Pulsable}), pulse is
+     * timed by the hardware, otherwise relay is open and then closed by the shared
+     * {@link RelayTimer}. Relay which is already open is only closed after given time. In both
+     * cases relay is reported as open and listeners are notified just as if it was switched
+     * manually.
+     *
+     * @param duration the pulse duration
+     * @param unit the time unit
+     * @return Future completed with true when pulse has finished, or with false if relay could
+     *         not be open
+     * @throws IllegalArgumentException when duration is negative or unit is null
+     */
+    public RelayFuture<Boolean> pulse(final long duration, final TimeUnit unit) {
+
+        if (duration < 0) {
+            throw new IllegalArgumentException(String.format("Duration cannot be negative (%d)", duration));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+
+        final RelayFuture<Boolean> result = new RelayFuture<Boolean>();
+
+        if (device instanceof RelayDevice.Pulsable) {
+            final long hardware = ((RelayDevice.Pulsable) device).getPulseDuration(TimeUnit.MILLISECONDS);
+            if (hardware > 0 && hardware == unit.toMillis(duration) && beginOpen()) {
+
+                // device closes by itself, relay is still closed by the close task scheduled
+                // when the hardware pulse ends, but the task finds device closed (pulse does not
+                // change its state) and sends nothing to it, so relay only releases the lock,
+                // updates the state and notifies listeners
+
+                final RelayPulseTask task = fence(new RelayPulseTask(driver, device));
+                task.pulseAsync().addCallback(new RelayFuture.Callback<Void>() {
+
+                    @Override
+                    public void completed(Void nothing) {
+                        try {
+                            if (opened()) {
+                                long end = task.getStarted() + TimeUnit.MILLISECONDS.toNanos(hardware);
+                                scheduleClose(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS, result);
+                            } else {
+                                result.complete(false);
+                            }
+                        } catch (RuntimeException e) {
+                            result.fail(e);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        abortOpen();
+                        LOG.debug("Relay exception when pulsing", t);
+                        result.fail(t);
+                    }
+                });
+
+                return result;
+            }
+        }
+
+        openAsync().addCallback(new RelayFuture.Callback<Boolean>() {
+
+            @Override
+            public void completed(Boolean open) {
+                if (open) {
+                    scheduleClose(duration, unit, result);
+                } else {
+                    result.complete(false);
+                }
+            }
+
+            @Override
+            public void failed(Throwable t) {
+                result.fail(t);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Schedule asynchronous close, timer thread only submits close task to the processor.
+     *
+     * @param delay the delay
+     * @param unit the time unit
+     * @param result the future to be completed when relay has been closed
+     */
+    private void scheduleClose(long delay, TimeUnit unit, final RelayFuture<Boolean> result) {
+        RelayTimer.getInstance().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                closeAsync().addCallback(new RelayFuture.Callback<Boolean>() {
+
+                    @Override
+                    public void completed(Boolean closed) {
+                        result.complete(closed);
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        result.fail(t);
+                    }
+                });
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Finish relay closing after device has been closed.
+     *
+     * @return True if relay has been closed, false otherwise
+     */
+    private boolean closed() {
+
+        // unlock relay so other Java processes can start using it
+        releaseLock();
+
+        if (device instanceof RelayDevice.StateReadable) {
+            RelayStateCache.getInstance().update(device, false);
+        }
+
+        RelayStateJournal.getInstance().record(getName(), false);
+
+        // notify listeners
+        postEvent(RelayEventType.CLOSED);
+
+        LOG.debug("Relay {} has been closed", getName());
+
         return true;
     }
 
@@ -294,7 +719,7 @@ public class Relay {
 
         LOG.info("Disposing relay {}", getName());
 
-        RelayDisposeTask task = new RelayDisposeTask(driver, device);
+        RelayDisposeTask task = fence(new RelayDisposeTask(driver, device));
         try {
             task.dispose();
         } catch (InterruptedException e) {
@@ -302,39 +727,291 @@ public class Relay {
             return;
         }
 
-        RelayEvent we = new RelayEvent(RelayEventType.DISPOSED, this);
-        Iterator<RelayListener> wli = listeners.iterator();
+        disposed();
+    }
+
+    /**
+     * Completely dispose capture device in non-blocking (asynchronous) mode. After this operation
+     * relay cannot be used any more and full reinstantiation is required.
+     *
+     * @return Future completed when relay has been disposed
+     * @see #dispose()
+     */
+    protected RelayFuture<Void> disposeAsync() {
+
+        if (!disposed.compareAndSet(false, true)) {
+            return RelayFuture.completed(null);
+        }
+
+        open.set(false);
+
+        LOG.info("Disposing relay {}", getName());
+
+        final RelayFuture<Void> result = new RelayFuture<Void>();
+
+        fence(new RelayDisposeTask(driver, device)).disposeAsync().addCallback(new RelayFuture.Callback<Void>() {
+
+            @Override
+            public void completed(Void nothing) {
+                disposed();
+                result.complete(null);
+            }
+
+            @Override
+            public void failed(Throwable t) {
+                LOG.error("Relay exception when disposing", t);
+                result.fail(t);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Finish relay disposal after device has been disposed.
+     */
+    private void disposed() {
+
+        // relay disposed while open (e.g. device has been unplugged) would keep the lock and its
+        // successor of the same name could not be open anymore
+
+        releaseLock();
+
+        postEvent(RelayEventType.DISPOSED);
+
+        RelayShutdownCoordinator.getInstance().unregister(this);
+
+        LOG.debug("relay disposed {}", getName());
+    }
+
+    /**
+     * Give task which has been successfully processed back, so it can be reused by the next
+     * blocking operation. Task which failed is never reused, because it may still be stuck in the
+     * device. Neither is task which has been completed without being processed (e.g. superseded
+     * by other task), the next operation allocates new one instead.
+     *
+     * @param pool the reference holding reusable task
+     * @param task the task to be reused
+     * @param <T> the task type
+     */
+    private static <T extends RelayTask> void recycle(AtomicReference<T> pool, T task) {
+        if (task.isReusable()) {
+            task.reset();
+            pool.set(task);
+        }
+    }
+
+    /**
+     * Post relay event to the shared dispatcher and batcher, so listeners are never called by the
+     * thread switching the relay. Event is not even created when there are no listeners.
+     *
+     * @param type the relay event type
+     */
+    private void postEvent(RelayEventType type) {
+
+        RelayEventBatcher batcher = RelayEventBatcher.getInstance();
+        boolean notify = listeners.length > 0;
+        boolean batch = batcher.hasListeners();
+
+        if (!notify && !batch) {
+            return;
+        }
+
+        RelayEvent we = new RelayEvent(type, this);
+        if (notify) {
+            RelayEventDispatcher.getInstance().post(mailbox, we);
+        }
+        if (batch) {
+            batcher.post(we);
+        }
+    }
+
+    /**
+     * Deliver relay event to the listeners. This method is called by the dispatcher thread.
+     *
+     * @param we the relay event
+     */
+    void notifyListeners(RelayEvent we) {
+
+        RelayListener[] wls = listeners;
         RelayListener l = null;
 
-        while (wli.hasNext()) {
-            l = wli.next();
+        for (int i = 0; i < wls.length; i++) {
+            l = wls[i];
             try {
-                l.relayClosed(we);
-                l.relayDisposed(we);
+                switch (we.getType()) {
+                    case OPEN:
+                        l.relayOpen(we);
+                        break;
+                    case CLOSED:
+                        l.relayClosed(we);
+                        break;
+                    case DISPOSED:
+                        l.relayClosed(we);
+                        l.relayDisposed(we);
+                        break;
+                }
             } catch (Exception e) {
-                LOG.error(String.format("Notify relay disposed, exception when calling %s listener", l.getClass()), e);
+                LOG.error(String.format("Notify relay %s, exception when calling %s listener", we.getType(), l.getClass()), e);
             }
         }
+    }
 
-        removeShutdownHook();
+    /**
+     * Lock relay for other Java processes. Lock can still be held when relay is open again before
+     * pending close has been finished, and in such case it's simply retained.
+     */
+    private void acquireLock() {
+        RelayLock tmp = getLock();
+        synchronized (tmp) {
+            if (!tmp.isHeld()) {
+                tmp.lock();
+            }
+        }
+    }
 
-        LOG.debug("relay disposed {}", getName());
+    /**
+     * Fence the task with relay lock, so it is rejected if the lock is lost to other process
+     * before the task is handled.
+     *
+     * @param task the task to be fenced
+     * @return The same task
+     */
+    private <T extends RelayTask> T fence(T task) {
+        task.setFence(lock);
+        return task;
     }
 
-    private void removeShutdownHook() {
+    /**
+     * Unlock relay so other Java processes can start using it, unless relay has already been open
+     * again in the meantime.
+     */
+    private void releaseLock() {
 
-        // hook can be null because there is a possibility that relay has never
-        // been open and therefore hook was not created
+        // relay which has never been open has nothing to unlock
 
-        if (hook != null) {
-            try {
-                Runtime.getRuntime().removeShutdownHook(hook);
-            } catch (IllegalStateException e) {
-                LOG.trace("Shutdown in progress, cannot remove hook");
+        RelayLock tmp = lock;
+        if (tmp == null) {
+            return;
+        }
+
+        synchronized (tmp) {
+            if (!open.get()) {
+                tmp.unlock();
             }
         }
     }
 
+    /**
+     * Mark relay as being open by the board and lock it. Device is open by the board.
+     *
+     * @return True if relay has to be open, false if it's already open
+     * @see RelayBoard#applyMask(long, long)
+     */
+    boolean beginOpen() {
+        if (!open.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            acquireLock();
+        } catch (RelayException e) {
+            open.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Revert {@link #beginOpen()} when device could not be open.
+     */
+    void abortOpen() {
+        open.set(false);
+        releaseLock();
+    }
+
+    /**
+     * Finish relay opening after device has been open by the board.
+     *
+     * @return True if relay has been open, false otherwise
+     */
+    boolean finishOpen() {
+        return opened();
+    }
+
+    /**
+     * Mark relay as being closed by the board. Device is closed by the board.
+     *
+     * @return True if relay has to be closed, false if it's already closed
+     * @see RelayBoard#applyMask(long, long)
+     */
+    boolean beginClose() {
+        return open.compareAndSet(true, false);
+    }
+
+    /**
+     * Revert {@link #beginClose()} when device could not be closed.
+     */
+    void abortClose() {
+        open.set(true);
+    }
+
+    /**
+     * Finish relay closing after device has been closed by the board.
+     *
+     * @return True if relay has been closed, false otherwise
+     */
+    boolean finishClose() {
+        return closed();
+    }
+
+    /**
+     * Restore relay which has been open before restart, without switching the device. Relay is
+     * locked like it has been open, but no event is posted. Only devices which can adopt their
+     * state are restored. Lock left by process which crashed before restart is taken over, but
+     * where it cannot be told that the process is dead, relay is not restored until the lock
+     * lease expires.
+     *
+     * @return True if relay has been restored as open, false otherwise
+     * @see RelayStateJournal
+     */
+    boolean restore() {
+
+        if (!(device instanceof RelayDevice.Restorable)) {
+            return false;
+        }
+        if (!open.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            acquireLock();
+        } catch (RelayException e) {
+            LOG.debug("Relay {} is used by other process and cannot be restored", getName());
+            open.set(false);
+            return false;
+        }
+
+        ((RelayDevice.Restorable) device).restore(true);
+
+        RelayShutdownCoordinator.getInstance().register(this);
+
+        return true;
+    }
+
+    /**
+     * Close relay which has been restored as open, but the device turned out to be closed. Nothing
+     * is sent to the device.
+     *
+     * @see #restore()
+     */
+    void reconcileClosed() {
+        if (open.compareAndSet(true, false)) {
+            LOG.debug("Relay {} has been restored as open, but device is closed", getName());
+            ((RelayDevice.Restorable) device).restore(false);
+            closed();
+        }
+    }
+
     /**
      * Is relay open?
      *
@@ -344,6 +1021,52 @@ public class Relay {
         return open.get();
     }
 
+    /**
+     * Is relay locked by other process? Relay which is locked by other process cannot be open.
+     * This method only reads the shared lock table, it never touches any file and never locks.
+     *
+     * @return True if relay is locked by other process, false otherwise
+     * @see Relay#addLockListener(RelayLockListener)
+     */
+    public boolean isLockedByOtherProcess() {
+        return RelayLockTable.getInstance().getForeignOwner(getName()) != -1;
+    }
+
+    /**
+     * Get the actual state of the relay device. Unlike {@link #isOpen()}, which only tells if
+     * relay has been open by this API, this method reflects the hardware, so it also detects
+     * relay switched manually or by other application. When device is able to read back its state
+     * (see {@link RelayDevice.StateReadable}), state is taken from the {@link RelayStateCache} if
+     * it's not older than given staleness, otherwise state of the whole physical device is read
+     * with single request. For other devices this is the same as asking device if it's open.
+     *
+     * @param maxStaleness the maximum accepted age of the cached state, 0 to always read hardware
+     * @param unit the time unit
+     * @return True if relay device is open (switched on), false otherwise
+     * @throws IllegalArgumentException when staleness is negative or unit is null
+     * @throws RelayException when device state cannot be read
+     */
+    public boolean getState(long maxStaleness, TimeUnit unit) {
+
+        if (maxStaleness < 0) {
+            throw new IllegalArgumentException(String.format("Staleness cannot be negative (%d)", maxStaleness));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+
+        if (!(device instanceof RelayDevice.StateReadable)) {
+            return device.isOpen();
+        }
+
+        try {
+            return RelayStateCache.getInstance().isOpen(driver, device, maxStaleness, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RelayException(String.format("Interrupted while reading state of %s", getName()), e);
+        }
+    }
+
     /**
      * If the underlying device implements Configurable interface, specified
      * parameters are passed to it. May be called before the open method or
@@ -427,7 +1150,9 @@ public class Relay {
 
     /**
      * Get list of relays to use. This method will wait given time interval for relay devices to
-     * be discovered.
+     * be discovered. Once relays has been discovered, returned list is an immutable snapshot
+     * which is read without any lock, and new list is returned whenever relays are added or
+     * removed.
      *
      * @param timeout the devices discovery timeout
      * @param tunit the time unit
@@ -435,8 +1160,9 @@ public class Relay {
      * @throws TimeoutException when timeout has been exceeded
      * @throws RelayException when something is wrong
      * @throws IllegalArgumentException when timeout is negative or tunit null
+     * @see #getRelaysVersion()
      */
-    public static synchronized List<Relay> getRelays(long timeout, TimeUnit tunit) throws TimeoutException, RelayException {
+    public static List<Relay> getRelays(long timeout, TimeUnit tunit) throws TimeoutException, RelayException {
 
         if (timeout < 0) {
             throw new IllegalArgumentException(String.format("Timeout cannot be negative (%d)", timeout));
@@ -445,7 +1171,10 @@ public class Relay {
             throw new IllegalArgumentException("Time unit cannot be null!");
         }
 
-        RelayDiscoveryService discovery = getDiscoveryService();
+        RelayDiscoveryService discovery = Relay.discovery;
+        if (discovery == null) {
+            discovery = getDiscoveryService();
+        }
 
         assert discovery != null;
 
@@ -457,6 +1186,18 @@ public class Relay {
         return relays;
     }
 
+    /**
+     * Get version of the relays list. Version changes whenever relays are added or removed, so it
+     * can be used to cheaply detect that list returned by {@link #getRelays()} is out of date.
+     * This method never discovers relays and never locks.
+     *
+     * @return Relays list version, 0 if relays has not been discovered yet
+     */
+    public static long getRelaysVersion() {
+        RelayDiscoveryService service = discovery;
+        return service == null ? 0 : service.getVersion();
+    }
+
 
     /**
      * Will discover and return first relay available in the system.
@@ -576,6 +1317,64 @@ public class Relay {
         return DISCOVERY_LISTENERS.remove(l);
     }
 
+    /**
+     * Add listener receiving events of all relays in batches.
+     *
+     * @param l the batch listener to be added
+     * @return True, if listeners list size has been changed, false otherwise
+     * @throws IllegalArgumentException when argument is null
+     * @see RelayEventBatcher
+     */
+    public static boolean addBatchListener(RelayBatchListener l) {
+        if (l == null) {
+            throw new IllegalArgumentException("Relay batch listener cannot be null!");
+        }
+        return RelayEventBatcher.getInstance().addListener(l);
+    }
+
+    public static RelayBatchListener[] getBatchListeners() {
+        return RelayEventBatcher.getInstance().getListeners();
+    }
+
+    /**
+     * Remove batch listener
+     *
+     * @param l the listener to be removed
+     * @return True if listeners list contained the specified element
+     */
+    public static boolean removeBatchListener(RelayBatchListener l) {
+        return RelayEventBatcher.getInstance().removeListener(l);
+    }
+
+    /**
+     * Add listener notified when other process locks or unlocks any of the discovered relays.
+     *
+     * @param l the lock listener to be added
+     * @return True, if listeners list size has been changed, false otherwise
+     * @throws IllegalArgumentException when argument is null
+     * @see RelayLockWatcher
+     */
+    public static boolean addLockListener(RelayLockListener l) {
+        if (l == null) {
+            throw new IllegalArgumentException("Relay lock listener cannot be null!");
+        }
+        return RelayLockWatcher.getInstance().addListener(l);
+    }
+
+    public static RelayLockListener[] getLockListeners() {
+        return RelayLockWatcher.getInstance().getListeners();
+    }
+
+    /**
+     * Remove lock listener
+     *
+     * @param l the listener to be removed
+     * @return True if listeners list contained the specified element
+     */
+    public static boolean removeLockListener(RelayLockListener l) {
+        return RelayLockWatcher.getInstance().removeListener(l);
+    }
+
     /**
      * Get relay name (device name). The name of device depends on the value returned by the
      * underlying data source, so in some cases it can be human-readable value and sometimes it can
@@ -604,24 +1403,30 @@ public class Relay {
         if (l == null) {
             throw new IllegalArgumentException("Relay listener cannot be null!");
         }
-        assert listeners != null;
-        return listeners.add(l);
+        synchronized (listenersLock) {
+            if (mailbox == null) {
+                mailbox = RelayEventDispatcher.getInstance().createMailbox(this);
+            }
+            RelayListener[] tmp = Arrays.copyOf(listeners, listeners.length + 1);
+            tmp[tmp.length - 1] = l;
+            listeners = tmp;
+        }
+        return true;
     }
 
     /**
      * @return All relay listeners
      */
     public RelayListener[] getRelaysListeners() {
-        assert listeners != null;
-        return listeners.toArray(new RelayListener[listeners.size()]);
+        RelayListener[] tmp = listeners;
+        return Arrays.copyOf(tmp, tmp.length);
     }
 
     /**
      * @return Number of relays listeners
      */
     public int getRelayListenersCount() {
-        assert listeners != null;
-        return listeners.size();
+        return listeners.length;
     }
 
     /**
@@ -631,8 +1436,19 @@ public class Relay {
      * @return True if listener has been removed, false otherwise
      */
     public boolean removeRelaysListener(RelayListener l) {
-        assert listeners != null;
-        return listeners.remove(l);
+        synchronized (listenersLock) {
+            RelayListener[] tmp = listeners;
+            for (int i = 0; i < tmp.length; i++) {
+                if (tmp[i].equals(l)) {
+                    RelayListener[] removed = new RelayListener[tmp.length - 1];
+                    System.arraycopy(tmp, 0, removed, 0, i);
+                    System.arraycopy(tmp, i + 1, removed, i, tmp.length - i - 1);
+                    listeners = removed;
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -848,13 +1664,37 @@ public class Relay {
         return discovery;
     }
 
+    /**
+     * Get fencing token of the relay lock held by this process. Token increases every time relay
+     * is locked by any process, so device shared by several processes can reject commands of the
+     * owner which has lost its lock.
+     *
+     * @return Fencing token or -1 if relay is not locked by this process
+     * @see RelayLock#getFencingToken()
+     */
+    public long getFencingToken() {
+        RelayLock tmp = lock;
+        return tmp == null ? -1 : tmp.getFencingToken();
+    }
+
     /**
      * Return relay lock.
      *
      * @return Relay lock
      */
     public RelayLock getLock() {
-        return lock;
+
+        RelayLock tmp = lock;
+        if (tmp != null) {
+            return tmp;
+        }
+
+        synchronized (listenersLock) {
+            if (lock == null) {
+                lock = new RelayLock(this);
+            }
+            return lock;
+        }
     }
 
     /**
@@ -872,12 +1712,23 @@ public class Relay {
 
         // stop processor
         RelayProcessor.getInstance().shutdown();
+
+        // stop events dispatcher and batcher
+        RelayEventDispatcher.getInstance().shutdown();
+        RelayEventBatcher.getInstance().shutdown();
+
+        // stop state poller, timer, lock heartbeat and watcher
+        RelayStateCache.getInstance().shutdown();
+        RelayTimer.getInstance().shutdown();
+        RelayLockHeartbeat.getInstance().shutdown();
+        RelayLockWatcher.getInstance().shutdown();
     }
 
     /**
      * Return relay with given name or null if no device with given name has
      * been found. Please note that specific relay name may depend on the order
-     * it was connected to the USB port (e.g. /dev/video0 vs /dev/video1).
+     * it was connected to the USB port (e.g. /dev/video0 vs /dev/video1). Once
+     * relays has been discovered, lookup does not take any lock.
      *
      * @param name the relay name
      * @return Relay with given name or null if not found
@@ -889,13 +1740,168 @@ public class Relay {
             throw new IllegalArgumentException("Relay name cannot be null");
         }
 
-        for (Relay relay : getRelays()) {
-            if (relay.getName().equals(name)) {
-                return relay;
+        return getDiscovered().getRelay(name);
+    }
+
+    /**
+     * Return relay with given handle or null if there is no such relay, e.g. because it has been
+     * removed. Once relays has been discovered, lookup does not take any lock.
+     *
+     * @param handle the relay handle
+     * @return Relay with given handle or null if not found
+     * @see #getHandle()
+     */
+    public static Relay getRelayByHandle(int handle) {
+        return getDiscovered().getRelay(handle);
+    }
+
+    /**
+     * @return Discovery service which has already discovered relays
+     */
+    private static RelayDiscoveryService getDiscovered() {
+
+        RelayDiscoveryService service = discovery;
+        if (service != null && service.isDiscovered()) {
+            return service;
+        }
+
+        // discover relays first
+
+        getRelays();
+
+        return getDiscoveryServiceRef();
+    }
+
+    private static Relay getExisting(int handle) {
+        Relay relay = getRelayByHandle(handle);
+        if (relay == null) {
+            throw new IllegalArgumentException(String.format("There is no relay with handle %d", handle));
+        }
+        return relay;
+    }
+
+    /**
+     * Open relay with given handle in blocking (synchronous) mode.
+     *
+     * @param handle the relay handle
+     * @return True if relay has been open, false otherwise
+     * @throws IllegalArgumentException when there is no relay with given handle
+     * @throws RelayException when something went wrong
+     * @see #open()
+     */
+    public static boolean openByHandle(int handle) {
+        return getExisting(handle).open();
+    }
+
+    /**
+     * Close relay with given handle.
+     *
+     * @param handle the relay handle
+     * @return True if relay has been closed, false otherwise
+     * @throws IllegalArgumentException when there is no relay with given handle
+     * @see #close()
+     */
+    public static boolean closeByHandle(int handle) {
+        return getExisting(handle).close();
+    }
+
+    /**
+     * Get the actual state of relay with given handle.
+     *
+     * @param handle the relay handle
+     * @param maxStaleness the maximum accepted age of the cached state, 0 to always read hardware
+     * @param unit the time unit
+     * @return True if relay device is open (switched on), false otherwise
+     * @throws IllegalArgumentException when there is no relay with given handle
+     * @throws RelayException when device state cannot be read
+     * @see #getState(long, TimeUnit)
+     */
+    public static boolean getStateByHandle(int handle, long maxStaleness, TimeUnit unit) {
+        return getExisting(handle).getState(maxStaleness, unit);
+    }
+
+    /**
+     * Get relay handle. Handle is small non-negative number assigned to the relay when it's
+     * discovered. Relays are numbered densely, and relay keeps its handle as long as its name is
+     * the same, even if it's removed and connected again, so handle can be safely stored by the
+     * callers and used instead of the name.
+     *
+     * @return Relay handle or -1 if relay has not been discovered
+     * @see #getRelayByHandle(int)
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    void setHandle(int handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Get board of the physical device this relay belongs to. All relays whose devices have the
+     * same physical key share the same board.
+     *
+     * @return Relay board or null if relay is not part of any board
+     * @see RelayDevice.PhysicalDevice
+     */
+    public RelayBoard getBoard() {
+        return board;
+    }
+
+    void setBoard(RelayBoard board) {
+        this.board = board;
+    }
+
+    /**
+     * Open all given relays. Relays which live on the same board are open together by single
+     * task (see {@link RelayBoard#applyMask(long, long)}), other relays are open one by one.
+     *
+     * @param relays the relays to be open
+     * @return True if all relays has been open, false otherwise
+     * @throws RelayException when something went wrong
+     */
+    public static boolean openAll(Collection<Relay> relays) {
+        return switchAll(relays, true);
+    }
+
+    /**
+     * Close all given relays. Relays which live on the same board are closed together by single
+     * task (see {@link RelayBoard#applyMask(long, long)}), other relays are closed one by one.
+     *
+     * @param relays the relays to be closed
+     * @return True if all relays has been closed, false otherwise
+     * @throws RelayException when something went wrong
+     */
+    public static boolean closeAll(Collection<Relay> relays) {
+        return switchAll(relays, false);
+    }
+
+    private static boolean switchAll(Collection<Relay> relays, boolean on) {
+
+        if (relays == null) {
+            throw new IllegalArgumentException("Relays cannot be null");
+        }
+
+        Map<RelayBoard, Long> masks = new LinkedHashMap<RelayBoard, Long>();
+        boolean result = true;
+
+        for (Relay relay : relays) {
+            RelayBoard board = relay.getBoard();
+            if (board == null) {
+                result &= on ? relay.open() : relay.close();
+                continue;
             }
+            Long mask = masks.get(board);
+            long bit = 1L << board.getChannel(relay);
+            masks.put(board, (mask == null ? 0 : mask) | bit);
         }
 
-        return null;
+        for (Map.Entry<RelayBoard, Long> entry : masks.entrySet()) {
+            long mask = entry.getValue();
+            result &= on ? entry.getKey().applyMask(mask, 0) : entry.getKey().applyMask(0, mask);
+        }
+
+        return result;
     }
 
 }
@@ -0,0 +1,24 @@
+package com.github.jrelay;
+
+import java.util.List;
+
+/**
+ * Listener receiving events of all relays in batches. It's intended for high-volume consumers
+ * (e.g. monitoring) which would rather process many events at once than be called for every
+ * single relay change. Events carry sequence numbers and monotonic timestamps, which consumers
+ * may use to order and deduplicate them.
+ *
+ * @see Relay#addBatchListener(RelayBatchListener)
+ * @see RelayEventBatcher
+ */
+public interface RelayBatchListener {
+
+    /**
+     * Called by the batcher thread when batch is full or when the oldest event in the batch has
+     * waited long enough. The list is read-only and must not be modified.
+     *
+     * @param events the events, never empty
+     */
+    void relayEvents(List<RelayEvent> events);
+
+}
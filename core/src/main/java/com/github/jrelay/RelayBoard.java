@@ -0,0 +1,231 @@
+package com.github.jrelay;
+
+import com.github.jrelay.task.RelayBoardTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays sharing single physical device (e.g. channels of multi-channel board). Board switches
+ * several of its channels with single task, so it costs only one round trip through the processor
+ * no matter how many channels are switched. When devices implement
+ * {@link RelayDevice.MaskSwitchable} all channels are switched with single request to the
+ * hardware, otherwise they are switched one by one. Channel n of the board is bit n of the masks.
+ */
+public class RelayBoard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayBoard.class);
+
+    private final Object key;
+
+    /**
+     * Relays indexed by channel, null if there is no relay for the channel.
+     */
+    private final Relay[] relays;
+
+    private final RelayDevice[] devices;
+
+    private final long channels;
+
+    /**
+     * @param key the physical device key
+     * @param relays the relays indexed by channel, null if there is no relay for the channel
+     */
+    RelayBoard(Object key, Relay[] relays) {
+        this.key = key;
+        this.relays = relays;
+        this.devices = new RelayDevice[relays.length];
+
+        long mask = 0;
+        for (int i = 0; i < relays.length; i++) {
+            if (relays[i] != null) {
+                devices[i] = relays[i].getDevice();
+                mask |= 1L << i;
+            }
+        }
+
+        this.channels = mask;
+    }
+
+    /**
+     * @return Key of the physical device
+     * @see RelayDevice.PhysicalDevice#getPhysicalKey()
+     */
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return Mask of channels which has relay
+     */
+    public long getChannels() {
+        return channels;
+    }
+
+    /**
+     * @param channel the channel number
+     * @return Relay of given channel or null if there is no such relay
+     */
+    public Relay getRelay(int channel) {
+        if (channel < 0 || channel >= relays.length) {
+            return null;
+        }
+        return relays[channel];
+    }
+
+    /**
+     * @param relay the relay
+     * @return Channel number of given relay or -1 if relay does not belong to this board
+     */
+    public int getChannel(Relay relay) {
+        for (int i = 0; i < relays.length; i++) {
+            if (relays[i] == relay) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Relays of this board
+     */
+    public List<Relay> getRelays() {
+        List<Relay> tmp = new ArrayList<Relay>(relays.length);
+        for (Relay relay : relays) {
+            if (relay != null) {
+                tmp.add(relay);
+            }
+        }
+        return Collections.unmodifiableList(tmp);
+    }
+
+    /**
+     * Open and close several channels at once. Channels which are in neither mask are left intact,
+     * channels which are already open (or closed) are not switched again. Relays are locked,
+     * unlocked and their listeners notified just as if they were switched one by one.
+     *
+     * @param on the mask of channels to be open
+     * @param off the mask of channels to be closed
+     * @return True if channels has been switched, false if thread has been interrupted
+     * @throws IllegalArgumentException when masks overlap or select channel which has no relay
+     * @throws RelayException when something went wrong
+     */
+    public boolean applyMask(long on, long off) {
+
+        if ((on & off) != 0) {
+            throw new IllegalArgumentException(String.format("Channels cannot be both open and closed (%x)", on & off));
+        }
+        if (((on | off) & ~channels) != 0) {
+            throw new IllegalArgumentException(String.format("There are no relays for channels %x", (on | off) & ~channels));
+        }
+
+        // mark relays as being switched, skip these which are already in requested state
+
+        long opening = 0;
+        long closing = 0;
+
+        try {
+            for (int i = 0; i < relays.length; i++) {
+                long bit = 1L << i;
+                if ((on & bit) != 0 && relays[i].beginOpen()) {
+                    opening |= bit;
+                }
+                if ((off & bit) != 0 && relays[i].beginClose()) {
+                    closing |= bit;
+                }
+            }
+        } catch (RelayException e) {
+            abort(opening, closing);
+            throw e;
+        }
+
+        if ((opening | closing) == 0) {
+            return true;
+        }
+
+        LOG.debug("Switching board {}, on {}, off {}", key, opening, closing);
+
+        try {
+            new RelayBoardTask(Relay.getDriver(), devices, opening, closing).apply();
+        } catch (InterruptedException e) {
+            abort(opening, closing);
+            LOG.debug("Thread has been interrupted before board was switched!", e);
+            return false;
+        } catch (RelayException e) {
+            abort(opening, closing);
+            throw e;
+        }
+
+        for (int i = 0; i < relays.length; i++) {
+            long bit = 1L << i;
+            if ((opening & bit) != 0) {
+                relays[i].finishOpen();
+            }
+            if ((closing & bit) != 0) {
+                relays[i].finishClose();
+            }
+        }
+
+        return true;
+    }
+
+    private void abort(long opening, long closing) {
+        for (int i = 0; i < relays.length; i++) {
+            long bit = 1L << i;
+            if ((opening & bit) != 0) {
+                relays[i].abortOpen();
+            }
+            if ((closing & bit) != 0) {
+                relays[i].abortClose();
+            }
+        }
+    }
+
+    /**
+     * Read mask of open channels. Devices which implement {@link RelayDevice.StateReadable} are
+     * asked for the actual hardware state (which also refreshes the {@link RelayStateCache}),
+     * for other devices the mask is composed from the channels state.
+     *
+     * @return Mask of open channels
+     * @throws RelayException when state cannot be read
+     */
+    public long readMask() {
+
+        RelayDevice device = first();
+
+        if (device instanceof RelayDevice.StateReadable) {
+            try {
+                return RelayStateCache.getInstance().getState(Relay.getDriver(), device, 0, TimeUnit.NANOSECONDS) & channels;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RelayException(String.format("Interrupted while reading state of %s", key), e);
+            }
+        }
+
+        long mask = 0;
+        for (int i = 0; i < devices.length; i++) {
+            if (devices[i] != null && devices[i].isOpen()) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    private RelayDevice first() {
+        for (RelayDevice device : devices) {
+            if (device != null) {
+                return device;
+            }
+        }
+        throw new IllegalStateException("Board has no relays");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Board %s", key);
+    }
+}
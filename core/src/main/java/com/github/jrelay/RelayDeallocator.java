@@ -3,6 +3,7 @@ package com.github.jrelay;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 /**
  * Created by nightingale on 24.04.16.
@@ -41,12 +42,10 @@ final class RelayDeallocator {
     }
 
     protected void deallocate() {
-        for(Relay relay : relays) {
-            try {
-                relay.dispose();
-            } catch (Throwable t) {
-                caugh(t);
-            }
+        try {
+            RelayShutdownCoordinator.getInstance().dispose(Arrays.asList(relays));
+        } catch (Throwable t) {
+            caugh(t);
         }
     }
 
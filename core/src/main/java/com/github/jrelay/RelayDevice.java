@@ -1,6 +1,7 @@
 package com.github.jrelay;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by nightingale on 24.04.16.
@@ -27,6 +28,150 @@ public interface RelayDevice {
         void setParameters(Map<String, ?> parameters);
     }
 
+    /**
+     * This interface may be implemented by devices which share one physical device with other
+     * relay devices (e.g. single channel of multi-channel board). Tasks of the devices with equal
+     * physical keys are always executed sequentially, while tasks of different physical devices
+     * may be executed in parallel.
+     *
+     */
+    public static interface PhysicalDevice {
+
+        /**
+         * Get key identifying physical device (serial port name, USB serial number, etc). Returned
+         * object should properly implement equals and hashCode methods.
+         *
+         * @return Physical device key
+         * @see RelayProcessor
+         */
+        Object getPhysicalKey();
+    }
+
+    /**
+     * This interface may be implemented by devices which are able to read back the actual state
+     * of the hardware. State of all channels sharing the same physical device is read with single
+     * request, so reading state of the whole board costs the same as reading state of single
+     * channel.
+     *
+     * @see RelayStateCache
+     */
+    public static interface StateReadable extends PhysicalDevice {
+
+        /**
+         * Read state of all channels of the physical device. Bit n of the returned value is set
+         * when channel n is open (switched on). It's always called by the processor, never
+         * concurrently with other tasks of the same physical device.
+         *
+         * @return Bit mask of open channels
+         */
+        long readState();
+
+        /**
+         * @return Index of this device bit in the physical device state
+         * @see #readState()
+         */
+        int getChannel();
+    }
+
+    /**
+     * This interface may be implemented by devices which are able to switch several channels of
+     * the physical device with single request. Devices which do not implement it are switched by
+     * the {@link RelayBoard} channel by channel.
+     *
+     * @see RelayBoard#applyMask(long, long)
+     */
+    public static interface MaskSwitchable extends StateReadable {
+
+        /**
+         * Open and close channels of the physical device with single request. Bit n of the mask
+         * corresponds to channel n, channels which are in neither mask are left intact.
+         * Implementation is responsible for updating state reported by
+         * {@link RelayDevice#isOpen()} of all switched channels, not only of this device. It's
+         * always called by the processor, never concurrently with other tasks of the same
+         * physical device.
+         *
+         * @param on the mask of channels to be open
+         * @param off the mask of channels to be closed
+         */
+        void applyMask(long on, long off);
+    }
+
+    /**
+     * This interface may be implemented by devices which are able to flip their state with single
+     * request, without reading the state first.
+     *
+     * @see Relay#toggle()
+     */
+    public static interface Toggleable {
+
+        /**
+         * Flip the device state. Implementation should update state reported by
+         * {@link RelayDevice#isOpen()} from the device response.
+         *
+         * @return True if device is open after toggle, false if it is closed
+         */
+        boolean toggle();
+    }
+
+    /**
+     * This interface may be implemented by devices which are able to open for a while and close
+     * again by themselves (momentary switching), so the pulse does not depend on the host timing.
+     *
+     * @see Relay#pulse(long, TimeUnit)
+     */
+    public static interface Pulsable {
+
+        /**
+         * Get duration of the hardware pulse. It's usually fixed by the device or set by its
+         * parameters.
+         *
+         * @param unit the time unit
+         * @return Pulse duration or 0 if device is not able to pulse at the moment
+         */
+        long getPulseDuration(TimeUnit unit);
+
+        /**
+         * Open device and let it close by itself after pulse duration elapses. State reported by
+         * {@link RelayDevice#isOpen()} does not change.
+         */
+        void pulse();
+    }
+
+    /**
+     * This interface may be implemented by devices which are able to adopt the last known state
+     * without switching, e.g. when relays are restored from the state journal after restart.
+     *
+     * @see RelayStateJournal
+     */
+    public static interface Restorable {
+
+        /**
+         * Set state reported by {@link RelayDevice#isOpen()} without sending anything to the
+         * device.
+         *
+         * @param open true if device is known to be open, false otherwise
+         */
+        void restore(boolean open);
+    }
+
+    /**
+     * This interface may be implemented by devices which are able to reject commands of the relay
+     * owner which has lost its lock, e.g. controllers shared by several hosts. Token is set before
+     * every command sent by the owner holding the lock, and device should reject commands carrying
+     * token lower than the highest token it has seen.
+     *
+     * @see RelayLock#getFencingToken()
+     */
+    public static interface Fenced {
+
+        /**
+         * Set fencing token of the command which is going to be sent to the device.
+         *
+         * @param token the fencing token
+         */
+        void setFencingToken(long token);
+    }
+
     /**
      * Get device name.
      *
@@ -3,6 +3,9 @@ package com.github.jrelay;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -36,15 +39,55 @@ public class RelayDiscoveryService implements Runnable {
         }
     }
 
+    /**
+     * Immutable snapshot of relays, indexed by name and by handle. New snapshot with higher
+     * version is published whenever relays are changed, so readers need neither lock nor scan.
+     * Relays are also grouped by physical key of their devices, so boards affected by the change
+     * can be found without touching other relays.
+     */
+    private static final class Snapshot {
+
+        private final List<Relay> relays;
+        private final Map<String, Relay> names;
+        private final Relay[] handles;
+        private final Map<Object, List<Relay>> groups;
+        private final long version;
+
+        public Snapshot(List<Relay> relays, Map<String, Relay> names, Relay[] handles, Map<Object, List<Relay>> groups, long version) {
+            this.relays = relays;
+            this.names = names;
+            this.handles = handles;
+            this.groups = groups;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Snapshot used until relays are discovered.
+     */
+    private static final Snapshot EMPTY = new Snapshot(null, Collections.<String, Relay>emptyMap(), new Relay[0], Collections.<Object, List<Relay>>emptyMap(), 0);
+
     private final RelayDriver driver;
     private final RelayDiscoverySupport support;
+    private final RelayHotplugSupport hotplug;
 
-    private volatile List<Relay> relays = null;
+    private volatile Snapshot snapshot = EMPTY;
+
+    /**
+     * Handles assigned to the relay names. Name keeps its handle even when device is removed, so
+     * relay which is connected again gets the same handle and handle is never reused by other relay.
+     */
+    private final Map<String, Integer> handles = new HashMap<String, Integer>();
 
     private AtomicBoolean running = new AtomicBoolean(false);
     private AtomicBoolean enabled = new AtomicBoolean(true);
 
-    private Thread runner = null;
+    private volatile Thread runner = null;
+
+    /**
+     * Hotplug watcher, null when devices are not watched.
+     */
+    private volatile RelayHotplugWatcher watcher = null;
 
     protected RelayDiscoveryService(RelayDriver driver) {
 
@@ -54,6 +97,7 @@ public class RelayDiscoveryService implements Runnable {
 
         this.driver = driver;
         this.support = (RelayDiscoverySupport) (driver instanceof RelayDiscoverySupport ? driver : null);
+        this.hotplug = (RelayHotplugSupport) (driver instanceof RelayHotplugSupport ? driver : null);
     }
 
     private static List<Relay> toRelays(List<RelayDevice> devices) {
@@ -64,19 +108,6 @@ public class RelayDiscoveryService implements Runnable {
         return relays;
     }
 
-    /**
-     * Get list of devices used by relays.
-     *
-     * @return List of relay devices
-     */
-    private static List<RelayDevice> getDevices(List<Relay> relays) {
-        List<RelayDevice> devices = new ArrayList<RelayDevice>();
-        for (Relay relay : relays) {
-            devices.add(relay.getDevice());
-        }
-        return devices;
-    }
-
     public List<Relay> getRelays(long timeout, TimeUnit tunit) throws TimeoutException {
 
         if (timeout < 0) {
@@ -87,10 +118,19 @@ public class RelayDiscoveryService implements Runnable {
             throw new IllegalArgumentException("Time unit cannot be null!");
         }
 
+        // relays has already been discovered, never lock
+
+        List<Relay> relays = snapshot.relays;
+        if (relays != null) {
+            return relays;
+        }
+
         List<Relay> tmp = null;
 
         synchronized (Relay.class) {
 
+            relays = snapshot.relays;
+
             if (relays == null) {
 
                 RelayDiscovery discovery = new RelayDiscovery(driver);
@@ -104,7 +144,8 @@ public class RelayDiscoveryService implements Runnable {
                     executor.awaitTermination(timeout, tunit);
 
                     if (future.isDone()) {
-                        relays = future.get();
+                        relays = publish(future.get());
+                        RelayStateJournal.getInstance().restore(relays);
                     } else {
                         future.cancel(true);
                     }
@@ -119,7 +160,7 @@ public class RelayDiscoveryService implements Runnable {
                     throw new TimeoutException(String.format("Webcams discovery timeout (%d ms) has been exceeded", timeout));
                 }
 
-                tmp = new ArrayList<Relay>(relays);
+                tmp = relays;
                 if (Relay.isHandleTermSignal()) {
                     RelayDeallocator.store(relays.toArray(new Relay[relays.size()]));
                 }
@@ -133,91 +174,188 @@ public class RelayDiscoveryService implements Runnable {
             }
         }
 
-        return Collections.unmodifiableList(relays);
+        return relays;
     }
 
     /**
-     * Scan for newly added or already removed relays.
+     * Difference between devices reported by the driver and the current relays.
      */
-    public void scan() {
+    private static final class Delta {
 
-        RelayDiscoveryListener[] listeners = Relay.getDiscoveryListeners();
+        /**
+         * All relays in order of the devices, relays of devices which are still present are kept.
+         */
+        private final List<Relay> relays = new ArrayList<Relay>();
+
+        private final List<Relay> added = new ArrayList<Relay>();
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, Relay> removed = new LinkedHashMap<String, Relay>();
 
-        List<RelayDevice> tmpnew = driver.getDevices();
-        List<RelayDevice> tmpold = null;
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /**
+     * Compare devices with the current relays. Every device name is read only once and looked up
+     * in the names index of the current snapshot, and names of the current relays are taken from
+     * the index, so the difference is found in O(n + m) time. Relays of devices which are still
+     * present are kept and new relays are created only for added devices.
+     *
+     * @param devices the devices reported by the driver
+     * @return Relays which have been added and removed
+     */
+    private Delta diff(List<RelayDevice> devices) {
+
+        Map<String, Relay> current = snapshot.names;
+        Set<String> present = new HashSet<String>(devices.size() * 2);
+        Delta delta = new Delta();
+
+        for (RelayDevice device : devices) {
+            String name = device.getName();
+            if (!present.add(name)) {
+                continue;
+            }
+            Relay relay = current.get(name);
+            if (relay == null) {
+                relay = new Relay(device);
+                delta.added.add(relay);
+                delta.names.add(name);
+            }
+            delta.relays.add(relay);
+        }
+
+        for (Map.Entry<String, Relay> entry : current.entrySet()) {
+            if (!present.contains(entry.getKey())) {
+                delta.removed.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return delta;
+    }
+
+    /**
+     * Scan for newly added or already removed relays. Relays of devices which are still present
+     * are kept as they are, no matter if they are open or being switched, only added relays are
+     * created and only removed relays are disposed.
+     */
+    public void scan() {
+
+        List<RelayDevice> devices = driver.getDevices();
 
         try {
-            tmpold = getDevices(getRelays(Long.MAX_VALUE, TimeUnit.MILLISECONDS));
+            getRelays(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         } catch (TimeoutException e) {
             throw new RelayException(e);
         }
 
-        // convert to linked list due to O(1) on remove operation on
-        // iterator versus O(n) for the same operation in array list
-        List<RelayDevice> oldones = new LinkedList<RelayDevice>(tmpold);
-        List<RelayDevice> newones = new LinkedList<RelayDevice>(tmpnew);
+        update(devices);
+    }
 
-        Iterator<RelayDevice> oi = oldones.iterator();
-        Iterator<RelayDevice> ni = null;
+    /**
+     * Scan only devices living on the given nodes, devices of other nodes are not touched at all.
+     * Relays of nodes which have been deleted are removed first, and then nodes which exist but
+     * have no relays are probed. Node which already has relays is never probed again, since its
+     * devices may be open and probing would fail to open the port or even disturb them. Driver
+     * which does not support hotplug is scanned completely.
+     *
+     * @param nodes the device nodes which have been created or deleted
+     * @see RelayHotplugSupport
+     */
+    public void scan(Collection<File> nodes) {
+        scan(nodes, Collections.<File> emptySet());
+    }
 
-        RelayDevice od = null; // old device
-        RelayDevice nd = null; // new device
+    /**
+     * Scan only devices living on the given nodes. Relays of nodes which have been deleted are
+     * removed even if the node exists again, since it may have been unplugged and plugged back
+     * in the meantime, so it is probed again afterwards.
+     *
+     * @param nodes the device nodes which have been created or deleted
+     * @param deleted the device nodes which have been deleted
+     */
+    void scan(Collection<File> nodes, Collection<File> deleted) {
 
-        // reduce lists
-        while (oi.hasNext()) {
+        if (hotplug == null) {
+            scan();
+            return;
+        }
 
-            od = oi.next();
-            ni = newones.iterator();
+        List<Relay> relays = null;
+        try {
+            relays = getRelays(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new RelayException(e);
+        }
 
-            while (ni.hasNext()) {
+        Set<File> removable = new HashSet<File>(deleted);
+        Set<File> existing = new LinkedHashSet<File>();
+        for (File node : nodes) {
+            if (node.exists()) {
+                existing.add(node);
+            } else {
+                removable.add(node);
+            }
+        }
 
-                nd = ni.next();
+        List<RelayDevice> devices = new ArrayList<RelayDevice>(relays.size());
 
-                // remove both elements, if device name is the same, which
-                // actually means that device is exactly the same
-                if (nd.getName().equals(od.getName())) {
-                    ni.remove();
-                    oi.remove();
-                    break;
-                }
+        boolean removed = false;
+        for (Relay relay : relays) {
+            File node = hotplug.getHotplugNode(relay.getDevice());
+            if (removable.contains(node)) {
+                removed = true;
+            } else {
+                devices.add(relay.getDevice());
+                existing.remove(node);
             }
         }
 
-        // if any left in old ones it means that devices has been removed
-        if (oldones.size() > 0) {
+        if (removed) {
+            update(devices);
+        }
 
-            List<Relay> notified = new ArrayList<Relay>();
+        boolean added = false;
+        for (File node : existing) {
+            List<RelayDevice> tmp = hotplug.getDevices(node);
+            LOG.debug("Hotplug node {} has {} devices", node, tmp.size());
+            added |= devices.addAll(tmp);
+        }
 
-            for (RelayDevice device : oldones) {
-                for (Relay relay : relays) {
-                    if (relay.getDevice().getName().equals(device.getName())) {
-                        notified.add(relay);
-                        break;
-                    }
-                }
-            }
+        if (added) {
+            update(devices);
+        }
+    }
+
+    /**
+     * Publish relays of the given devices and notify listeners about relays which have been
+     * added or removed.
+     *
+     * @param devices the devices reported by the driver
+     */
+    private void update(List<RelayDevice> devices) {
 
-            setCurrentRelays(tmpnew);
+        RelayDiscoveryListener[] listeners = Relay.getDiscoveryListeners();
 
-            for (Relay relay : notified) {
-                notifyRelayGone(relay, listeners);
-                relay.dispose();
+        Delta delta = null;
+
+        synchronized (handles) {
+            delta = diff(devices);
+            if (delta.isEmpty()) {
+                return;
             }
+            setCurrentRelays(delta);
         }
 
-        // if any left in new ones it means that devices has been added
-        if (newones.size() > 0) {
+        LOG.debug("Discovered {} new and {} removed relays", delta.added.size(), delta.removed.size());
 
-            setCurrentRelays(tmpnew);
+        for (Relay relay : delta.removed.values()) {
+            notifyRelayGone(relay, listeners);
+            relay.dispose();
+        }
 
-            for (RelayDevice device : newones) {
-                for (Relay webcam : relays) {
-                    if (webcam.getDevice().getName().equals(device.getName())) {
-                        notifyRelayFound(webcam, listeners);
-                        break;
-                    }
-                }
-            }
+        for (Relay relay : delta.added) {
+            notifyRelayFound(relay, listeners);
         }
     }
 
@@ -232,6 +370,13 @@ public class RelayDiscoveryService implements Runnable {
             return;
         }
 
+        // devices are re-probed when their nodes change, polling is only used when nodes cannot
+        // be watched
+        if (hotplug != null && hotplug.isHotplugPossible() && watch()) {
+            LOG.debug("Relay discovery service loop has been stopped");
+            return;
+        }
+
         // wait initial time interval since devices has been initially
         // discovered
         Object monitor = new Object();
@@ -252,9 +397,323 @@ public class RelayDiscoveryService implements Runnable {
         LOG.debug("Relay discovery service loop has been stopped");
     }
 
+    /**
+     * Watch device nodes and scan them whenever they are created or deleted.
+     *
+     * @return True if service has been stopped, false if nodes cannot be watched anymore
+     */
+    private boolean watch() {
+
+        RelayHotplugWatcher tmp = null;
+        try {
+            tmp = new RelayHotplugWatcher(hotplug);
+        } catch (IOException e) {
+            LOG.warn("Device nodes cannot be watched, relays will be discovered by polling", e);
+            return false;
+        }
+
+        watcher = tmp;
+
+        LOG.info("Relay discovery is driven by hotplug events");
+
+        try {
+
+            // device could be plugged before watching started
+
+            if (running.get()) {
+                scan();
+            }
+
+            while (running.get()) {
+
+                Set<File> deleted = new HashSet<File>();
+                Set<File> nodes = tmp.take(deleted);
+                if (nodes == null) {
+                    LOG.debug("Hotplug events have been lost, scanning all devices");
+                    scan();
+                } else if (!nodes.isEmpty()) {
+                    scan(nodes, deleted);
+                }
+
+                if (!tmp.isValid()) {
+                    LOG.warn("Device nodes cannot be watched anymore, relays will be discovered by polling");
+                    return !running.get();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            LOG.trace("Hotplug watcher has been interrupted", e);
+        } catch (ClosedWatchServiceException e) {
+            LOG.trace("Hotplug watcher has been closed", e);
+        } finally {
+            watcher = null;
+            tmp.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * @return True if relays are discovered by watching device nodes instead of polling
+     */
+    public boolean isWatching() {
+        return watcher != null;
+    }
+
+    /**
+     * Assign handles to the given relays and publish them as new snapshot.
+     *
+     * @param relays the current relays
+     * @return Unmodifiable list of the relays
+     */
+    private List<Relay> publish(List<Relay> relays) {
+
+        relays = Collections.unmodifiableList(relays);
+
+        Map<Object, List<Relay>> groups = group(relays);
+
+        synchronized (handles) {
+
+            Map<String, Relay> names = new LinkedHashMap<String, Relay>(relays.size() * 2);
+            for (Relay relay : relays) {
+                relay.setHandle(getHandle(relay.getName()));
+                names.put(relay.getName(), relay);
+            }
+
+            Relay[] tmp = new Relay[handles.size()];
+            for (Relay relay : relays) {
+                tmp[relay.getHandle()] = relay;
+            }
+
+            snapshot = new Snapshot(relays, names, tmp, groups, snapshot.version + 1);
+        }
+
+        for (Map.Entry<Object, List<Relay>> entry : groups.entrySet()) {
+            setBoard(entry.getKey(), entry.getValue());
+        }
+
+        return relays;
+    }
+
+    /**
+     * Publish relays changed by the scan as new snapshot. Indexes of the current snapshot are
+     * copied and patched, so relays which are kept are not touched at all, neither their handles
+     * nor their boards, only boards of physical devices which have gained or lost relays are
+     * created again.
+     *
+     * @param delta the relays changed by the scan
+     * @return Unmodifiable list of the relays
+     */
+    private List<Relay> publish(Delta delta) {
+
+        List<Relay> relays = Collections.unmodifiableList(delta.relays);
 
-    private void setCurrentRelays(List<RelayDevice> devices) {
-        relays = toRelays(devices);
+        Map<Object, List<Relay>> groups = null;
+        Set<Object> changed = new HashSet<Object>();
+
+        synchronized (handles) {
+
+            Snapshot current = snapshot;
+
+            Map<String, Relay> names = new LinkedHashMap<String, Relay>(current.names);
+            for (String name : delta.removed.keySet()) {
+                names.remove(name);
+            }
+            for (int i = 0; i < delta.added.size(); i++) {
+                Relay relay = delta.added.get(i);
+                String name = delta.names.get(i);
+                relay.setHandle(getHandle(name));
+                names.put(name, relay);
+            }
+
+            Relay[] tmp = Arrays.copyOf(current.handles, handles.size());
+            for (Relay relay : delta.removed.values()) {
+                tmp[relay.getHandle()] = null;
+            }
+            for (Relay relay : delta.added) {
+                tmp[relay.getHandle()] = relay;
+            }
+
+            // regroup only physical devices which have gained or lost relays
+
+            groups = new LinkedHashMap<Object, List<Relay>>(current.groups);
+
+            for (Relay relay : delta.removed.values()) {
+                Object key = getPhysicalKey(relay);
+                if (key != null && groups.containsKey(key)) {
+                    List<Relay> group = new ArrayList<Relay>(groups.get(key));
+                    group.remove(relay);
+                    groups.put(key, group);
+                    changed.add(key);
+                }
+            }
+            for (Relay relay : delta.added) {
+                Object key = getPhysicalKey(relay);
+                if (key != null) {
+                    List<Relay> group = groups.get(key);
+                    group = group == null ? new ArrayList<Relay>() : new ArrayList<Relay>(group);
+                    group.add(relay);
+                    groups.put(key, group);
+                    changed.add(key);
+                }
+            }
+            for (Object key : changed) {
+                if (groups.get(key).isEmpty()) {
+                    groups.remove(key);
+                } else {
+                    groups.put(key, Collections.unmodifiableList(groups.get(key)));
+                }
+            }
+
+            snapshot = new Snapshot(relays, names, tmp, groups, current.version + 1);
+        }
+
+        for (Object key : changed) {
+            List<Relay> group = groups.get(key);
+            if (group != null) {
+                setBoard(key, group);
+            }
+        }
+
+        return relays;
+    }
+
+    /**
+     * Get handle assigned to the relay name, new handle is assigned if relay with this name has
+     * never been discovered.
+     *
+     * @param name the relay name
+     * @return Relay handle
+     */
+    private int getHandle(String name) {
+        Integer handle = handles.get(name);
+        if (handle == null) {
+            handle = handles.size();
+            handles.put(name, handle);
+        }
+        return handle;
+    }
+
+    /**
+     * @param relay the relay
+     * @return Physical key of the relay device or null if device is not physical device
+     */
+    private static Object getPhysicalKey(Relay relay) {
+        RelayDevice device = relay.getDevice();
+        if (device instanceof RelayDevice.PhysicalDevice) {
+            return ((RelayDevice.PhysicalDevice) device).getPhysicalKey();
+        }
+        return null;
+    }
+
+    /**
+     * Group relays whose devices have the same physical key.
+     *
+     * @param relays the relays
+     * @return Unmodifiable lists of relays by physical key, in order they have been discovered
+     */
+    private static Map<Object, List<Relay>> group(List<Relay> relays) {
+
+        Map<Object, List<Relay>> groups = new LinkedHashMap<Object, List<Relay>>();
+        for (Relay relay : relays) {
+            Object key = getPhysicalKey(relay);
+            if (key != null) {
+                List<Relay> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<Relay>();
+                    groups.put(key, group);
+                }
+                group.add(relay);
+            }
+        }
+
+        for (Map.Entry<Object, List<Relay>> entry : groups.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        return groups;
+    }
+
+    /**
+     * Create board of the relays whose devices have the same physical key and assign it to the
+     * relays. Relay channel is taken from the device if it is able to read its state, otherwise
+     * relays are numbered in order they have been discovered. Relays with invalid channels are
+     * not part of any board.
+     *
+     * @param key the physical key
+     * @param group the relays
+     */
+    private static void setBoard(Object key, List<Relay> group) {
+
+        Relay[] channels = new Relay[64];
+        int max = -1;
+
+        for (int i = 0; i < group.size(); i++) {
+            Relay relay = group.get(i);
+            RelayDevice device = relay.getDevice();
+            int channel = device instanceof RelayDevice.StateReadable ? ((RelayDevice.StateReadable) device).getChannel() : i;
+            if (channel < 0 || channel >= channels.length || channels[channel] != null) {
+                LOG.warn("Invalid channel {} of relay {}, board {} will not be used", channel, relay.getName(), key);
+                max = -1;
+                break;
+            }
+            channels[channel] = relay;
+            max = Math.max(max, channel);
+        }
+
+        RelayBoard board = max >= 0 ? new RelayBoard(key, Arrays.copyOf(channels, max + 1)) : null;
+        for (Relay relay : group) {
+            relay.setBoard(board);
+        }
+    }
+
+    /**
+     * Get relay by name. This method never waits, it returns null if relays has not been
+     * discovered yet.
+     *
+     * @param name the relay name
+     * @return Relay with given name or null if there is no such relay
+     */
+    public Relay getRelay(String name) {
+        return snapshot.names.get(name);
+    }
+
+    /**
+     * Get relay by handle. This method never waits, it returns null if relays has not been
+     * discovered yet.
+     *
+     * @param handle the relay handle
+     * @return Relay with given handle or null if there is no such relay (e.g. it has been removed)
+     * @see Relay#getHandle()
+     */
+    public Relay getRelay(int handle) {
+        Relay[] tmp = snapshot.handles;
+        if (handle < 0 || handle >= tmp.length) {
+            return null;
+        }
+        return tmp[handle];
+    }
+
+    /**
+     * @return True if relays has been discovered, false otherwise
+     */
+    public boolean isDiscovered() {
+        return snapshot.relays != null;
+    }
+
+    /**
+     * Get version of the relays list. Version is 0 until relays are discovered and it is
+     * incremented whenever relays are added or removed, so callers can detect the change without
+     * copying or comparing the list.
+     *
+     * @return Relays list version
+     */
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    private void setCurrentRelays(Delta delta) {
+        List<Relay> relays = publish(delta);
         if (Relay.isHandleTermSignal()) {
             RelayDeallocator.unstore();
             RelayDeallocator.store(relays.toArray(new Relay[relays.size()]));
@@ -337,6 +796,13 @@ public class RelayDiscoveryService implements Runnable {
             return;
         }
 
+        // wake up service waiting for hotplug events
+
+        RelayHotplugWatcher tmp = watcher;
+        if (tmp != null) {
+            tmp.close();
+        }
+
         try {
             runner.join();
         } catch (InterruptedException e) {
@@ -357,17 +823,18 @@ public class RelayDiscoveryService implements Runnable {
 
         // dispose all relays
 
-        Iterator<Relay> wi = relays.iterator();
-        while (wi.hasNext()) {
-            Relay relay = wi.next();
-            relay.dispose();
+        List<Relay> relays = snapshot.relays;
+        if (relays != null) {
+            for (Relay relay : relays) {
+                relay.dispose();
+            }
         }
 
         synchronized (Relay.class) {
 
             // clear relays list
 
-            relays.clear();
+            snapshot = new Snapshot(Collections.<Relay>emptyList(), EMPTY.names, EMPTY.handles, EMPTY.groups, snapshot.version + 1);
 
             // unassign relays from deallocator
 
@@ -1,6 +1,8 @@
 package com.github.jrelay;
 
 import java.util.EventObject;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by m.rusakovich on 26.04.2016.
@@ -9,11 +11,22 @@ public class RelayEvent extends EventObject {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Last sequence number assigned to the event.
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong(0);
+
     private RelayEventType type = null;
 
+    private final long sequence;
+
+    private final long timestamp;
+
     public RelayEvent(RelayEventType type, Relay relay) {
         super(relay);
         this.type = type;
+        this.sequence = SEQUENCE.incrementAndGet();
+        this.timestamp = System.nanoTime();
     }
 
     @Override
@@ -25,10 +38,33 @@ public class RelayEvent extends EventObject {
         return type;
     }
 
+    /**
+     * Get event sequence number. Sequence numbers are unique and increase monotonically across
+     * events of all relays, so they can be used to order and deduplicate events.
+     *
+     * @return Event sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get time when event has been created. It's monotonic time, not wall-clock time, so it can
+     * be only compared with timestamps of other events.
+     *
+     * @param unit the time unit
+     * @return Event timestamp
+     */
+    public long getTimestamp(TimeUnit unit) {
+        return unit.convert(timestamp, TimeUnit.NANOSECONDS);
+    }
+
     public String toString(){
         StringBuilder strBuilder = new StringBuilder();
         strBuilder.append("Event: ")
                 .append(getType().name())
+                .append(", sequence: ")
+                .append(getSequence())
                 .append(", source: ")
                 .append(getSource().getDevice().getName());
         return strBuilder.toString();
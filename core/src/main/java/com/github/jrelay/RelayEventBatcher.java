@@ -0,0 +1,355 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects events of all relays in the ring buffer and delivers them to the
+ * {@link RelayBatchListener}s in batches. Batch is delivered as soon as it's full or when the
+ * oldest event in the buffer has waited for the maximum latency, whichever comes first. Batches are
+ * delivered by single batcher thread in order they have been collected.
+ */
+public class RelayEventBatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayEventBatcher.class);
+
+    /**
+     * Default maximum number of events in single batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * Default maximum time event waits in the buffer (ms).
+     */
+    public static final long DEFAULT_MAX_LATENCY = 100;
+
+    /**
+     * Default capacity of the ring buffer.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Thread delivering batches.
+     */
+    public static final class BatcherThread extends Thread {
+
+        public BatcherThread(Runnable r) {
+            super(r, "relay-event-batcher");
+            setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Bounded ring buffer of events waiting to be delivered.
+     */
+    private static final class Ring {
+
+        private final RelayEvent[] events;
+        private int head = 0;
+        private int size = 0;
+
+        public Ring(int capacity) {
+            this.events = new RelayEvent[capacity];
+        }
+
+        public synchronized boolean offer(RelayEvent event) {
+            if (size == events.length) {
+                return false;
+            }
+            events[(head + size) % events.length] = event;
+            if (++size == 1 || size == batchSize) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        /**
+         * Wait until batch is full or the oldest event has waited for maximum latency, then drain
+         * the batch.
+         *
+         * @return Batch of events, never empty
+         * @throws InterruptedException when thread has been interrupted while waiting
+         */
+        public synchronized List<RelayEvent> take() throws InterruptedException {
+
+            while (size == 0) {
+                wait();
+            }
+
+            while (size < batchSize) {
+                long waited = System.nanoTime() - events[head].getTimestamp(TimeUnit.NANOSECONDS);
+                long remaining = maxLatency - waited;
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            int n = Math.min(size, batchSize);
+            List<RelayEvent> batch = new ArrayList<RelayEvent>(n);
+            for (int i = 0; i < n; i++) {
+                batch.add(events[head]);
+                events[head] = null;
+                head = (head + 1) % events.length;
+            }
+            size -= n;
+
+            return Collections.unmodifiableList(batch);
+        }
+    }
+
+    /**
+     * Delivers batches to the listeners.
+     */
+    private static final class Deliverer implements Runnable {
+
+        private final Ring ring;
+
+        public Deliverer(Ring ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+
+                List<RelayEvent> batch = null;
+                try {
+                    batch = ring.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (RelayBatchListener l : LISTENERS) {
+                    try {
+                        l.relayEvents(batch);
+                    } catch (Exception e) {
+                        LOG.error(String.format("Notify relay events, exception when calling %s listener", l.getClass()), e);
+                    }
+                }
+
+                delivered.addAndGet(batch.size());
+            }
+        }
+    }
+
+    private static final RelayEventBatcher INSTANCE = new RelayEventBatcher();
+
+    /**
+     * Batch listeners.
+     */
+    private static final List<RelayBatchListener> LISTENERS = new CopyOnWriteArrayList<RelayBatchListener>();
+
+    /**
+     * Number of events delivered to the listeners.
+     */
+    private static final AtomicLong delivered = new AtomicLong(0);
+
+    /**
+     * Number of events dropped because ring buffer was full.
+     */
+    private static final AtomicLong dropped = new AtomicLong(0);
+
+    private static volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private static volatile long maxLatency = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_LATENCY);
+
+    private static volatile int capacity = DEFAULT_CAPACITY;
+
+    /**
+     * Ring buffer, null when batcher is not started.
+     */
+    private static volatile Ring ring = null;
+
+    /**
+     * Batcher thread, null when batcher is not started.
+     */
+    private static Thread thread = null;
+
+    /**
+     * @return True if there is at least one batch listener
+     */
+    boolean hasListeners() {
+        return !LISTENERS.isEmpty();
+    }
+
+    /**
+     * Post event to be delivered to the batch listeners. This method never waits. When ring buffer
+     * is full, event is dropped.
+     *
+     * @param event the event to be delivered
+     * @return True if event has been posted, false if it was dropped
+     */
+    boolean post(RelayEvent event) {
+        if (getRing().offer(event)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        LOG.warn("Event {} has been dropped, too many pending events", event);
+        return false;
+    }
+
+    private static Ring getRing() {
+
+        Ring current = ring;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (RelayEventBatcher.class) {
+            if (ring == null) {
+                LOG.debug("Starting relay event batcher");
+                Ring tmp = new Ring(capacity);
+                thread = new BatcherThread(new Deliverer(tmp));
+                thread.start();
+                ring = tmp;
+            }
+            return ring;
+        }
+    }
+
+    /**
+     * Add batch listener.
+     *
+     * @param l the listener to be added
+     * @return True if listener has been added
+     */
+    boolean addListener(RelayBatchListener l) {
+        return LISTENERS.add(l);
+    }
+
+    /**
+     * Remove batch listener.
+     *
+     * @param l the listener to be removed
+     * @return True if listener has been removed
+     */
+    boolean removeListener(RelayBatchListener l) {
+        return LISTENERS.remove(l);
+    }
+
+    /**
+     * @return All batch listeners
+     */
+    RelayBatchListener[] getListeners() {
+        return LISTENERS.toArray(new RelayBatchListener[LISTENERS.size()]);
+    }
+
+    /**
+     * Stop batcher thread. Events which has not been delivered yet are discarded.
+     */
+    public void shutdown() {
+
+        Thread tmp = null;
+
+        synchronized (RelayEventBatcher.class) {
+            if (ring == null) {
+                return;
+            }
+            tmp = thread;
+            thread = null;
+            ring = null;
+        }
+
+        LOG.debug("Shutting down relay event batcher");
+
+        tmp.interrupt();
+        try {
+            tmp.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set maximum number of events in single batch. New value is used immediately.
+     *
+     * @param size the maximum batch size
+     * @throws IllegalArgumentException when size is less than 1
+     */
+    public void setBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(String.format("Batch size must be positive (%d)", size));
+        }
+        batchSize = size;
+    }
+
+    /**
+     * @return Maximum number of events in single batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set maximum time event may wait in the buffer before batch is delivered, even if it's not
+     * full. New value is used immediately.
+     *
+     * @param latency the maximum latency
+     * @param unit the time unit
+     * @throws IllegalArgumentException when latency is negative or unit is null
+     */
+    public void setMaxLatency(long latency, TimeUnit unit) {
+        if (latency < 0) {
+            throw new IllegalArgumentException(String.format("Maximum latency cannot be negative (%d)", latency));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+        maxLatency = unit.toNanos(latency);
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Maximum time event may wait in the buffer
+     */
+    public long getMaxLatency(TimeUnit unit) {
+        return unit.convert(maxLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Set capacity of the ring buffer. New value will be used when batcher is started next time.
+     *
+     * @param capacity the maximum number of pending events
+     * @throws IllegalArgumentException when capacity is less than 1
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Ring buffer capacity must be positive (%d)", capacity));
+        }
+        RelayEventBatcher.capacity = capacity;
+    }
+
+    /**
+     * @return Capacity of the ring buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of events delivered to the listeners
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return Number of events dropped because ring buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public static RelayEventBatcher getInstance() {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,351 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatcher delivering relay events to the listeners. All relays share the same, fixed number of
+ * dispatcher threads, so listeners are never called by the thread which switches the relay.
+ * Every relay has its own bounded mailbox and events of single relay are always delivered one by
+ * one, in order they have been posted, while events of different relays are delivered in parallel.
+ * Slow or throwing listener occupies only one dispatcher thread and delays only events of its own
+ * relay.
+ */
+public class RelayEventDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayEventDispatcher.class);
+
+    /**
+     * Default number of dispatcher threads.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Default capacity of single relay mailbox.
+     */
+    public static final int DEFAULT_MAILBOX_CAPACITY = 256;
+
+    /**
+     * Maximum number of events delivered from single mailbox before other mailboxes get their turn.
+     */
+    private static final int BATCH = 32;
+
+    /**
+     * Thread delivering relay events.
+     */
+    public static final class DispatcherThread extends Thread {
+
+        private static final AtomicInteger N = new AtomicInteger(0);
+
+        public DispatcherThread(Runnable r) {
+            super(r, String.format("relay-event-dispatcher-%d", N.incrementAndGet()));
+            setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Bounded queue of events posted by single relay. Events are stored in the ring buffer
+     * allocated once, so posting an event does not allocate anything.
+     */
+    static final class Mailbox {
+
+        private final Relay relay;
+        private final RelayEvent[] events;
+        private int head = 0;
+        private int size = 0;
+
+        /**
+         * Is mailbox waiting for or being served by dispatcher thread.
+         */
+        private boolean scheduled = false;
+
+        public Mailbox(Relay relay, int capacity) {
+            this.relay = relay;
+            this.events = new RelayEvent[capacity];
+        }
+
+        /**
+         * Add event to the mailbox.
+         *
+         * @param event the event to be added
+         * @return True if mailbox has to be scheduled, false if it's already scheduled
+         * @throws IllegalStateException when mailbox is full
+         */
+        private synchronized boolean add(RelayEvent event) {
+            if (size == events.length) {
+                throw new IllegalStateException("Mailbox is full");
+            }
+            events[(head + size) % events.length] = event;
+            size++;
+            if (scheduled) {
+                return false;
+            }
+            return scheduled = true;
+        }
+
+        /**
+         * @return Next event or null if mailbox is empty, in which case it's no more scheduled
+         */
+        private synchronized RelayEvent poll() {
+            if (size == 0) {
+                scheduled = false;
+                return null;
+            }
+            RelayEvent event = events[head];
+            events[head] = null;
+            head = (head + 1) % events.length;
+            size--;
+            return event;
+        }
+
+        /**
+         * Deliver events from this mailbox, but not more than given number of them.
+         *
+         * @param max the maximum number of events to be delivered
+         * @return True if there are still events to be delivered, false if mailbox is empty
+         */
+        private boolean deliver(int max) {
+            for (int i = 0; i < max; i++) {
+                RelayEvent event = poll();
+                if (event == null) {
+                    return false;
+                }
+                relay.notifyListeners(event);
+                delivered.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Serves mailboxes which has been scheduled.
+     */
+    private static final class Worker implements Runnable {
+
+        private final ArrayDeque<Mailbox> ready;
+
+        public Worker(ArrayDeque<Mailbox> ready) {
+            this.ready = ready;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+
+                Mailbox mailbox = null;
+                synchronized (ready) {
+                    while ((mailbox = ready.pollFirst()) == null) {
+                        try {
+                            ready.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+
+                boolean more = false;
+                try {
+                    more = mailbox.deliver(BATCH);
+                } catch (Throwable t) {
+                    LOG.error("Exception when delivering relay event", t);
+                    more = true;
+                }
+
+                // give other mailboxes a chance, busy mailbox goes to the end of the queue
+
+                if (more) {
+                    synchronized (ready) {
+                        ready.addLast(mailbox);
+                        ready.notify();
+                    }
+                }
+            }
+        }
+    }
+
+    private static final RelayEventDispatcher INSTANCE = new RelayEventDispatcher();
+
+    /**
+     * Number of events delivered to the listeners.
+     */
+    private static final AtomicLong delivered = new AtomicLong(0);
+
+    /**
+     * Number of events dropped because relay mailbox was full.
+     */
+    private static final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * Mailboxes which are ready to be served.
+     */
+    private static final ArrayDeque<Mailbox> ready = new ArrayDeque<Mailbox>();
+
+    /**
+     * Dispatcher threads, null when dispatcher is not started.
+     */
+    private static List<Thread> workers = null;
+
+    private static volatile boolean started = false;
+
+    private static volatile int threads = DEFAULT_THREADS;
+
+    private static volatile int mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+
+    /**
+     * Create mailbox for the given relay.
+     *
+     * @param relay the relay
+     * @return New mailbox
+     */
+    Mailbox createMailbox(Relay relay) {
+        return new Mailbox(relay, mailboxCapacity);
+    }
+
+    /**
+     * Post event to be delivered to the relay listeners. This method never waits. When relay
+     * mailbox is full, event is dropped.
+     *
+     * @param mailbox the relay mailbox
+     * @param event the event to be delivered
+     * @return True if event has been posted, false if it was dropped
+     */
+    boolean post(Mailbox mailbox, RelayEvent event) {
+
+        boolean schedule = false;
+        try {
+            schedule = mailbox.add(event);
+        } catch (IllegalStateException e) {
+            dropped.incrementAndGet();
+            LOG.warn("Event {} has been dropped, too many pending events", event);
+            return false;
+        }
+
+        if (schedule) {
+            start();
+            synchronized (ready) {
+                ready.addLast(mailbox);
+                ready.notify();
+            }
+        }
+
+        return true;
+    }
+
+    private static void start() {
+
+        if (started) {
+            return;
+        }
+
+        synchronized (RelayEventDispatcher.class) {
+            if (started) {
+                return;
+            }
+            LOG.debug("Starting relay event dispatcher with {} threads", threads);
+            workers = new ArrayList<Thread>(threads);
+            for (int i = 0; i < threads; i++) {
+                Thread t = new DispatcherThread(new Worker(ready));
+                workers.add(t);
+                t.start();
+            }
+            started = true;
+        }
+    }
+
+    /**
+     * Stop dispatcher threads. Events which has not been delivered yet remain in their mailboxes
+     * and will be delivered when dispatcher is started again.
+     */
+    public void shutdown() {
+
+        List<Thread> tmp = null;
+
+        synchronized (RelayEventDispatcher.class) {
+            if (!started) {
+                return;
+            }
+            tmp = workers;
+            workers = null;
+            started = false;
+        }
+
+        LOG.debug("Shutting down relay event dispatcher");
+
+        for (Thread t : tmp) {
+            t.interrupt();
+        }
+        for (Thread t : tmp) {
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Set number of dispatcher threads. New value will be used when dispatcher is started next
+     * time.
+     *
+     * @param n the number of threads
+     * @throws IllegalArgumentException when n is less than 1
+     */
+    public void setThreads(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException(String.format("Number of dispatcher threads must be positive (%d)", n));
+        }
+        threads = n;
+    }
+
+    /**
+     * @return Number of dispatcher threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set capacity of the relay mailbox. New value is used by relays created afterwards.
+     *
+     * @param capacity the maximum number of pending events of single relay
+     * @throws IllegalArgumentException when capacity is less than 1
+     */
+    public void setMailboxCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Mailbox capacity must be positive (%d)", capacity));
+        }
+        mailboxCapacity = capacity;
+    }
+
+    /**
+     * @return Capacity of the relay mailbox
+     */
+    public int getMailboxCapacity() {
+        return mailboxCapacity;
+    }
+
+    /**
+     * @return Number of events delivered to the listeners
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return Number of events dropped because relay mailbox was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public static RelayEventDispatcher getInstance() {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of asynchronous relay operation. In addition to the standard {@link Future} methods it
+ * allows to register callbacks which are invoked when operation completes, so caller thread does
+ * not have to wait for the result. Relay operations cannot be cancelled once submitted.
+ *
+ * @param <V> the result type
+ */
+public class RelayFuture<V> implements Future<V> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayFuture.class);
+
+    /**
+     * Callback invoked when asynchronous operation completes. Callbacks are usually invoked by the
+     * processor thread, so they should return quickly and never block.
+     *
+     * @param <V> the result type
+     */
+    public static interface Callback<V> {
+
+        /**
+         * Operation completed successfully.
+         *
+         * @param result the operation result
+         */
+        void completed(V result);
+
+        /**
+         * Operation failed.
+         *
+         * @param t the failure cause
+         */
+        void failed(Throwable t);
+    }
+
+    private final List<Callback<? super V>> callbacks = new ArrayList<Callback<? super V>>(1);
+
+    private volatile boolean done = false;
+
+    private volatile V result = null;
+
+    private volatile Throwable throwable = null;
+
+    /**
+     * Create future which is already completed with given result.
+     *
+     * @param result the result
+     * @param <V> the result type
+     * @return Completed future
+     */
+    public static <V> RelayFuture<V> completed(V result) {
+        RelayFuture<V> future = new RelayFuture<V>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * Create future which has already failed with given cause.
+     *
+     * @param t the failure cause
+     * @param <V> the result type
+     * @return Failed future
+     */
+    public static <V> RelayFuture<V> failed(Throwable t) {
+        RelayFuture<V> future = new RelayFuture<V>();
+        future.fail(t);
+        return future;
+    }
+
+    /**
+     * Complete operation with given result.
+     *
+     * @param result the operation result
+     * @return True if future has been completed, false if it was already done
+     */
+    public boolean complete(V result) {
+        int n = 0;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            n = callbacks.size();
+            done = true;
+            notifyAll();
+        }
+        notifyCompleted(n);
+        return true;
+    }
+
+    /**
+     * Complete operation with failure.
+     *
+     * @param t the failure cause
+     * @return True if future has been completed, false if it was already done
+     * @throws IllegalArgumentException when cause is null
+     */
+    public boolean fail(Throwable t) {
+        if (t == null) {
+            throw new IllegalArgumentException("Failure cause cannot be null");
+        }
+        int n = 0;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.throwable = t;
+            n = callbacks.size();
+            done = true;
+            notifyAll();
+        }
+        notifyCompleted(n);
+        return true;
+    }
+
+    /**
+     * Add callback to be invoked when operation completes. If operation is already completed, the
+     * callback is invoked immediately by the calling thread.
+     *
+     * @param callback the callback to be added
+     * @throws IllegalArgumentException when callback is null
+     */
+    public void addCallback(Callback<? super V> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback cannot be null");
+        }
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notifyCompleted(callback);
+    }
+
+    /**
+     * Invoke callbacks registered before future has been completed. No callback can be added once
+     * future is done, so the list can be safely iterated without lock. Index based loop is used so
+     * that nothing is allocated when there is no callback.
+     *
+     * @param n the number of registered callbacks
+     */
+    private void notifyCompleted(int n) {
+        for (int i = 0; i < n; i++) {
+            notifyCompleted(callbacks.get(i));
+        }
+    }
+
+    private void notifyCompleted(Callback<? super V> callback) {
+        try {
+            if (throwable == null) {
+                callback.completed(result);
+            } else {
+                callback.failed(throwable);
+            }
+        } catch (Exception e) {
+            LOG.error(String.format("Exception when calling future callback %s", callback.getClass()), e);
+        }
+    }
+
+    /**
+     * Wait for operation to be completed, no matter if successfully or not.
+     *
+     * @throws InterruptedException when thread has been interrupted
+     */
+    public void await() throws InterruptedException {
+        synchronized (this) {
+            while (!done) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Wait for operation to be completed, no matter if successfully or not.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit
+     * @return True if operation has been completed, false if timeout elapsed
+     * @throws InterruptedException when thread has been interrupted
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        synchronized (this) {
+            while (!done) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                nanos = deadline - System.nanoTime();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Make this future incomplete again, so it can be reused by the next operation. It must only
+     * be called by the owner of the future, when nobody else waits for it anymore.
+     */
+    synchronized void reset() {
+        callbacks.clear();
+        result = null;
+        throwable = null;
+        done = false;
+    }
+
+    /**
+     * @return Failure cause or null if operation has not failed (yet)
+     */
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    /**
+     * Relay operations cannot be cancelled, this method always returns false.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!await(timeout, unit)) {
+            throw new TimeoutException(String.format("Relay operation has not been completed in %d %s", timeout, unit));
+        }
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        if (throwable != null) {
+            throw new ExecutionException(throwable);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.jrelay;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * This interface may be implemented by relay drivers supporting discovery whose devices are
+ * represented by device nodes (e.g. serial ports in /dev on Linux). Instead of re-enumerating
+ * all the devices once per scan interval, discovery service watches directories of the device
+ * nodes and re-probes only nodes which have been created or deleted. Polling is still used when
+ * hotplug is not possible or directories cannot be watched.
+ *
+ * @see RelayDiscoverySupport
+ */
+public interface RelayHotplugSupport {
+
+    /**
+     * Check if hotplug can be used, e.g. because driver runs on Linux and hotplug has been
+     * enabled. When this method returns false, devices are discovered by polling.
+     *
+     * @return True if hotplug is possible, false otherwise
+     */
+    boolean isHotplugPossible();
+
+    /**
+     * Get directories where device nodes are created and deleted. Directories which do not exist
+     * are not watched.
+     *
+     * @return Directories to be watched
+     */
+    List<File> getHotplugDirectories();
+
+    /**
+     * Check if file created or deleted in watched directory may be node of the driver device.
+     * Other files are ignored.
+     *
+     * @param node the file
+     * @return True if file may be device node, false otherwise
+     */
+    boolean isHotplugNode(File node);
+
+    /**
+     * Get node of the device.
+     *
+     * @param device the device of this driver
+     * @return Device node or null if device has no node
+     */
+    File getHotplugNode(RelayDevice device);
+
+    /**
+     * Probe single device node.
+     *
+     * @param node the device node
+     * @return Devices available on the node, empty list if there is none or node does not exist
+     */
+    List<RelayDevice> getDevices(File node);
+}
@@ -0,0 +1,137 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directories of device nodes for nodes being created and deleted. Events which come in
+ * quick succession (e.g. all nodes of single plugged device) are collected together, so the
+ * affected nodes are re-probed once.
+ *
+ * @see RelayHotplugSupport
+ */
+final class RelayHotplugWatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayHotplugWatcher.class);
+
+    /**
+     * Time (ms) to wait for more events after the first one has been received.
+     */
+    static final long SETTLE_TIME = 50;
+
+    private final RelayHotplugSupport support;
+
+    private final WatchService service;
+
+    /**
+     * Watched directories by their keys, keys of directories which have been deleted are removed.
+     */
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    /**
+     * Start watching hotplug directories of the driver.
+     *
+     * @param support the driver supporting hotplug
+     * @throws IOException when there is no directory which can be watched
+     */
+    RelayHotplugWatcher(RelayHotplugSupport support) throws IOException {
+
+        this.support = support;
+        this.service = FileSystems.getDefault().newWatchService();
+
+        for (File directory : support.getHotplugDirectories()) {
+            if (!directory.isDirectory()) {
+                LOG.debug("Hotplug directory {} does not exist", directory);
+                continue;
+            }
+            try {
+                Path path = directory.toPath();
+                directories.put(path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE), path);
+            } catch (IOException e) {
+                LOG.warn(String.format("Cannot watch hotplug directory %s", directory), e);
+            }
+        }
+
+        if (directories.isEmpty()) {
+            service.close();
+            throw new IOException("There is no hotplug directory to watch");
+        }
+    }
+
+    /**
+     * Wait until device nodes are created or deleted. Node which has been deleted is also added to
+     * the given set, even if it has been created again within the same batch, since its devices
+     * are not the same anymore.
+     *
+     * @param deleted the set to which nodes deleted in this batch are added
+     * @return Nodes which have been created or deleted, or null if events have been lost and all
+     *         devices have to be scanned
+     * @throws InterruptedException when thread has been interrupted
+     * @throws java.nio.file.ClosedWatchServiceException when watcher has been closed
+     */
+    Set<File> take(Set<File> deleted) throws InterruptedException {
+
+        Set<File> nodes = new LinkedHashSet<File>();
+        boolean overflow = false;
+
+        WatchKey key = service.take();
+
+        do {
+
+            Path directory = directories.get(key);
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else if (directory != null) {
+                    File node = directory.resolve((Path) event.context()).toFile();
+                    if (support.isHotplugNode(node)) {
+                        nodes.add(node);
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            deleted.add(node);
+                        }
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                LOG.warn("Hotplug directory {} cannot be watched anymore", directory);
+                directories.remove(key);
+            }
+
+        } while ((key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null);
+
+        return overflow ? null : nodes;
+    }
+
+    /**
+     * @return True if there is still any directory being watched
+     */
+    boolean isValid() {
+        return !directories.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            LOG.trace("Cannot close hotplug watcher", e);
+        }
+    }
+}
@@ -3,17 +3,24 @@ package com.github.jrelay;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  *
  *  This class is used as a global (system) lock preventing other processes from using the same
- * relay while it's open. Whenever relay is open there is a thread running in background which
- * updates the lock once per 2 seconds. Lock is being released whenever relay is either closed or
- * completely disposed. Lock will remain for at least 2 seconds in case when JVM has not been
- * gracefully terminated (due to SIGSEGV, SIGTERM, etc).
+ * relay while it's open. Whenever relay is open the lock is updated by {@link RelayLockHeartbeat}
+ * once per interval (2 seconds by default), which extends the lock lease. Lock is being released
+ * whenever relay is either closed or completely disposed. Lock will remain until its lease expires
+ * in case when JVM has not been gracefully terminated (due to SIGSEGV, SIGTERM, etc). Locks of all
+ * relays are kept in the shared {@link RelayLockTable}.
+ *
+ * Every time the lock is acquired it gets new fencing token, which is greater than all tokens
+ * handed out for the relay before. Tasks switching the relay carry the token and they are
+ * rejected when the lock has been lost in the meantime, e.g. because the process has been paused
+ * for longer than the lease and other process has taken the relay over.
  *
  * Created by m.rusakovich on 27.04.2016.
  */
@@ -25,52 +32,17 @@ public class RelayLock {
     private static final Logger LOG = LoggerFactory.getLogger(RelayLock.class);
 
     /**
-     * Update interval (ms).
-     */
-    public static final long INTERVAL = 2000;
-
-    /**
-     * Used to update lock state.
+     * Default update interval (ms).
      *
-     * @author sarxos
+     * @see RelayLockHeartbeat#setInterval(long, java.util.concurrent.TimeUnit)
      */
-    private class LockUpdater extends Thread {
-
-        public LockUpdater() {
-            super();
-            setName(String.format("relay-lock-[%s]", relay.getName()));
-            setDaemon(true);
-            setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
-        }
-
-        @Override
-        public void run() {
-            do {
-                if (disabled.get()) {
-                    return;
-                }
-                update();
-                try {
-                    Thread.sleep(INTERVAL);
-                } catch (InterruptedException e) {
-                    LOG.debug("Lock updater has been interrupted");
-                    return;
-                }
-            } while (locked.get());
-        }
-
-    }
+    public static final long INTERVAL = 2000;
 
     /**
      * And the relay we will be locking.
      */
     private final Relay relay;
 
-    /**
-     * Updater thread. It will update the lock value in fixed interval.
-     */
-    private Thread updater = null;
-
     /**
      * Is relay locked (local, not cross-VM variable).
      */
@@ -82,9 +54,19 @@ public class RelayLock {
     private final AtomicBoolean disabled = new AtomicBoolean(false);
 
     /**
-     * Lock file.
+     * Slot of the relay in lock table, -1 until it's known.
      */
-    private final File lock;
+    private volatile int slot = -1;
+
+    /**
+     * Generation of the slot when it has been claimed by this lock.
+     */
+    private volatile long generation = 0;
+
+    /**
+     * Has the lock been taken over by other process while it was held.
+     */
+    private volatile boolean lost = false;
 
     /**
      * Creates global relay lock.
@@ -94,176 +76,41 @@ public class RelayLock {
     protected RelayLock(Relay relay) {
         super();
         this.relay = relay;
-        this.lock = new File(System.getProperty("java.io.tmpdir"), getLockName());
-        this.lock.deleteOnExit();
     }
 
-    private String getLockName() {
-        return String.format(".relay-lock-%d", Math.abs(relay.getName().hashCode()));
+    /**
+     * @return Time (ms) when lock updated now expires, which is after the lease duration
+     */
+    private static long getExpires() {
+        return System.currentTimeMillis() + RelayLockHeartbeat.getInstance().getLeaseDuration(TimeUnit.MILLISECONDS);
     }
 
-    private void write(long value) {
-
-        if (disabled.get()) {
-            return;
-        }
-
-        String name = getLockName();
-
-        File tmp = null;
-        DataOutputStream dos = null;
-
-        try {
-
-            tmp = File.createTempFile(String.format("%s-tmp", name), "");
-            tmp.deleteOnExit();
-
-            dos = new DataOutputStream(new FileOutputStream(tmp));
-            dos.writeLong(value);
-            dos.flush();
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (dos != null) {
-                try {
-                    dos.close();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-
-        if (!locked.get()) {
-            return;
-        }
-
-        if (tmp.renameTo(lock)) {
-
-            // atomic rename operation can fail (mostly on Windows), so we
-            // simply jump out the method if it succeed, or try to rewrite
-            // content using streams if it fail
-
-            return;
-        } else {
-
-            // create lock file if not exist
-
-            if (!lock.exists()) {
-                try {
-                    if (lock.createNewFile()) {
-                        LOG.info("Lock file {} for {} has been created", lock, relay);
-                    } else {
-                        throw new RuntimeException("Not able to create file " + lock);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-
-            FileOutputStream fos = null;
-            FileInputStream fis = null;
-
-            int k = 0;
-            int n = -1;
-            byte[] buffer = new byte[8];
-            boolean rewritten = false;
-
-            // rewrite temporary file content to lock, try max 5 times
-            synchronized (relay) {
-                do {
-                    try {
-
-                        fos = new FileOutputStream(lock);
-                        fis = new FileInputStream(tmp);
-                        while ((n = fis.read(buffer)) != -1) {
-                            fos.write(buffer, 0, n);
-                        }
-                        rewritten = true;
-
-                    } catch (IOException e) {
-                        LOG.debug("Not able to rewrite lock file", e);
-                    } finally {
-                        if (fos != null) {
-                            try {
-                                fos.close();
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                        if (fis != null) {
-                            try {
-                                fis.close();
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    }
-                    if (rewritten) {
-                        break;
-                    }
-                } while (k++ < 5);
-            }
-
-            if (!rewritten) {
-                throw new RelayException("Not able to write lock file");
-            }
-
-            // remove temporary file
-
-            if (!tmp.delete()) {
-                tmp.deleteOnExit();
-            }
-        }
-
+    /**
+     * @return Slot of the relay in lock table, -1 if relay has never been locked
+     */
+    int getSlot() {
+        return slot;
     }
 
-    private long read() {
+    /**
+     * Update the lock. This method is called by {@link RelayLockHeartbeat} thread.
+     */
+    void heartbeat() {
 
         if (disabled.get()) {
-            return -1;
+            return;
         }
 
-        DataInputStream dis = null;
-
-        long value = -1;
-        boolean broken = false;
+        // heartbeat must never be written after lock has been released
 
-        synchronized (relay) {
-
-            try {
-                value = (dis = new DataInputStream(new FileInputStream(lock))).readLong();
-            } catch (EOFException e) {
-                LOG.debug("Relay lock is broken - EOF when reading long variable from stream", e);
-                broken = true;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } finally {
-                if (dis != null) {
-                    try {
-                        dis.close();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            }
-
-            if (broken) {
-                LOG.warn("Relay file {} for {} is broken - recreating it", lock, relay);
-                write(-1);
+        synchronized (this) {
+            if (locked.get() && !RelayLockTable.getInstance().heartbeat(slot, generation, getExpires())) {
+                LOG.warn("Lock of {} has been taken over by other process", relay);
+                lost = true;
+                locked.set(false);
+                RelayLockHeartbeat.getInstance().unregister(this);
             }
         }
-
-        return value;
-    }
-
-    private void update() {
-
-        if (disabled.get()) {
-            return;
-        }
-
-        write(System.currentTimeMillis());
     }
 
     /**
@@ -279,16 +126,30 @@ public class RelayLock {
             throw new RelayLockException(String.format("Relay %s has already been locked", relay.getName()));
         }
 
-        if (!locked.compareAndSet(false, true)) {
-            return;
-        }
+        // token must never be read before generation of the new claim is known
+
+        synchronized (this) {
 
-        LOG.debug("Lock {}", relay);
+            if (!locked.compareAndSet(false, true)) {
+                return;
+            }
+
+            LOG.debug("Lock {}", relay);
+
+            RelayLockTable table = RelayLockTable.getInstance();
+
+            try {
+                slot = table.claim(relay.getName(), getExpires());
+            } catch (RelayException e) {
+                locked.set(false);
+                throw e;
+            }
 
-        update();
+            generation = table.getGeneration(slot);
+            lost = false;
+        }
 
-        updater = new LockUpdater();
-        updater.start();
+        RelayLockHeartbeat.getInstance().register(this);
     }
 
     /**
@@ -298,9 +159,7 @@ public class RelayLock {
     public void disable() {
         if (disabled.compareAndSet(false, true)) {
             LOG.info("Locking mechanism has been disabled in {}", relay);
-            if (updater != null) {
-                updater.interrupt();
-            }
+            RelayLockHeartbeat.getInstance().unregister(this);
         }
     }
 
@@ -315,19 +174,17 @@ public class RelayLock {
             return;
         }
 
-        if (!locked.compareAndSet(true, false)) {
-            return;
+        synchronized (this) {
+            lost = false;
+            if (!locked.compareAndSet(true, false)) {
+                return;
+            }
+            RelayLockTable.getInstance().release(slot, generation);
         }
 
         LOG.debug("Unlock {}", relay);
 
-        updater.interrupt();
-
-        write(-1);
-
-        if (!lock.delete()) {
-            lock.deleteOnExit();
-        }
+        RelayLockHeartbeat.getInstance().unregister(this);
     }
 
     /**
@@ -349,26 +206,86 @@ public class RelayLock {
             return true;
         }
 
-        // check if locked by other process
+        // check if locked by other process or other lock of the current process, slot is
+        // looked up every time, since slot which is not locked can be reused by other relay
 
-        if (!lock.exists()) {
-            return false;
+        RelayLockTable table = RelayLockTable.getInstance();
+
+        if (LOG.isTraceEnabled()) {
+            int tmp = table.find(relay.getName());
+            if (tmp != -1) {
+                LOG.trace("Lock expires {} owner {} for {}", table.getExpires(tmp), table.getOwner(tmp), relay);
+            }
         }
 
-        long now = System.currentTimeMillis();
-        long tsp = read();
+        return table.isLocked(relay.getName());
+    }
 
-        LOG.trace("Lock timestamp {} now {} for {}", tsp, now, relay);
+    /**
+     * Check if relay is locked by this lock, which means by the current process.
+     *
+     * @return True if lock is held, false otherwise
+     */
+    public boolean isHeld() {
+        return !disabled.get() && locked.get();
+    }
 
-        if (tsp > now - INTERVAL * 2) {
-            return true;
+    /**
+     * Get fencing token of the lock. Token is assigned when lock is acquired and it's greater than
+     * tokens of all previous owners of the relay, no matter which process they were.
+     *
+     * @return Fencing token or -1 if lock is not held
+     */
+    public synchronized long getFencingToken() {
+        return isHeld() ? generation : -1;
+    }
+
+    /**
+     * Check if the fencing token is still valid, which means the lock acquired with this token has
+     * neither been released nor expired.
+     *
+     * @param token the fencing token
+     * @throws RelayLockException when token is stale
+     * @see #getFencingToken()
+     */
+    public void validate(long token) {
+        if (disabled.get()) {
+            return;
         }
+        int tmp = slot;
+        if (tmp == -1 || token != generation || !RelayLockTable.getInstance().isCurrent(tmp, token)) {
+            throw new RelayLockException(String.format("Fencing token %d of relay %s is stale", token, relay.getName()));
+        }
+    }
 
-        return false;
+    /**
+     * Check if this process may still switch the relay. Relay which is locked by this process may
+     * be switched as long as the lock is valid, relay whose lock has been taken over by other
+     * process may not be switched until it's locked again, and relay which is not locked at all
+     * is not fenced.
+     *
+     * @return Fencing token of the held lock or -1 if lock is not held
+     * @throws RelayLockException when lock has been lost to other process
+     */
+    synchronized long fence() {
+        if (disabled.get()) {
+            return -1;
+        }
+        if (lost) {
+            throw new RelayLockException(String.format("Lock of relay %s has been taken over by other process", relay.getName()));
+        }
+        long token = getFencingToken();
+        if (token != -1) {
+            validate(token);
+        }
+        return token;
     }
 
+    /**
+     * @return File of the lock table shared by all relays
+     */
     public File getLockFile() {
-        return lock;
+        return RelayLockTable.getInstance().getFile();
     }
 
 }
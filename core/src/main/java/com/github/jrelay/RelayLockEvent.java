@@ -0,0 +1,81 @@
+package com.github.jrelay;
+
+import java.util.EventObject;
+
+/**
+ * This event is generated when relay has been locked or unlocked by other process.
+ */
+public class RelayLockEvent extends EventObject {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Event type informing that relay has been locked by other process.
+     */
+    public static final int LOCKED = 1;
+
+    /**
+     * Event type informing that relay is no more locked by other process.
+     */
+    public static final int UNLOCKED = 2;
+
+    /**
+     * Event type (locked / unlocked).
+     */
+    private final int type;
+
+    /**
+     * Identifier of the other process.
+     */
+    private final long owner;
+
+    /**
+     * Create new relay lock event.
+     *
+     * @param relay the relay which has been locked or unlocked
+     * @param type the event type
+     * @param owner the identifier of the process owning the lock
+     * @see #LOCKED
+     * @see #UNLOCKED
+     */
+    public RelayLockEvent(Relay relay, int type, long owner) {
+        super(relay);
+        this.type = type;
+        this.owner = owner;
+    }
+
+    /**
+     * Return the relay which has been locked or unlocked.
+     *
+     * @return Relay instance
+     */
+    public Relay getRelay() {
+        return (Relay) getSource();
+    }
+
+    /**
+     * Return event type (locked / unlocked)
+     *
+     * @return Integer value
+     * @see #LOCKED
+     * @see #UNLOCKED
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Return identifier of the process which has locked (or unlocked) the relay.
+     *
+     * @return Process identifier or 0 if it is not known
+     */
+    public long getOwner() {
+        return owner;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Event: %s, source: %s, owner: %d", type == LOCKED ? "LOCKED" : "UNLOCKED", getRelay().getName(), owner);
+    }
+
+}
@@ -0,0 +1,341 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single thread updating heartbeats of all relay locks held by this process. All held locks are
+ * updated in one pass once per interval, so the number of open relays costs neither threads nor
+ * wakeups. Every pass is measured, so heartbeat lag can be observed before locks start looking
+ * abandoned to other processes, which happens when lock has not been updated for the lease
+ * duration (two intervals by default). Short lease lets other process take relays over quickly
+ * when this one crashes, at the cost of more frequent heartbeats.
+ */
+public class RelayLockHeartbeat {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayLockHeartbeat.class);
+
+    /**
+     * Thread updating the heartbeats.
+     */
+    public static final class HeartbeatThread extends Thread {
+
+        public HeartbeatThread(Runnable r) {
+            super(r, "relay-lock-heartbeat");
+            setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
+            setDaemon(true);
+        }
+    }
+
+    private final class Beater implements Runnable {
+
+        @Override
+        public void run() {
+
+            // first pass is done immediately
+
+            long last = System.nanoTime() - interval;
+
+            while (true) {
+
+                // interval is read again when thread is unparked, so its change applies at once
+
+                long next = 0;
+                long sleep = 0;
+                while ((sleep = (next = last + interval) - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, sleep);
+                    if (Thread.interrupted()) {
+                        return;
+                    }
+                }
+
+                long start = System.nanoTime();
+
+                AtomicReferenceArray<RelayLock> tmp = locks;
+                for (int i = 0; i < tmp.length(); i++) {
+                    RelayLock lock = tmp.get(i);
+                    if (lock == null) {
+                        continue;
+                    }
+                    try {
+                        lock.heartbeat();
+                    } catch (Exception e) {
+                        LOG.error(String.format("Cannot update heartbeat of %s", lock), e);
+                    }
+                }
+
+                long end = System.nanoTime();
+                long period = interval;
+
+                lag = start - next;
+                duration = end - start;
+                maxLag = Math.max(maxLag, lag);
+                ticks++;
+
+                // previous heartbeat was done one period before the scheduled one
+
+                long late = lag + duration;
+                if (late > getLeaseDuration(TimeUnit.NANOSECONDS) - period) {
+                    LOG.error("Relay lock heartbeat is late by {} ms, leases of relay locks may have expired", TimeUnit.NANOSECONDS.toMillis(late));
+                } else if (late > period) {
+                    LOG.warn("Relay lock heartbeat is late by {} ms, locks may look abandoned to other processes", TimeUnit.NANOSECONDS.toMillis(late));
+                }
+
+                // when late, keep the period from now rather than trying to catch up
+
+                last = end - next > period ? end : next;
+            }
+        }
+    }
+
+    private static final RelayLockHeartbeat INSTANCE = new RelayLockHeartbeat();
+
+    /**
+     * Locks held by this process indexed by their lock table slots, so that registering a lock
+     * allocates nothing. Empty until the first lock is registered.
+     */
+    private volatile AtomicReferenceArray<RelayLock> locks = new AtomicReferenceArray<RelayLock>(0);
+
+    /**
+     * Number of locks held by this process.
+     */
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    private volatile long interval = TimeUnit.MILLISECONDS.toNanos(RelayLock.INTERVAL);
+
+    /**
+     * Lease duration (ns), 0 when lease is two heartbeat intervals.
+     */
+    private volatile long lease = 0;
+
+    private volatile long ticks = 0;
+    private volatile long lag = 0;
+    private volatile long maxLag = 0;
+    private volatile long duration = 0;
+
+    /**
+     * Heartbeat thread, null when it is not started.
+     */
+    private Thread thread = null;
+
+    private RelayLockHeartbeat() {
+    }
+
+    /**
+     * Start updating heartbeat of the lock.
+     *
+     * @param lock the held lock
+     */
+    void register(RelayLock lock) {
+
+        int slot = lock.getSlot();
+
+        synchronized (this) {
+            if (locks.length() == 0) {
+                locks = new AtomicReferenceArray<RelayLock>(RelayLockTable.getInstance().getSlots());
+            }
+            if (locks.getAndSet(slot, lock) == null) {
+                count.incrementAndGet();
+            }
+            if (thread == null) {
+                LOG.debug("Starting relay lock heartbeat");
+                thread = new HeartbeatThread(new Beater());
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stop updating heartbeat of the lock.
+     *
+     * @param lock the released lock
+     */
+    void unregister(RelayLock lock) {
+        int slot = lock.getSlot();
+        AtomicReferenceArray<RelayLock> tmp = locks;
+        if (slot != -1 && slot < tmp.length() && tmp.compareAndSet(slot, lock, null)) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * Release all locks held by this process, so other processes can use the relays immediately
+     * instead of waiting for the leases to expire. Relays are not closed. This is done on clean
+     * exit, after relays have been disposed.
+     *
+     * @return Number of locks which have been released
+     */
+    public int releaseAll() {
+        int released = 0;
+        AtomicReferenceArray<RelayLock> tmp = locks;
+        for (int i = 0; i < tmp.length(); i++) {
+            RelayLock lock = tmp.get(i);
+            if (lock == null) {
+                continue;
+            }
+            try {
+                if (lock.isHeld()) {
+                    lock.unlock();
+                    released++;
+                }
+            } catch (Exception e) {
+                LOG.error(String.format("Cannot release %s", lock), e);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Stop heartbeat thread. Locks which are still held will look abandoned to other processes
+     * when their leases expire.
+     */
+    public void shutdown() {
+
+        Thread tmp = null;
+
+        synchronized (this) {
+            if (thread == null) {
+                return;
+            }
+            tmp = thread;
+            thread = null;
+        }
+
+        LOG.debug("Shutting down relay lock heartbeat");
+
+        tmp.interrupt();
+        try {
+            tmp.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set heartbeat interval. Lock held by this process is considered abandoned when it has not
+     * been updated for the lease duration, and since this is decided when lock is updated,
+     * processes sharing relays may use different intervals. New value is used from the next
+     * heartbeat.
+     *
+     * @param interval the heartbeat interval
+     * @param unit the time unit
+     * @throws IllegalArgumentException when interval is not positive, it's not shorter than the
+     *             lease duration set explicitly, or unit is null
+     * @see #setLeaseDuration(long, TimeUnit)
+     */
+    public void setInterval(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException(String.format("Heartbeat interval must be positive (%d)", interval));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+
+        long nanos = unit.toNanos(interval);
+        long tmp = lease;
+        if (tmp != 0 && nanos >= tmp) {
+            throw new IllegalArgumentException(String.format("Heartbeat interval (%d ns) must be shorter than lease duration (%d ns)", nanos, tmp));
+        }
+
+        this.interval = nanos;
+
+        synchronized (this) {
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Heartbeat interval
+     */
+    public long getInterval(TimeUnit unit) {
+        return unit.convert(interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Set lease duration, which is the time after which lock not updated by its owner is
+     * considered abandoned and the relay can be taken over by other process. Lease has to be
+     * longer than the heartbeat interval, and the difference is the time the heartbeat may be
+     * late before the lease is lost. New value is used from the next heartbeat.
+     *
+     * @param lease the lease duration
+     * @param unit the time unit
+     * @throws IllegalArgumentException when lease is not longer than heartbeat interval or unit is
+     *             null
+     */
+    public void setLeaseDuration(long lease, TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+        long nanos = unit.toNanos(lease);
+        if (nanos <= interval) {
+            throw new IllegalArgumentException(String.format("Lease duration (%d ns) must be longer than heartbeat interval (%d ns)", nanos, interval));
+        }
+        this.lease = nanos;
+    }
+
+    /**
+     * Reset lease duration to the default, which is two heartbeat intervals.
+     */
+    public void resetLeaseDuration() {
+        this.lease = 0;
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Lease duration of the locks held by this process
+     */
+    public long getLeaseDuration(TimeUnit unit) {
+        long tmp = lease;
+        return unit.convert(tmp == 0 ? 2 * interval : tmp, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Number of locks held by this process
+     */
+    public int getLocks() {
+        return count.get();
+    }
+
+    /**
+     * @return Number of heartbeat passes done since start
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @param unit the time unit
+     * @return How late the last heartbeat pass started
+     */
+    public long getLastLag(TimeUnit unit) {
+        return unit.convert(lag, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Maximum delay of heartbeat pass observed since start
+     */
+    public long getMaxLag(TimeUnit unit) {
+        return unit.convert(maxLag, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit the time unit
+     * @return How long the last heartbeat pass took
+     */
+    public long getLastDuration(TimeUnit unit) {
+        return unit.convert(duration, TimeUnit.NANOSECONDS);
+    }
+
+    public static RelayLockHeartbeat getInstance() {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.jrelay;
+
+/**
+ * Listener notified when relay is locked or unlocked by other process.
+ *
+ * @see Relay#addLockListener(RelayLockListener)
+ * @see RelayLockWatcher
+ */
+public interface RelayLockListener {
+
+    /**
+     * Called by the watcher thread when other process has locked the relay.
+     *
+     * @param event the lock event
+     */
+    void relayLocked(RelayLockEvent event);
+
+    /**
+     * Called by the watcher thread when other process has released the relay lock, or when the
+     * lock expired because the process has not updated it.
+     *
+     * @param event the lock event
+     */
+    void relayUnlocked(RelayLockEvent event);
+
+}
@@ -0,0 +1,729 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Table of relay locks shared by all Java processes on the machine. Table is a memory-mapped file
+ * divided into fixed size slots, relay is assigned the slot by its name and the slot holds owner
+ * process, lock expiration time and generation. Slot is claimed and released under the file
+ * lock, but heartbeat is a single in-place write and checking if relay is locked by other process
+ * is a plain memory read, so no file is created, open or renamed while relay is open. Owner
+ * stores the time when lock expires rather than the time of the heartbeat, so processes sharing
+ * the table do not have to use the same heartbeat interval or lease duration. Generation is
+ * incremented whenever slot is claimed or released, so it never decreases and generation of the
+ * claim serves as the fencing token of the relay owner. Generation is odd while slot is being
+ * written, so reader which does not lock reads generation before and after the other fields and
+ * reads them again when generation has changed in the meantime (i.e. sequence lock). Owner is
+ * identified by its process identifier together with the PID namespace and the process start
+ * time, since containers with separate PID namespaces can share the same temporary directory.
+ *
+ * <pre>
+ * header: int magic, int version, int slots, int reserved
+ * slot:   long key (name hash, 0 if free), long owner (pid), long expires (ms), long generation,
+ *         long namespace (boot and PID namespace hash, 0 if not known), long start (ticks)
+ * </pre>
+ */
+public class RelayLockTable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayLockTable.class);
+
+    /**
+     * Number of slots in newly created table.
+     */
+    public static final int DEFAULT_SLOTS = 4096;
+
+    /**
+     * Maximum number of slots, table claiming more slots is considered corrupted.
+     */
+    private static final int MAX_SLOTS = 1 << 20;
+
+    private static final int MAGIC = 0x4A524C54;
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 48;
+    private static final int KEY_OFFSET = 0;
+    private static final int OWNER_OFFSET = 8;
+    private static final int EXPIRES_OFFSET = 16;
+    private static final int GENERATION_OFFSET = 24;
+    private static final int NAMESPACE_OFFSET = 32;
+    private static final int START_OFFSET = 40;
+
+    /**
+     * Number of attempts to read slot which is being written, before the table is locked to find
+     * out if writer is still alive.
+     */
+    private static final int SPINS = 100;
+
+    /**
+     * Current process identifier, 0 if it cannot be determined.
+     */
+    private static final long PID = getPid();
+
+    /**
+     * Directory with entries of running processes, null if there is no such directory (e.g. on
+     * other platforms than Linux).
+     */
+    private static final File PROC = new File("/proc/self").isDirectory() ? new File("/proc") : null;
+
+    /**
+     * Namespace of the current process identifier, 0 if it cannot be determined.
+     */
+    private static final long NAMESPACE = getNamespace();
+
+    /**
+     * Start time of the current process (clock ticks since boot), 0 if it cannot be determined.
+     */
+    private static final long START = getStartTime(PID);
+
+    private static final RelayLockTable INSTANCE = new RelayLockTable(new File(System.getProperty("java.io.tmpdir"), ".relay-lock-table"));
+
+    private final File file;
+
+    /**
+     * Mapped table, null until table is used for the first time.
+     */
+    private volatile MappedByteBuffer buffer = null;
+
+    private FileChannel channel = null;
+
+    private int slots = 0;
+
+    /**
+     * Generation of every slot claimed by the current process, 0 if slot is not claimed. Slot
+     * owned by the current process but not claimed by it has been left by previous process
+     * which could not be told apart (e.g. when process start time is not known).
+     */
+    private volatile AtomicLongArray claimed = null;
+
+    /**
+     * Written only to order the accesses of the mapped memory, which is not covered by the Java
+     * memory model, volatile write is a full memory barrier.
+     */
+    private volatile int barrier = 0;
+
+    RelayLockTable(File file) {
+        this.file = file;
+    }
+
+    private static long getPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        try {
+            return Long.parseLong(at > 0 ? name.substring(0, at) : name);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Process identifiers are only meaningful within the same boot of the same machine and the
+     * same PID namespace, so the namespace is a hash of both.
+     *
+     * @return Namespace of the current process identifier, 0 if it cannot be determined
+     */
+    private static long getNamespace() {
+        if (PROC == null) {
+            return 0;
+        }
+        try {
+            String boot = new String(Files.readAllBytes(new File(PROC, "sys/kernel/random/boot_id").toPath()), "US-ASCII").trim();
+            Path ns = Files.readSymbolicLink(new File(PROC, "self/ns/pid").toPath());
+            return getKey(boot + "/" + ns);
+        } catch (IOException e) {
+            LOG.debug("Cannot determine PID namespace, locks of dead processes are taken over when they expire", e);
+            return 0;
+        } catch (UnsupportedOperationException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get process start time, which tells apart processes which have been given the same
+     * identifier one after another.
+     *
+     * @param pid the process identifier
+     * @return Start time of the process (clock ticks since boot), 0 if it cannot be determined,
+     *         or -1 if there is no such process
+     */
+    private static long getStartTime(long pid) {
+
+        if (pid <= 0 || PROC == null) {
+            return 0;
+        }
+
+        String stat = null;
+        try {
+            stat = new String(Files.readAllBytes(new File(PROC, pid + "/stat").toPath()), "US-ASCII");
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            return new File(PROC, Long.toString(pid)).exists() ? 0 : -1;
+        }
+
+        // start time is the 22nd field, the 2nd field (command) may contain spaces and parentheses
+
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        try {
+            return fields.length > 19 ? Long.parseLong(fields[19]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Check if the process is still running. Liveness of the process can only be told when it
+     * lives in the same PID namespace as the current process, otherwise the process is expected
+     * to be running and its claim is respected until the lease expires. Process which has been
+     * given the same identifier after the owner died is told apart by its start time.
+     *
+     * @param pid the process identifier
+     * @param namespace the namespace of the process identifier
+     * @param start the process start time
+     * @return False if process is known to be dead, true otherwise
+     */
+    private static boolean isAlive(long pid, long namespace, long start) {
+        if (pid <= 0 || NAMESPACE == 0 || namespace != NAMESPACE) {
+            return true;
+        }
+        long actual = getStartTime(pid);
+        if (actual == -1) {
+            return false;
+        }
+        return actual == 0 || start == 0 || actual == start;
+    }
+
+    /**
+     * @return True if the owner is the current process
+     */
+    private static boolean isCurrentProcess(long pid, long namespace, long start) {
+        return pid == PID && namespace == NAMESPACE && start == START;
+    }
+
+    /**
+     * @param name the relay name
+     * @return Key of the relay slot, never 0
+     */
+    private static long getKey(String name) {
+
+        // 64-bit FNV-1a, collision of two relay names is practically impossible
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    private MappedByteBuffer getBuffer() {
+
+        MappedByteBuffer tmp = buffer;
+        if (tmp != null) {
+            return tmp;
+        }
+
+        synchronized (this) {
+
+            if (buffer != null) {
+                return buffer;
+            }
+
+            RandomAccessFile raf = null;
+            FileLock lock = null;
+
+            try {
+
+                raf = new RandomAccessFile(file, "rw");
+                lock = raf.getChannel().lock();
+
+                // table may have been created by other process with different size, table of other
+                // version or with corrupted header is created again
+
+                int n = DEFAULT_SLOTS;
+                boolean valid = false;
+                if (raf.length() >= HEADER_SIZE) {
+                    raf.seek(0);
+                    int magic = raf.readInt();
+                    int version = raf.readInt();
+                    int count = raf.readInt();
+                    if (magic == MAGIC && version == VERSION && count > 0 && count <= MAX_SLOTS && raf.length() >= HEADER_SIZE + (long) count * SLOT_SIZE) {
+                        n = count;
+                        valid = true;
+                    } else if (magic == MAGIC) {
+                        LOG.warn("Relay lock table {} is not valid (version {}, {} slots), creating new one", file, version, count);
+                    }
+                }
+
+                long size = HEADER_SIZE + (long) n * SLOT_SIZE;
+
+                tmp = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+                if (!valid) {
+                    LOG.debug("Creating relay lock table {}", file);
+                    for (int i = 0; i < size; i += 8) {
+                        tmp.putLong(i, 0);
+                    }
+                    tmp.putInt(0, MAGIC);
+                    tmp.putInt(4, VERSION);
+                    tmp.putInt(8, n);
+                }
+
+            } catch (IOException e) {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException ex) {
+                        LOG.trace("Cannot close lock table", ex);
+                    }
+                }
+                throw new RelayLockException(String.format("Cannot open relay lock table %s", file), e);
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException e) {
+                        LOG.trace("Cannot release lock table", e);
+                    }
+                }
+            }
+
+            channel = raf.getChannel();
+            slots = tmp.getInt(8);
+            claimed = new AtomicLongArray(slots);
+            buffer = tmp;
+
+            return tmp;
+        }
+    }
+
+    /**
+     * @return Number of slots in the table
+     */
+    int getSlots() {
+        getBuffer();
+        return slots;
+    }
+
+    /**
+     * Find slot assigned to the relay. This method does not lock.
+     *
+     * @param name the relay name
+     * @return Slot index or -1 if relay has no slot
+     */
+    int find(String name) {
+
+        MappedByteBuffer tmp = getBuffer();
+        long key = getKey(name);
+
+        for (int i = 0, slot = start(key); i < slots; i++, slot = (slot + 1) % slots) {
+            long k = tmp.getLong(offset(slot) + KEY_OFFSET);
+            if (k == key) {
+                return slot;
+            }
+            if (k == 0) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    private int start(long key) {
+        return (int) ((key >>> 1) % slots);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Claim the relay slot for the current process. Slot assigned to the relay is kept when
+     * relay is unlocked, so it is found again by the same probe sequence. Relay which has no slot
+     * yet reuses the first slot on its probe sequence which is not locked (i.e. released, expired
+     * or left by process which is dead), so the table never fills up with relays which are not
+     * used anymore. Key of reused slot is replaced, so probe sequences of other relays are never
+     * interrupted by an empty slot.
+     *
+     * @param name the relay name
+     * @param expires the time (ms) when the claim expires unless heartbeat is updated
+     * @return Claimed slot index
+     * @throws RelayLockException when relay is locked or table is full
+     */
+    int claim(String name, long expires) {
+
+        MappedByteBuffer tmp = getBuffer();
+        long key = getKey(name);
+
+        synchronized (this) {
+
+            FileLock lock = null;
+            try {
+
+                lock = channel.lock();
+
+                int target = -1;
+                int reusable = -1;
+
+                for (int i = 0, slot = start(key); i < slots; i++, slot = (slot + 1) % slots) {
+
+                    int offset = offset(slot);
+                    long k = tmp.getLong(offset + KEY_OFFSET);
+
+                    if (k == key) {
+                        if (isLockedExclusively(tmp, slot)) {
+                            throw new RelayLockException(String.format("Relay %s has already been locked by process %d", name, tmp.getLong(offset + OWNER_OFFSET)));
+                        }
+                        target = slot;
+                        break;
+                    }
+
+                    if (k == 0) {
+                        target = reusable == -1 ? slot : reusable;
+                        break;
+                    }
+
+                    // slot claimed by the current process is never reused, even if its lease has
+                    // expired, the lock which claimed it would not notice
+
+                    if (reusable == -1 && claimed.get(slot) == 0 && !isLockedExclusively(tmp, slot)) {
+                        reusable = slot;
+                    }
+                }
+
+                if (target == -1) {
+                    target = reusable;
+                }
+
+                if (target != -1) {
+
+                    // generation is odd also when process crashed while writing the slot
+
+                    int offset = offset(target);
+                    long generation = (tmp.getLong(offset + GENERATION_OFFSET) | 1) + 1;
+
+                    tmp.putLong(offset + GENERATION_OFFSET, generation - 1);
+                    barrier = 0;
+                    tmp.putLong(offset + OWNER_OFFSET, PID);
+                    tmp.putLong(offset + NAMESPACE_OFFSET, NAMESPACE);
+                    tmp.putLong(offset + START_OFFSET, START);
+                    tmp.putLong(offset + EXPIRES_OFFSET, expires);
+                    tmp.putLong(offset + KEY_OFFSET, key);
+                    barrier = 0;
+                    tmp.putLong(offset + GENERATION_OFFSET, generation);
+
+                    claimed.set(target, generation);
+
+                    return target;
+                }
+
+            } catch (IOException e) {
+                throw new RelayLockException(String.format("Cannot lock relay %s", name), e);
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException e) {
+                        LOG.trace("Cannot release lock table", e);
+                    }
+                }
+            }
+        }
+
+        throw new RelayLockException(String.format("Relay lock table %s is full", file));
+    }
+
+    /**
+     * Update heartbeat of the claimed slot, unless it has been taken over by other owner in the
+     * meantime. This is single in-place write, file is not locked.
+     *
+     * @param slot the slot index
+     * @param generation the generation of the claim
+     * @param expires the time (ms) when the claim expires unless heartbeat is updated again
+     * @return True if heartbeat has been updated, false if slot is no more owned
+     */
+    boolean heartbeat(int slot, long generation, long expires) {
+        MappedByteBuffer tmp = getBuffer();
+        int offset = offset(slot);
+        if (tmp.getLong(offset + GENERATION_OFFSET) != generation) {
+            return false;
+        }
+        tmp.putLong(offset + EXPIRES_OFFSET, expires);
+        return true;
+    }
+
+    /**
+     * Release the claimed slot, unless it has been taken over by other owner in the meantime.
+     * Generation is incremented, so late heartbeat of the released claim has no effect.
+     *
+     * @param slot the slot index
+     * @param generation the generation of the claim
+     */
+    void release(int slot, long generation) {
+
+        MappedByteBuffer tmp = getBuffer();
+        int offset = offset(slot);
+
+        synchronized (this) {
+
+            FileLock lock = null;
+            try {
+                lock = channel.lock();
+                if (tmp.getLong(offset + GENERATION_OFFSET) == generation) {
+                    tmp.putLong(offset + GENERATION_OFFSET, generation + 1);
+                    barrier = 0;
+                    tmp.putLong(offset + EXPIRES_OFFSET, -1);
+                    tmp.putLong(offset + OWNER_OFFSET, 0);
+                    barrier = 0;
+                    tmp.putLong(offset + GENERATION_OFFSET, generation + 2);
+                }
+                claimed.compareAndSet(slot, generation, 0);
+            } catch (IOException e) {
+                throw new RelayLockException("Cannot unlock relay", e);
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException e) {
+                        LOG.trace("Cannot release lock table", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if the claim is still valid, which means slot has not been released or taken over
+     * since it has been claimed and its lease has not expired. This method does not lock.
+     *
+     * @param slot the slot index
+     * @param generation the generation of the claim (fencing token)
+     * @return True if claim is valid, false otherwise
+     */
+    boolean isCurrent(int slot, long generation) {
+
+        MappedByteBuffer tmp = getBuffer();
+        int offset = offset(slot);
+
+        while (true) {
+            if (begin(tmp, offset) != generation) {
+                return false;
+            }
+            long expires = tmp.getLong(offset + EXPIRES_OFFSET);
+            if (validate(tmp, offset, generation)) {
+                return expires > System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Start reading the slot without lock.
+     *
+     * @param tmp the mapped table
+     * @param offset the slot offset
+     * @return Generation of the slot, which is even, or -1 if slot has been left half written by
+     *         process which crashed
+     * @see #validate(MappedByteBuffer, int, long)
+     */
+    private long begin(MappedByteBuffer tmp, int offset) {
+        for (int i = 0; ; i++) {
+            long generation = tmp.getLong(offset + GENERATION_OFFSET);
+            if ((generation & 1) == 0) {
+                return generation;
+            }
+            if (i >= SPINS && isAbandoned(tmp, offset)) {
+                return -1;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Finish reading the slot without lock.
+     *
+     * @param tmp the mapped table
+     * @param offset the slot offset
+     * @param generation the generation returned by {@link #begin(MappedByteBuffer, int)}
+     * @return True if fields read in the meantime are consistent, false if slot has been written
+     *         and it has to be read again
+     */
+    private boolean validate(MappedByteBuffer tmp, int offset, long generation) {
+        barrier = 0;
+        return tmp.getLong(offset + GENERATION_OFFSET) == generation;
+    }
+
+    /**
+     * Check if the slot has been left half written. Writers hold the table lock, so slot which is
+     * still being written when the lock is acquired has been left by process which crashed.
+     *
+     * @param tmp the mapped table
+     * @param offset the slot offset
+     * @return True if slot has been left half written, false otherwise
+     */
+    private boolean isAbandoned(MappedByteBuffer tmp, int offset) {
+        synchronized (this) {
+            FileLock lock = null;
+            try {
+                lock = channel.lock();
+                return (tmp.getLong(offset + GENERATION_OFFSET) & 1) != 0;
+            } catch (IOException e) {
+                throw new RelayLockException("Cannot read relay lock table", e);
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException e) {
+                        LOG.trace("Cannot release lock table", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if the relay is locked, which means lease of its slot has not expired and it is owned
+     * either by other process which is still running, or by the current process, in which case it
+     * must have been also claimed by the current process. Slot which has been left by process
+     * which crashed (or by previous process with the same identifier) is not locked, so relay can
+     * be locked again right after restart, without waiting for the lease to expire. Process which
+     * is running is only detected on Linux and only in the same PID namespace, lease of process
+     * in other container or on other platforms has to expire. This method does not lock, it only
+     * reads the table.
+     *
+     * @param name the relay name
+     * @return True if relay is locked, false otherwise
+     */
+    boolean isLocked(String name) {
+        return getLockOwner(name, false) != -1;
+    }
+
+    /**
+     * Get process holding the relay lock. Slot is read consistently without lock, and it's looked
+     * up again when it has been reused by other relay in the meantime.
+     *
+     * @param name the relay name
+     * @param foreign true if lock held by the current process is ignored
+     * @return Identifier of process holding the lock (0 if not known) or -1 if relay is not locked
+     */
+    private long getLockOwner(String name, boolean foreign) {
+
+        MappedByteBuffer tmp = getBuffer();
+        long key = getKey(name);
+
+        while (true) {
+
+            int slot = find(name);
+            if (slot == -1) {
+                return -1;
+            }
+
+            int offset = offset(slot);
+            long generation = begin(tmp, offset);
+            if (generation == -1) {
+                return -1;
+            }
+
+            long k = tmp.getLong(offset + KEY_OFFSET);
+            long owner = tmp.getLong(offset + OWNER_OFFSET);
+            long namespace = tmp.getLong(offset + NAMESPACE_OFFSET);
+            long start = tmp.getLong(offset + START_OFFSET);
+            long expires = tmp.getLong(offset + EXPIRES_OFFSET);
+
+            if (!validate(tmp, offset, generation) || k != key) {
+                continue;
+            }
+
+            if ((foreign && isCurrentProcess(owner, namespace, start)) || !isLocked(slot, owner, namespace, start, expires, generation)) {
+                return -1;
+            }
+
+            return owner;
+        }
+    }
+
+    /**
+     * Check if the slot is locked. Caller must hold the table lock, so the slot is not being
+     * written and slot which is still half written has been left by process which crashed.
+     */
+    private boolean isLockedExclusively(MappedByteBuffer tmp, int slot) {
+        int offset = offset(slot);
+        long generation = tmp.getLong(offset + GENERATION_OFFSET);
+        if ((generation & 1) != 0) {
+            return false;
+        }
+        long owner = tmp.getLong(offset + OWNER_OFFSET);
+        long namespace = tmp.getLong(offset + NAMESPACE_OFFSET);
+        long start = tmp.getLong(offset + START_OFFSET);
+        return isLocked(slot, owner, namespace, start, tmp.getLong(offset + EXPIRES_OFFSET), generation);
+    }
+
+    private boolean isLocked(int slot, long owner, long namespace, long start, long expires, long generation) {
+        if (expires <= System.currentTimeMillis()) {
+            return false;
+        }
+        if (isCurrentProcess(owner, namespace, start)) {
+            return claimed.get(slot) == generation;
+        }
+        return isAlive(owner, namespace, start);
+    }
+
+    /**
+     * @param slot the slot index
+     * @return Time (ms) when the claim expires or -1 if slot is not owned
+     */
+    long getExpires(int slot) {
+        return getBuffer().getLong(offset(slot) + EXPIRES_OFFSET);
+    }
+
+    /**
+     * @param slot the slot index
+     * @return Generation of the slot, incremented whenever slot is claimed
+     */
+    long getGeneration(int slot) {
+        return getBuffer().getLong(offset(slot) + GENERATION_OFFSET);
+    }
+
+    /**
+     * @param slot the slot index
+     * @return Identifier of the process owning the slot or 0 if slot is not owned
+     */
+    long getOwner(int slot) {
+        return getBuffer().getLong(offset(slot) + OWNER_OFFSET);
+    }
+
+    /**
+     * Get process holding the relay lock, unless it is the current process. This method does not
+     * lock, it only reads the table.
+     *
+     * @param name the relay name
+     * @return Identifier of other process holding the lock (0 if not known) or -1 if relay is not
+     *         locked by other process
+     */
+    long getForeignOwner(String name) {
+        return getLockOwner(name, true);
+    }
+
+    /**
+     * @return Lock table file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public static RelayLockTable getInstance() {
+        return INSTANCE;
+    }
+}
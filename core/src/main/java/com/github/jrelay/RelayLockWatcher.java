@@ -0,0 +1,232 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches locks of the discovered relays held by other processes and notifies listeners when
+ * they change. Lock states are read from the shared {@link RelayLockTable}, which is in memory, so
+ * all relays are checked by single thread in one cheap sweep. Watcher is started when the first
+ * listener is added.
+ *
+ * @see Relay#addLockListener(RelayLockListener)
+ * @see Relay#isLockedByOtherProcess()
+ */
+public class RelayLockWatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayLockWatcher.class);
+
+    /**
+     * Default interval between sweeps (ms).
+     */
+    public static final long DEFAULT_INTERVAL = 500;
+
+    /**
+     * Thread sweeping the locks.
+     */
+    public static final class WatcherThread extends Thread {
+
+        public WatcherThread(Runnable r) {
+            super(r, "relay-lock-watcher");
+            setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
+            setDaemon(true);
+        }
+    }
+
+    private final class Sweeper implements Runnable {
+
+        /**
+         * Other process holding the lock, by relay name. Accessed only by the watcher thread.
+         */
+        private final Map<String, Long> owners = new HashMap<String, Long>();
+
+        @Override
+        public void run() {
+            while (true) {
+
+                sweep();
+
+                try {
+                    TimeUnit.NANOSECONDS.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void sweep() {
+
+            RelayDiscoveryService service = Relay.getDiscoveryServiceRef();
+            if (service == null || !service.isDiscovered()) {
+                return;
+            }
+
+            List<Relay> relays = null;
+            try {
+                relays = service.getRelays(0, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                return;
+            }
+
+            RelayLockTable table = RelayLockTable.getInstance();
+
+            for (int i = 0; i < relays.size(); i++) {
+
+                Relay relay = relays.get(i);
+                String name = relay.getName();
+
+                long owner = table.getForeignOwner(name);
+                Long previous = owners.get(name);
+
+                if (previous != null && previous != owner) {
+                    owners.remove(name);
+                    notifyListeners(new RelayLockEvent(relay, RelayLockEvent.UNLOCKED, previous));
+                }
+                if (owner != -1 && (previous == null || previous != owner)) {
+                    owners.put(name, owner);
+                    notifyListeners(new RelayLockEvent(relay, RelayLockEvent.LOCKED, owner));
+                }
+            }
+
+            sweeps++;
+        }
+    }
+
+    private static final RelayLockWatcher INSTANCE = new RelayLockWatcher();
+
+    /**
+     * Lock listeners.
+     */
+    private final List<RelayLockListener> listeners = new CopyOnWriteArrayList<RelayLockListener>();
+
+    private volatile long interval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL);
+
+    private volatile long sweeps = 0;
+
+    /**
+     * Watcher thread, null when watcher is not started.
+     */
+    private Thread thread = null;
+
+    private RelayLockWatcher() {
+    }
+
+    private void notifyListeners(RelayLockEvent event) {
+        for (RelayLockListener l : listeners) {
+            try {
+                if (event.getType() == RelayLockEvent.LOCKED) {
+                    l.relayLocked(event);
+                } else {
+                    l.relayUnlocked(event);
+                }
+            } catch (Exception e) {
+                LOG.error(String.format("Relay lock, exception when calling listener %s", l.getClass()), e);
+            }
+        }
+    }
+
+    /**
+     * Add lock listener and start watcher if it's not running yet.
+     *
+     * @param l the listener to be added
+     * @return True if listener has been added
+     */
+    boolean addListener(RelayLockListener l) {
+
+        boolean added = listeners.add(l);
+
+        synchronized (this) {
+            if (thread == null) {
+                LOG.debug("Starting relay lock watcher");
+                thread = new WatcherThread(new Sweeper());
+                thread.start();
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Remove lock listener.
+     *
+     * @param l the listener to be removed
+     * @return True if listener has been removed
+     */
+    boolean removeListener(RelayLockListener l) {
+        return listeners.remove(l);
+    }
+
+    /**
+     * @return All lock listeners
+     */
+    RelayLockListener[] getListeners() {
+        return listeners.toArray(new RelayLockListener[listeners.size()]);
+    }
+
+    /**
+     * Stop watcher thread.
+     */
+    public void shutdown() {
+
+        Thread tmp = null;
+
+        synchronized (this) {
+            if (thread == null) {
+                return;
+            }
+            tmp = thread;
+            thread = null;
+        }
+
+        LOG.debug("Shutting down relay lock watcher");
+
+        tmp.interrupt();
+        try {
+            tmp.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set interval between sweeps. Lock changes are reported with this delay at most.
+     *
+     * @param interval the sweep interval
+     * @param unit the time unit
+     * @throws IllegalArgumentException when interval is not positive or unit is null
+     */
+    public void setInterval(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException(String.format("Sweep interval must be positive (%d)", interval));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+        this.interval = unit.toNanos(interval);
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Interval between sweeps
+     */
+    public long getInterval(TimeUnit unit) {
+        return unit.convert(interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Number of sweeps done since start
+     */
+    public long getSweeps() {
+        return sweeps;
+    }
+
+    public static RelayLockWatcher getInstance() {
+        return INSTANCE;
+    }
+}
@@ -3,17 +3,76 @@ package com.github.jrelay;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Processor executing relay tasks of non thread-safe drivers. Tasks are routed into execution
+ * lanes by the physical device they belong to, so tasks of single physical device are always
+ * executed sequentially, while different physical devices are served in parallel. The number of
+ * lanes is limited and when there are more physical devices than lanes, some of them will share
+ * the same lane. Within single lane, tasks of higher {@link RelayTask.Priority} are always
+ * processed before tasks of lower priority.
+ *
  * Created by nightingale on 29.04.16.
  */
 public class RelayProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(RelayProcessor.class);
 
+    /**
+     * Default maximum number of execution lanes.
+     */
+    public static final int DEFAULT_MAX_LANES = 16;
+
+    /**
+     * Default capacity of single lane queue.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Default time after which task is considered to be hung in the device (ms).
+     */
+    public static final long DEFAULT_HUNG_TASK_TIMEOUT = 10000;
+
+    /**
+     * How often watchdog checks for hung tasks (ms).
+     */
+    private static final long WATCHDOG_INTERVAL = 250;
+
+    /**
+     * What to do with new task when lane queue is full.
+     */
+    public static enum OverflowPolicy {
+
+        /**
+         * Wait until there is a free slot in the queue.
+         */
+        BLOCK,
+
+        /**
+         * Reject new task immediately.
+         */
+        FAIL,
+
+        /**
+         * Drop the oldest pending task of the same relay device to make room for the new one. New
+         * task is rejected when there is no pending task of the same relay device.
+         */
+        DROP_OLDEST
+    }
+
     /**
      * Thread doing supersync processing.
      *
@@ -44,16 +103,324 @@ public class RelayProcessor {
         }
     }
 
+    /**
+     * Thread factory for watchdog.
+     */
+    private static final class WatchdogThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "relay-processor-watchdog");
+            t.setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Watchdog detecting tasks which got stuck in the device. Caller waiting for such task is
+     * released with {@link TimeoutException} and the device is moved into the quarantine lane, so
+     * its lane can continue serving other devices.
+     */
+    private static final class Watchdog implements Runnable {
+
+        @Override
+        public void run() {
+
+            Lanes current = lanes;
+            if (current == null) {
+                return;
+            }
+
+            long timeout = hungTaskTimeout;
+            long now = System.nanoTime();
+
+            for (Lane lane : current.all()) {
+
+                AtomicProcessor p = lane.processor;
+                RelayTask task = p.current;
+                if (task == null || now - p.currentStart < timeout) {
+                    continue;
+                }
+
+                TimeoutException e = new TimeoutException(String.format("Device %s has not responded in %d ms", task.getDevice().getName(), TimeUnit.NANOSECONDS.toMillis(timeout)));
+                if (!task.fail(e)) {
+                    continue;
+                }
+
+                p.timedOut.incrementAndGet();
+
+                LOG.warn("Task for {} is hung in lane {}", task.getDevice().getName(), lane.index);
+
+                if (!lane.isQuarantined()) {
+                    current.evict(lane, task);
+                }
+            }
+        }
+    }
+
     /**
      * Heart of overall processing system. This class process all native calls wrapped in tasks, by
-     * doing this all tasks executions are super-synchronized.
+     * doing this all tasks executions are super-synchronized. Producers only enqueue tasks into the
+     * bounded queue and are signalled by the task future when the task has been processed.
      *
      * @author Bartosz Firyn (SarXos)
      */
     private static final class AtomicProcessor implements Runnable {
 
-        private SynchronousQueue<RelayTask> inbound = new SynchronousQueue<RelayTask>(true);
-        private SynchronousQueue<RelayTask> outbound = new SynchronousQueue<RelayTask>(true);
+        private final RelayTaskQueue inbound;
+
+        /**
+         * Number of tasks waiting for or being processed.
+         */
+        private final AtomicInteger depth = new AtomicInteger(0);
+
+        /**
+         * The highest depth observed.
+         */
+        private final AtomicInteger maxDepth = new AtomicInteger(0);
+
+        /**
+         * Number of tasks already processed.
+         */
+        private final AtomicLong processed = new AtomicLong(0);
+
+        /**
+         * Number of tasks rejected because queue was full.
+         */
+        private final AtomicLong rejected = new AtomicLong(0);
+
+        /**
+         * Number of tasks dropped in favour of newer tasks of the same relay.
+         */
+        private final AtomicLong dropped = new AtomicLong(0);
+
+        /**
+         * Number of tasks superseded by newer tasks of the same relay.
+         */
+        private final AtomicLong coalesced = new AtomicLong(0);
+
+        /**
+         * Number of tasks which has been failed by watchdog because they hung in the device.
+         */
+        private final AtomicLong timedOut = new AtomicLong(0);
+
+        /**
+         * Task being currently processed.
+         */
+        private volatile RelayTask current = null;
+
+        /**
+         * Time when current task processing started (ns).
+         */
+        private volatile long currentStart = 0;
+
+        /**
+         * Key of the physical device this processor has been quarantined for, null if it is not
+         * quarantined.
+         */
+        private volatile Object quarantineKey = null;
+
+        /**
+         * The latest pending (not yet started) coalescable task of every relay device. Guarded by
+         * itself, so that task cannot be started or superseded while it is being superseded by
+         * other producer.
+         */
+        private final Map<RelayDevice, RelayTask> pending = new HashMap<RelayDevice, RelayTask>();
+
+        /**
+         * Total time tasks spent in the queue (ns).
+         */
+        private final AtomicLong waitTime = new AtomicLong(0);
+
+        /**
+         * The longest time single task spent in the queue (ns).
+         */
+        private final AtomicLong maxWaitTime = new AtomicLong(0);
+
+        public AtomicProcessor(int capacity) {
+            this.inbound = new RelayTaskQueue(capacity);
+        }
+
+        /**
+         * Enqueue task to be processed. Depending on the overflow policy, this method may wait
+         * for a free slot in the queue.
+         *
+         * @param task the task to be processed
+         * @throws InterruptedException when thread has been interrupted while waiting for a slot
+         * @throws RejectedExecutionException when task cannot be enqueued
+         */
+        public void submit(RelayTask task) throws InterruptedException {
+
+            int d = depth.incrementAndGet();
+            int max = maxDepth.get();
+            while (d > max && !maxDepth.compareAndSet(max, d)) {
+                max = maxDepth.get();
+            }
+
+            task.setSubmitTime(System.nanoTime());
+
+            // collapse pending commands of the same relay, the previous one will be completed
+            // together with the new one, but only if this does not lower its priority
+
+            boolean coalescable = coalescing && task.isCoalescable();
+            if (coalescable) {
+
+                // new task takes the place of the previous one in the queue, so it's accepted
+                // before the previous task is superseded and it can never be rejected with tasks
+                // handed over to it, this must not interleave with other producer superseding the
+                // previous task, nor with the processor starting it
+
+                synchronized (pending) {
+                    RelayTask previous = pending.put(task.getDevice(), task);
+                    if (previous != null && previous.getPriority().compareTo(task.getPriority()) >= 0 && inbound.replace(previous, task)) {
+                        if (previous.supersede(task)) {
+                            coalesced.incrementAndGet();
+                        }
+                        depth.decrementAndGet();
+                        return;
+                    }
+                }
+            } else if (coalescing) {
+
+                // task which depends on the current state (e.g. toggle) is a barrier, commands
+                // submitted before it must not be collapsed with commands submitted after it
+
+                synchronized (pending) {
+                    pending.remove(task.getDevice());
+                }
+            }
+
+            boolean queued = false;
+            try {
+                switch (overflowPolicy) {
+                    case BLOCK:
+                        inbound.put(task);
+                        queued = true;
+                        break;
+                    case FAIL:
+                        queued = inbound.offer(task);
+                        break;
+                    case DROP_OLDEST:
+                        queued = inbound.offer(task) || dropOldest(task);
+                        break;
+                }
+            } finally {
+                if (!queued) {
+                    depth.decrementAndGet();
+                    if (coalescable) {
+                        unpend(task);
+                    }
+                }
+            }
+
+            if (!queued) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException(String.format("Processor queue is full, cannot process task for %s", task.getDevice().getName()));
+            }
+        }
+
+        /**
+         * Remove the oldest pending task of the same relay device and priority, and enqueue new
+         * one instead.
+         *
+         * @param task the new task
+         * @return True if new task has been enqueued, false otherwise
+         */
+        private boolean dropOldest(RelayTask task) {
+
+            RelayTask t = inbound.removeOldest(task);
+            if (t == null) {
+                return false;
+            }
+
+            depth.decrementAndGet();
+            unpend(t);
+
+            // superseded task is completed by the task which superseded it
+
+            if (t.start()) {
+                dropped.incrementAndGet();
+                t.setThrowable(new RejectedExecutionException(String.format("Task has been dropped in favour of newer task for %s", t.getDevice().getName())));
+                t.complete();
+            }
+
+            return inbound.offer(task);
+        }
+
+        /**
+         * Enqueue task which has been already accepted by other processor. Such task is neither
+         * coalesced nor subject of the overflow policy.
+         *
+         * @param task the task to be transferred
+         */
+        public void transfer(RelayTask task) {
+
+            int d = depth.incrementAndGet();
+            int max = maxDepth.get();
+            while (d > max && !maxDepth.compareAndSet(max, d)) {
+                max = maxDepth.get();
+            }
+
+            if (!inbound.offer(task)) {
+                depth.decrementAndGet();
+                rejected.incrementAndGet();
+                task.setThrowable(new RejectedExecutionException(String.format("Processor queue is full, cannot transfer task for %s", task.getDevice().getName())));
+                task.complete();
+            }
+        }
+
+        /**
+         * Remove task from this processor so it can be transferred to another one.
+         *
+         * @param task the task to be removed
+         */
+        private void release(RelayTask task) {
+            depth.decrementAndGet();
+            unpend(task);
+        }
+
+        /**
+         * Remove task from pending tasks, unless it has been already replaced by newer task of
+         * the same relay device.
+         *
+         * @param task the task to be removed
+         */
+        private void unpend(RelayTask task) {
+            synchronized (pending) {
+                if (pending.get(task.getDevice()) == task) {
+                    pending.remove(task.getDevice());
+                }
+            }
+        }
+
+        /**
+         * Quarantine this processor for the given physical device. Queued tasks of other devices
+         * are moved to the target processor.
+         *
+         * @param key the physical device key
+         * @param target the processor which will serve other devices
+         */
+        public void quarantine(Object key, AtomicProcessor target) {
+
+            quarantineKey = key;
+
+            List<RelayTask> tasks = new ArrayList<RelayTask>();
+            inbound.drainTo(tasks);
+
+            for (RelayTask task : tasks) {
+                if (key.equals(getPhysicalKey(task.getDevice()))) {
+                    if (!inbound.offer(task)) {
+                        release(task);
+                        task.setThrowable(new RejectedExecutionException(String.format("Processor queue is full, cannot process task for %s", task.getDevice().getName())));
+                        task.complete();
+                    }
+                } else {
+                    release(task);
+                    target.transfer(task);
+                }
+            }
+        }
 
         /**
          * Process task.
@@ -62,9 +429,40 @@ public class RelayProcessor {
          * @throws InterruptedException when thread has been interrupted
          */
         public void process(RelayTask task) throws InterruptedException {
-            inbound.put(task);
+            submit(task);
+
+            RelayFuture<Void> future = task.getFuture();
+            future.await();
+
+            Throwable t = future.getThrowable();
+            if (t != null) {
+                throw new RelayException("Cannot execute task", t);
+            }
+        }
+
+        /**
+         * Process task, but do not wait longer than given timeout.
+         *
+         * @param task the task to be processed
+         * @param timeout the maximum time to wait
+         * @param unit the time unit
+         * @throws InterruptedException when thread has been interrupted
+         * @throws TimeoutException when task has not been processed before the deadline
+         */
+        public void process(RelayTask task, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            submit(task);
+
+            RelayFuture<Void> future = task.getFuture();
+            if (!future.await(timeout, unit)) {
+                TimeoutException e = new TimeoutException(String.format("Task for %s has not been processed in %d %s", task.getDevice().getName(), timeout, unit));
+                task.cancel(e);
+                throw e;
+            }
 
-            Throwable t = outbound.take().getThrowable();
+            Throwable t = future.getThrowable();
+            if (t instanceof TimeoutException) {
+                throw (TimeoutException) t;
+            }
             if (t != null) {
                 throw new RelayException("Cannot execute task", t);
             }
@@ -75,94 +473,859 @@ public class RelayProcessor {
             while (true) {
                 RelayTask t = null;
                 try {
-                    (t = inbound.take()).handle();
+                    t = inbound.take();
                 } catch (InterruptedException e) {
                     break;
-                } catch (Throwable e) {
-                    if (t != null) {
-                        t.setThrowable(e);
-                    }
+                }
+
+                // tasks of other devices could be enqueued in the meantime when this processor
+                // was quarantined, they have to be forwarded to the current lane
+
+                Object key = quarantineKey;
+                if (key != null && !key.equals(getPhysicalKey(t.getDevice()))) {
+                    release(t);
+                    getLane(t).processor.transfer(t);
+                    continue;
+                }
+
+                if (!start(t)) {
+                    continue;
+                }
+
+                long wait = System.nanoTime() - t.getSubmitTime();
+                waitTime.addAndGet(wait);
+                long max = maxWaitTime.get();
+                while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+                    max = maxWaitTime.get();
+                }
+
+                currentStart = System.nanoTime();
+                current = t;
+                try {
+                    t.execute();
                 } finally {
-                    if (t != null) {
-                        try {
-                            outbound.put(t);
-                        } catch (InterruptedException e) {
-                            break;
-                        } catch (Exception e) {
-                            throw new RuntimeException("Cannot put task into outbound queue", e);
-                        }
-                    }
+                    current = null;
                 }
+                done(t);
             }
-        }
-    }
-
-    /**
-     * Is processor started?
-     */
-    private static final AtomicBoolean started = new AtomicBoolean(false);
 
-    /**
-     * Execution service.
-     */
-    private static ExecutorService runner = null;
+            // complete tasks which will never be processed
 
-    /**
-     * Static processor.
-     */
-    private static final AtomicProcessor processor = new AtomicProcessor();
+            RelayTask t = null;
+            while ((t = inbound.poll()) != null) {
+                if (start(t)) {
+                    t.setThrowable(new RejectedExecutionException("Processor has been shut down before task was processed"));
+                    done(t);
+                }
+            }
+        }
 
-    /**
-     * Singleton instance.
-     */
-    private static final RelayProcessor INSTANCE = new RelayProcessor();;
+        /**
+         * Start task taken from the queue.
+         *
+         * @param task the task to be started
+         * @return True if task has been started, false if it was superseded
+         */
+        private boolean start(RelayTask task) {
+            synchronized (pending) {
+                if (task.start()) {
+                    unpend(task);
+                    return true;
+                }
+            }
+            depth.decrementAndGet();
+            return false;
+        }
 
-    private RelayProcessor() {
+        private void done(RelayTask task) {
+            depth.decrementAndGet();
+            processed.incrementAndGet();
+            record(task.getPriority(), System.nanoTime() - task.getSubmitTime());
+            task.complete();
+        }
     }
 
     /**
-     * Process single relay task.
-     *
-     * @param task the task to be processed
-     * @throws InterruptedException when thread has been interrupted
+     * Single execution lane. Every lane has its own atomic processor and thread.
      */
-    public void process(RelayTask task) throws InterruptedException {
+    private static final class Lane {
+
+        private final int index;
+        private final int capacity;
+        private final AtomicProcessor processor;
+        private final ExecutorService runner = Executors.newSingleThreadExecutor(new ProcessorThreadFactory());
 
-        if (started.compareAndSet(false, true)) {
-            runner = Executors.newSingleThreadExecutor(new ProcessorThreadFactory());
-            runner.execute(processor);
+        public Lane(int index, int capacity) {
+            this.index = index;
+            this.capacity = capacity;
+            this.processor = new AtomicProcessor(capacity);
+            this.runner.execute(processor);
         }
 
-        if (!runner.isShutdown()) {
+        public void process(RelayTask task) throws InterruptedException {
+            checkRunning();
             processor.process(task);
-        } else {
-            throw new RejectedExecutionException("Cannot process because processor runner has been already shut down");
         }
-    }
 
-    public void shutdown() {
-        if (started.compareAndSet(true, false)) {
+        public void process(RelayTask task, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            checkRunning();
+            processor.process(task, timeout, unit);
+        }
 
-            LOG.debug("Shutting down relay processor");
+        public boolean isQuarantined() {
+            return processor.quarantineKey != null;
+        }
 
-            runner.shutdown();
+        public void submit(RelayTask task) {
+            try {
+                checkRunning();
+                processor.submit(task);
+            } catch (RejectedExecutionException e) {
+                task.setThrowable(e);
+                task.complete();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                task.setThrowable(e);
+                task.complete();
+            }
+        }
 
-            LOG.debug("Awaiting tasks termination");
+        private void checkRunning() {
+            if (runner.isShutdown()) {
+                throw new RejectedExecutionException("Cannot process because processor runner has been already shut down");
+            }
+        }
 
-            while (runner.isTerminated()) {
+        public LaneStatistics getStatistics() {
+            AtomicProcessor p = processor;
+            return new LaneStatistics(index, capacity, isQuarantined(), p.depth.get(), p.maxDepth.get(), p.processed.get(),
+                    p.rejected.get(), p.dropped.get(), p.coalesced.get(), p.timedOut.get(), p.waitTime.get(), p.maxWaitTime.get());
+        }
+    }
 
-                try {
-                    runner.awaitTermination(100, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    return;
-                }
+    /**
+     * Snapshot of the execution lane statistics.
+     */
+    public static final class LaneStatistics {
 
-                runner.shutdownNow();
-            }
+        private final int index;
+        private final int capacity;
+        private final boolean quarantined;
+        private final int depth;
+        private final int maxDepth;
+        private final long processed;
+        private final long rejected;
+        private final long dropped;
+        private final long coalesced;
+        private final long timedOut;
+        private final long waitTime;
+        private final long maxWaitTime;
+
+        private LaneStatistics(int index, int capacity, boolean quarantined, int depth, int maxDepth, long processed,
+                               long rejected, long dropped, long coalesced, long timedOut, long waitTime, long maxWaitTime) {
+            this.index = index;
+            this.capacity = capacity;
+            this.quarantined = quarantined;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.processed = processed;
+            this.rejected = rejected;
+            this.dropped = dropped;
+            this.coalesced = coalesced;
+            this.timedOut = timedOut;
+            this.waitTime = waitTime;
+            this.maxWaitTime = maxWaitTime;
+        }
 
-            LOG.debug("All tasks has been terminated");
+        /**
+         * @return Lane index
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return Lane queue capacity
+         */
+        public int getCapacity() {
+            return capacity;
         }
 
+        /**
+         * @return True if this is quarantine lane of the device which hung
+         */
+        public boolean isQuarantined() {
+            return quarantined;
+        }
+
+        /**
+         * @return Number of tasks waiting for or being processed in the lane
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return The highest number of tasks ever waiting in the lane
+         */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        /**
+         * @return Number of tasks processed by the lane
+         */
+        public long getProcessed() {
+            return processed;
+        }
+
+        /**
+         * @return Number of tasks rejected because lane queue was full
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return Number of tasks dropped in favour of newer tasks of the same relay
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return Number of tasks superseded by newer tasks of the same relay
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * @return Number of tasks failed by watchdog because they hung in the device
+         */
+        public long getTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * @param unit the time unit
+         * @return Total time processed tasks spent waiting in the lane queue
+         */
+        public long getWaitTime(TimeUnit unit) {
+            return unit.convert(waitTime, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param unit the time unit
+         * @return The longest time single task spent waiting in the lane queue
+         */
+        public long getMaxWaitTime(TimeUnit unit) {
+            return unit.convert(maxWaitTime, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Lane %d%s: depth %d/%d, max depth %d, processed %d, rejected %d, dropped %d, coalesced %d, timed out %d, max wait %d us",
+                    index, quarantined ? " (quarantined)" : "", depth, capacity, maxDepth, processed, rejected, dropped, coalesced, timedOut,
+                    getMaxWaitTime(TimeUnit.MICROSECONDS));
+        }
+    }
+
+    /**
+     * Is processor started?
+     */
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+
+    /**
+     * Execution lanes, created lazily when first task is routed to them.
+     */
+    private static volatile Lanes lanes = null;
+
+    /**
+     * Maximum number of execution lanes.
+     */
+    private static volatile int maxLanes = DEFAULT_MAX_LANES;
+
+    /**
+     * Capacity of single lane queue.
+     */
+    private static volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * What to do when lane queue is full.
+     */
+    private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * Are pending commands of the same relay coalesced?
+     */
+    private static volatile boolean coalescing = false;
+
+    /**
+     * Time after which task is considered to be hung in the device (ns).
+     */
+    private static volatile long hungTaskTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HUNG_TASK_TIMEOUT);
+
+    /**
+     * Latency metrics of every task priority.
+     */
+    private static final PriorityMetrics[] METRICS = new PriorityMetrics[RelayTask.Priority.values().length];
+
+    static {
+        for (int i = 0; i < METRICS.length; i++) {
+            METRICS[i] = new PriorityMetrics();
+        }
+    }
+
+    /**
+     * Gate for tasks executed directly by the calling thread.
+     */
+    private static final PriorityGate GATE = new PriorityGate();
+
+    /**
+     * Watchdog executor.
+     */
+    private static ScheduledExecutorService watchdog = null;
+
+    /**
+     * Singleton instance.
+     */
+    private static final RelayProcessor INSTANCE = new RelayProcessor();
+
+    private RelayProcessor() {
+    }
+
+    /**
+     * Latency metrics of single task priority.
+     */
+    private static final class PriorityMetrics {
+
+        private final AtomicLong processed = new AtomicLong(0);
+        private final AtomicLong latency = new AtomicLong(0);
+        private final AtomicLong maxLatency = new AtomicLong(0);
+
+        public void record(long time) {
+            processed.incrementAndGet();
+            latency.addAndGet(time);
+            long max = maxLatency.get();
+            while (time > max && !maxLatency.compareAndSet(max, time)) {
+                max = maxLatency.get();
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the task priority statistics.
+     */
+    public static final class PriorityStatistics {
+
+        private final RelayTask.Priority priority;
+        private final long processed;
+        private final long latency;
+        private final long maxLatency;
+
+        private PriorityStatistics(RelayTask.Priority priority, long processed, long latency, long maxLatency) {
+            this.priority = priority;
+            this.processed = processed;
+            this.latency = latency;
+            this.maxLatency = maxLatency;
+        }
+
+        /**
+         * @return Task priority
+         */
+        public RelayTask.Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return Number of processed tasks of this priority
+         */
+        public long getProcessed() {
+            return processed;
+        }
+
+        /**
+         * @param unit the time unit
+         * @return Total time between task submission and its completion
+         */
+        public long getLatency(TimeUnit unit) {
+            return unit.convert(latency, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param unit the time unit
+         * @return Average time between task submission and its completion
+         */
+        public long getAverageLatency(TimeUnit unit) {
+            return processed == 0 ? 0 : unit.convert(latency / processed, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param unit the time unit
+         * @return The longest time between task submission and its completion
+         */
+        public long getMaxLatency(TimeUnit unit) {
+            return unit.convert(maxLatency, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: processed %d, average latency %d us, max latency %d us",
+                    priority, processed, getAverageLatency(TimeUnit.MICROSECONDS), getMaxLatency(TimeUnit.MICROSECONDS));
+        }
+    }
+
+    /**
+     * Gate used by tasks of thread-safe drivers, which are executed directly by the calling thread.
+     * Task waits before entering the device as long as there is any task of higher priority being
+     * executed, so lower priority work always gives way to the higher priority one.
+     */
+    private static final class PriorityGate {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition passable = lock.newCondition();
+        private final AtomicIntegerArray running = new AtomicIntegerArray(RelayTask.Priority.values().length);
+
+        private boolean isBlocked(RelayTask.Priority priority) {
+            for (int i = 0; i < priority.ordinal(); i++) {
+                if (running.get(i) > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void enter(RelayTask.Priority priority) throws InterruptedException {
+            if (isBlocked(priority)) {
+                lock.lockInterruptibly();
+                try {
+                    while (isBlocked(priority)) {
+                        passable.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            running.incrementAndGet(priority.ordinal());
+        }
+
+        public void exit(RelayTask.Priority priority) {
+            if (running.decrementAndGet(priority.ordinal()) == 0) {
+                lock.lock();
+                try {
+                    passable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lanes holder, lanes are created on demand.
+     */
+    private static final class Lanes {
+
+        private final AtomicReferenceArray<Lane> array;
+        private final int capacity;
+
+        /**
+         * Quarantine lanes of the physical devices which hung.
+         */
+        private final ConcurrentMap<Object, Lane> quarantined = new ConcurrentHashMap<Object, Lane>();
+
+        public Lanes(int size, int capacity) {
+            this.array = new AtomicReferenceArray<Lane>(size);
+            this.capacity = capacity;
+        }
+
+        public Lane get(int index) {
+            Lane lane = array.get(index);
+            if (lane != null) {
+                return lane;
+            }
+            synchronized (this) {
+                if ((lane = array.get(index)) == null) {
+                    array.set(index, lane = new Lane(index, capacity));
+                }
+                return lane;
+            }
+        }
+
+        public Lane get(Object key) {
+            Lane lane = quarantined.get(key);
+            if (lane != null) {
+                return lane;
+            }
+            return get(getLaneIndex(key, size()));
+        }
+
+        /**
+         * Move physical device whose task hung into the quarantine lane. The lane which processes
+         * hung task becomes quarantine lane and new lane is created in its place.
+         *
+         * @param lane the lane which processes hung task
+         * @param task the hung task
+         */
+        public void evict(Lane lane, RelayTask task) {
+
+            Object key = getPhysicalKey(task.getDevice());
+            Lane replacement = null;
+
+            synchronized (this) {
+                if (array.get(lane.index) != lane) {
+                    return;
+                }
+                replacement = new Lane(lane.index, capacity);
+                quarantined.put(key, lane);
+                array.set(lane.index, replacement);
+            }
+
+            LOG.warn("Device {} has been moved to quarantine lane", task.getDevice().getName());
+
+            lane.processor.quarantine(key, replacement.processor);
+        }
+
+        public List<Lane> created() {
+            List<Lane> created = new ArrayList<Lane>();
+            for (int i = 0; i < array.length(); i++) {
+                Lane lane = array.get(i);
+                if (lane != null) {
+                    created.add(lane);
+                }
+            }
+            return created;
+        }
+
+        public List<Lane> all() {
+            List<Lane> all = created();
+            all.addAll(quarantined.values());
+            return all;
+        }
+
+        public int size() {
+            return array.length();
+        }
+    }
+
+    /**
+     * Get key of physical device the relay device belongs to.
+     *
+     * @param device the relay device
+     * @return Physical device key
+     */
+    private static Object getPhysicalKey(RelayDevice device) {
+        if (device instanceof RelayDevice.PhysicalDevice) {
+            Object key = ((RelayDevice.PhysicalDevice) device).getPhysicalKey();
+            if (key != null) {
+                return key;
+            }
+        }
+        return device;
+    }
+
+    /**
+     * Get index of the lane to which given physical device is routed.
+     *
+     * @param key the physical device key
+     * @param size the number of lanes
+     * @return Lane index
+     */
+    static int getLaneIndex(Object key, int size) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % size;
+    }
+
+    private static void record(RelayTask.Priority priority, long latency) {
+        METRICS[priority.ordinal()].record(latency);
+    }
+
+    private static Lane getLane(RelayTask task) {
+        return getLanes().get(getPhysicalKey(task.getDevice()));
+    }
+
+    /**
+     * Process single relay task.
+     *
+     * @param task the task to be processed
+     * @throws InterruptedException when thread has been interrupted
+     */
+    public void process(RelayTask task) throws InterruptedException {
+        getLane(task).process(task);
+    }
+
+    /**
+     * Execute single relay task of thread-safe driver directly in the calling thread. Task waits as
+     * long as there is any task of higher priority being executed this way.
+     *
+     * @param task the task to be executed
+     * @throws InterruptedException when thread has been interrupted while waiting
+     */
+    public void execute(RelayTask task) throws InterruptedException {
+        RelayTask.Priority priority = task.getPriority();
+        long start = System.nanoTime();
+        GATE.enter(priority);
+        try {
+            task.start();
+            task.perform();
+        } finally {
+            GATE.exit(priority);
+            record(priority, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Process single relay task, but do not wait longer than given timeout.
+     *
+     * @param task the task to be processed
+     * @param timeout the maximum time to wait
+     * @param unit the time unit
+     * @throws InterruptedException when thread has been interrupted
+     * @throws TimeoutException when task has not been processed before the deadline
+     */
+    public void process(RelayTask task, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException(String.format("Timeout cannot be negative (%d)", timeout));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+        getLane(task).process(task, timeout, unit);
+    }
+
+    /**
+     * Submit single relay task to be processed asynchronously. This method never waits for the
+     * task to be processed, however it may wait for a free slot in the queue when lane is full
+     * and {@link OverflowPolicy#BLOCK} policy is used. When task is rejected, its future is
+     * completed with {@link RejectedExecutionException}.
+     *
+     * @param task the task to be processed
+     * @see RelayTask#getFuture()
+     */
+    public void submit(RelayTask task) {
+        getLane(task).submit(task);
+    }
+
+    /**
+     * Get lanes, start processor if necessary.
+     *
+     * @return Execution lanes
+     */
+    private static Lanes getLanes() {
+
+        Lanes current = lanes;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (RelayProcessor.class) {
+            if (lanes == null) {
+                LOG.debug("Starting relay processor with {} lanes", maxLanes);
+                lanes = new Lanes(maxLanes, queueCapacity);
+                watchdog = Executors.newSingleThreadScheduledExecutor(new WatchdogThreadFactory());
+                watchdog.scheduleWithFixedDelay(new Watchdog(), WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+                started.set(true);
+            }
+            return lanes;
+        }
+    }
+
+    public void shutdown() {
+
+        Lanes current = null;
+
+        synchronized (RelayProcessor.class) {
+            if (!started.compareAndSet(true, false)) {
+                return;
+            }
+            current = lanes;
+            lanes = null;
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+
+        LOG.debug("Shutting down relay processor");
+
+        // quarantine lanes may never finish, so do not wait for them
+
+        for (Lane lane : current.quarantined.values()) {
+            lane.runner.shutdownNow();
+        }
+
+        List<Lane> created = current.created();
+        for (Lane lane : created) {
+            lane.runner.shutdown();
+        }
+
+        LOG.debug("Awaiting tasks termination");
+
+        for (Lane lane : created) {
+            while (!lane.runner.isTerminated()) {
+
+                try {
+                    lane.runner.awaitTermination(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                lane.runner.shutdownNow();
+            }
+        }
+
+        LOG.debug("All tasks has been terminated");
+    }
+
+    /**
+     * Set maximum number of execution lanes. New value will be used when processor is started
+     * next time.
+     *
+     * @param max the maximum number of lanes
+     * @throws IllegalArgumentException when max is less than 1
+     */
+    public void setMaxLanes(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException(String.format("Maximum number of lanes must be positive (%d)", max));
+        }
+        if (started.get()) {
+            LOG.debug("Processor is already started, {} lanes will be used after restart", max);
+        }
+        maxLanes = max;
+    }
+
+    /**
+     * @return Maximum number of execution lanes
+     */
+    public int getMaxLanes() {
+        return maxLanes;
+    }
+
+    /**
+     * Set capacity of the single lane queue. New value will be used when processor is started next
+     * time.
+     *
+     * @param capacity the maximum number of pending tasks in single lane
+     * @throws IllegalArgumentException when capacity is less than 1
+     */
+    public void setQueueCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Queue capacity must be positive (%d)", capacity));
+        }
+        if (started.get()) {
+            LOG.debug("Processor is already started, queue capacity {} will be used after restart", capacity);
+        }
+        queueCapacity = capacity;
+    }
+
+    /**
+     * @return Capacity of the single lane queue
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Set policy to be used when lane queue is full. New policy is used immediately.
+     *
+     * @param policy the overflow policy
+     * @throws IllegalArgumentException when policy is null
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        }
+        overflowPolicy = policy;
+    }
+
+    /**
+     * @return Policy used when lane queue is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Enable or disable coalescing of pending commands. When enabled, command (e.g. open or close)
+     * which is still waiting in the queue is superseded by the newer command of the same relay, so
+     * only the final relay state is sent to the device. Callers of superseded commands receive the
+     * outcome of the surviving one.
+     *
+     * @param on true to enable, false to disable
+     */
+    public void setCoalescing(boolean on) {
+        coalescing = on;
+    }
+
+    /**
+     * @return True if pending commands of the same relay are coalesced
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Set time after which task is considered to be hung in the device. Caller waiting for such
+     * task is released with {@link TimeoutException} and the device is moved into the quarantine
+     * lane, so other devices served by the same lane are not blocked.
+     *
+     * @param timeout the hung task timeout
+     * @param unit the time unit
+     * @throws IllegalArgumentException when timeout is not positive or unit is null
+     */
+    public void setHungTaskTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException(String.format("Hung task timeout must be positive (%d)", timeout));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+        hungTaskTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Time after which task is considered to be hung in the device
+     */
+    public long getHungTaskTimeout(TimeUnit unit) {
+        return unit.convert(hungTaskTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get statistics of all execution lanes which has been created so far.
+     *
+     * @return List of lanes statistics
+     */
+    public List<LaneStatistics> getLaneStatistics() {
+
+        Lanes current = lanes;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+
+        List<LaneStatistics> statistics = new ArrayList<LaneStatistics>();
+        for (Lane lane : current.all()) {
+            statistics.add(lane.getStatistics());
+        }
+
+        return Collections.unmodifiableList(statistics);
+    }
+
+    /**
+     * Get latency statistics of every task priority. Both tasks processed by the execution lanes
+     * and tasks of thread-safe drivers executed directly are included. Statistics are accumulated
+     * since the class has been loaded.
+     *
+     * @return List of priority statistics, from the highest priority to the lowest one
+     */
+    public List<PriorityStatistics> getPriorityStatistics() {
+        RelayTask.Priority[] priorities = RelayTask.Priority.values();
+        List<PriorityStatistics> statistics = new ArrayList<PriorityStatistics>(priorities.length);
+        for (RelayTask.Priority priority : priorities) {
+            PriorityMetrics m = METRICS[priority.ordinal()];
+            statistics.add(new PriorityStatistics(priority, m.processed.get(), m.latency.get(), m.maxLatency.get()));
+        }
+        return Collections.unmodifiableList(statistics);
     }
 
     public static synchronized RelayProcessor getInstance() {
@@ -0,0 +1,188 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coordinates disposal of relays when JVM exits or when TERM signal is received. Instead of every
+ * relay installing its own shutdown hook, relays are registered here once and single
+ * {@link RelayShutdownHook} is installed for all of them, so opening and closing relay never
+ * touches {@link Runtime}. Relays are disposed in parallel, routed through the processor lanes
+ * (so devices of different drivers and different physical devices are disposed concurrently,
+ * while channels of the same physical device are still disposed one by one), and the whole
+ * disposal is bounded by the deadline.
+ */
+public class RelayShutdownCoordinator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayShutdownCoordinator.class);
+
+    /**
+     * Default time given to all relays to be disposed (ms).
+     */
+    public static final long DEFAULT_DEADLINE = 10000;
+
+    private static final RelayShutdownCoordinator INSTANCE = new RelayShutdownCoordinator();
+
+    /**
+     * Relays which has been open at least once and are not disposed yet.
+     */
+    private final Set<Relay> relays = Collections.newSetFromMap(new ConcurrentHashMap<Relay, Boolean>());
+
+    /**
+     * Is shutdown hook installed.
+     */
+    private final AtomicBoolean installed = new AtomicBoolean(false);
+
+    /**
+     * Is JVM shutdown in progress.
+     */
+    private volatile boolean shuttingDown = false;
+
+    private volatile long deadline = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEADLINE);
+
+    /**
+     * Register relay to be disposed on JVM exit. Registering relay which is already registered
+     * does nothing, so it can be called whenever relay is open.
+     *
+     * @param relay the relay to be registered
+     */
+    void register(Relay relay) {
+        if (installed.compareAndSet(false, true)) {
+            install();
+        }
+        relays.add(relay);
+    }
+
+    /**
+     * Unregister relay, e.g. because it has been disposed.
+     *
+     * @param relay the relay to be unregistered
+     */
+    void unregister(Relay relay) {
+        relays.remove(relay);
+    }
+
+    private void install() {
+        try {
+            Runtime.getRuntime().addShutdownHook(new RelayShutdownHook(this));
+        } catch (IllegalStateException e) {
+            LOG.debug("Shutdown in progress, cannot install shutdown hook");
+            shuttingDown = true;
+        }
+    }
+
+    /**
+     * @return True if JVM shutdown is in progress, so no relay should be open anymore
+     */
+    boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    /**
+     * Dispose all registered relays which are open and release all relay locks, so relays can be
+     * taken over by other process right away. Called by the shutdown hook.
+     */
+    void shutdown() {
+
+        shuttingDown = true;
+
+        List<Relay> open = new ArrayList<Relay>();
+        for (Relay relay : relays) {
+            if (relay.isOpen()) {
+                open.add(relay);
+            }
+        }
+
+        LOG.info("Automatic deallocation of {} relays", open.size());
+
+        dispose(open);
+
+        // locks of relays not disposed before the deadline would be held until their leases
+        // expire, tasks still pending for them are rejected since their fencing tokens are stale
+
+        int released = RelayLockHeartbeat.getInstance().releaseAll();
+        if (released > 0) {
+            LOG.info("Released {} relay locks", released);
+        }
+    }
+
+    /**
+     * Dispose given relays in parallel and wait until they are disposed, but not longer than the
+     * deadline.
+     *
+     * @param relays the relays to be disposed
+     * @return True if all relays has been disposed before the deadline, false otherwise
+     */
+    boolean dispose(Collection<Relay> relays) {
+
+        long end = System.nanoTime() + deadline;
+
+        List<Relay> pending = new ArrayList<Relay>(relays.size());
+        List<RelayFuture<Void>> futures = new ArrayList<RelayFuture<Void>>(relays.size());
+
+        for (Relay relay : relays) {
+            try {
+                futures.add(relay.disposeAsync());
+                pending.add(relay);
+            } catch (Throwable t) {
+                LOG.error(String.format("Cannot dispose relay %s", relay.getName()), t);
+            }
+        }
+
+        int disposed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            RelayFuture<Void> future = futures.get(i);
+            long remaining = end - System.nanoTime();
+            try {
+                if (remaining > 0 && future.await(remaining, TimeUnit.NANOSECONDS)) {
+                    disposed++;
+                } else {
+                    LOG.warn("Relay {} has not been disposed before the deadline", pending.get(i).getName());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return disposed == futures.size() && futures.size() == relays.size();
+    }
+
+    /**
+     * Set time given to all relays to be disposed when JVM exits or TERM signal is received.
+     *
+     * @param deadline the deadline
+     * @param unit the time unit
+     * @throws IllegalArgumentException when deadline is not positive or unit is null
+     */
+    public void setDeadline(long deadline, TimeUnit unit) {
+        if (deadline <= 0) {
+            throw new IllegalArgumentException(String.format("Deadline must be positive (%d)", deadline));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+        this.deadline = unit.toNanos(deadline);
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Time given to all relays to be disposed
+     */
+    public long getDeadline(TimeUnit unit) {
+        return unit.convert(deadline, TimeUnit.NANOSECONDS);
+    }
+
+    public static RelayShutdownCoordinator getInstance() {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,294 @@
+package com.github.jrelay;
+
+import com.github.jrelay.task.RelayReadStateTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the hardware state read back from the {@link RelayDevice.StateReadable} devices. State
+ * is cached per physical device (board), so state of all its channels is refreshed with single
+ * request. Cached state is refreshed lazily, when caller asks for state older than it accepts,
+ * or periodically by the background poller, so that readers polling many channels read only
+ * memory and do not generate any traffic to the devices.
+ */
+public class RelayStateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayStateCache.class);
+
+    /**
+     * Thread polling state of the physical devices.
+     */
+    private static final class PollerThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "relay-state-poller");
+            t.setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Cached state of single physical device.
+     */
+    private static final class Board {
+
+        private final RelayDriver driver;
+        private final RelayDevice device;
+
+        /**
+         * Lock making sure only one request is reading the state at the same time.
+         */
+        private final Object reading = new Object();
+
+        private volatile long state = 0;
+
+        /**
+         * Time when state has been read (ns), valid only when board has been read at least once.
+         */
+        private volatile long timestamp = 0;
+
+        private volatile boolean read = false;
+
+        /**
+         * Incremented whenever channel state is changed by this API, so that the state read before
+         * the change is not stored.
+         */
+        private long version = 0;
+
+        public Board(RelayDriver driver, RelayDevice device) {
+            this.driver = driver;
+            this.device = device;
+        }
+
+        public boolean isFresh(long maxStaleness) {
+            return read && System.nanoTime() - timestamp <= maxStaleness;
+        }
+
+        public synchronized long getVersion() {
+            return version;
+        }
+
+        public synchronized void store(long version, long state, long timestamp) {
+            if (this.version != version) {
+                return;
+            }
+            this.state = state;
+            this.timestamp = timestamp;
+            this.read = true;
+        }
+
+        public synchronized void update(int channel, boolean open) {
+            if (open) {
+                state |= 1L << channel;
+            } else {
+                state &= ~(1L << channel);
+            }
+            version++;
+        }
+    }
+
+    /**
+     * Polls all physical devices whose state has been read at least once.
+     */
+    private final class Poller implements Runnable {
+
+        @Override
+        public void run() {
+            for (Board board : boards.values()) {
+                try {
+                    refresh(board, RelayTask.Priority.BACKGROUND);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    LOG.debug(String.format("Cannot poll state of %s", board.device.getName()), e);
+                }
+            }
+        }
+    }
+
+    private static final RelayStateCache INSTANCE = new RelayStateCache();
+
+    /**
+     * Cached state by the physical key.
+     */
+    private final ConcurrentMap<Object, Board> boards = new ConcurrentHashMap<Object, Board>();
+
+    /**
+     * Number of state requests sent to the devices.
+     */
+    private final AtomicLong reads = new AtomicLong(0);
+
+    private ScheduledExecutorService poller = null;
+
+    private long pollInterval = 0;
+
+    /**
+     * Is channel of the given device open? State is taken from the cache if it's not older than
+     * given staleness, otherwise state of the whole physical device is read from the hardware.
+     *
+     * @param driver the device driver
+     * @param device the device
+     * @param maxStaleness the maximum accepted age of the cached state
+     * @param unit the time unit
+     * @return True if device channel is open, false otherwise
+     * @throws InterruptedException when thread has been interrupted while reading state
+     * @throws RelayException when device state cannot be read
+     * @see #getState(RelayDriver, RelayDevice, long, TimeUnit)
+     */
+    boolean isOpen(RelayDriver driver, RelayDevice device, long maxStaleness, TimeUnit unit) throws InterruptedException {
+        long state = getState(driver, device, maxStaleness, unit);
+        return (state & (1L << ((RelayDevice.StateReadable) device).getChannel())) != 0;
+    }
+
+    /**
+     * Get state of all channels of the physical device the given device belongs to. State is
+     * taken from the cache if it's not older than given staleness, otherwise it's read from the
+     * hardware. When many threads ask for stale state of the same physical device at the same
+     * time, it is read only once.
+     *
+     * @param driver the device driver
+     * @param device the device
+     * @param maxStaleness the maximum accepted age of the cached state
+     * @param unit the time unit
+     * @return Bit mask of open channels
+     * @throws InterruptedException when thread has been interrupted while reading state
+     * @throws RelayException when device state cannot be read
+     */
+    long getState(RelayDriver driver, RelayDevice device, long maxStaleness, TimeUnit unit) throws InterruptedException {
+
+        Board board = board(driver, device);
+        long staleness = unit.toNanos(maxStaleness);
+
+        if (!board.isFresh(staleness)) {
+            synchronized (board.reading) {
+                if (!board.isFresh(staleness)) {
+                    refresh(board, RelayTask.Priority.NORMAL);
+                }
+            }
+        }
+
+        return board.state;
+    }
+
+    /**
+     * Update cached state after device channel has been switched by this API, so that it does
+     * not have to be read again.
+     *
+     * @param device the device which has been switched
+     * @param open true if device channel has been open, false if it has been closed
+     */
+    void update(RelayDevice device, boolean open) {
+        RelayDevice.StateReadable readable = (RelayDevice.StateReadable) device;
+        Board board = boards.get(readable.getPhysicalKey());
+        if (board != null) {
+            board.update(readable.getChannel(), open);
+        }
+    }
+
+    /**
+     * Discard cached state of the given physical device, e.g. because it has been disconnected.
+     *
+     * @param key the physical device key
+     */
+    public void invalidate(Object key) {
+        boards.remove(key);
+    }
+
+    private Board board(RelayDriver driver, RelayDevice device) {
+        Object key = ((RelayDevice.StateReadable) device).getPhysicalKey();
+        Board board = boards.get(key);
+        if (board == null) {
+            Board tmp = new Board(driver, device);
+            board = boards.putIfAbsent(key, tmp);
+            if (board == null) {
+                board = tmp;
+            }
+        }
+        return board;
+    }
+
+    private void refresh(Board board, RelayTask.Priority priority) throws InterruptedException {
+
+        long version = board.getVersion();
+
+        RelayReadStateTask task = new RelayReadStateTask(board.driver, board.device);
+        task.setPriority(priority);
+
+        reads.incrementAndGet();
+
+        long state = task.read();
+
+        board.store(version, state, System.nanoTime());
+    }
+
+    /**
+     * Set interval in which the background poller refreshes state of all physical devices whose
+     * state has been read at least once. Poller is stopped when interval is 0, which is the
+     * default, in which case state is only refreshed when somebody asks for it.
+     *
+     * @param interval the poll interval, 0 to stop polling
+     * @param unit the time unit
+     * @throws IllegalArgumentException when interval is negative or unit is null
+     */
+    public synchronized void setPollInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException(String.format("Poll interval cannot be negative (%d)", interval));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+
+        pollInterval = unit.toNanos(interval);
+
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+
+        if (pollInterval > 0) {
+            LOG.debug("Starting relay state poller");
+            poller = Executors.newSingleThreadScheduledExecutor(new PollerThreadFactory());
+            poller.scheduleWithFixedDelay(new Poller(), pollInterval, pollInterval, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Interval in which the background poller refreshes the state, 0 when not polling
+     */
+    public synchronized long getPollInterval(TimeUnit unit) {
+        return unit.convert(pollInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Number of state requests sent to the devices
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Stop the background poller. Cached state is kept.
+     */
+    public synchronized void shutdown() {
+        if (poller != null) {
+            LOG.debug("Shutting down relay state poller");
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    public static RelayStateCache getInstance() {
+        return INSTANCE;
+    }
+}
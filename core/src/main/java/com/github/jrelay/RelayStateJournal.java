@@ -0,0 +1,343 @@
+package com.github.jrelay;
+
+import com.github.jrelay.task.RelayReadStateTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional journal of the last known state of every relay, so relays can be restored immediately
+ * after JVM restart instead of probing all the devices. Journal is a memory-mapped file divided
+ * into fixed size slots, one per relay name, and the slot is overwritten in place whenever relay
+ * is open or closed, which costs only a few memory writes. Since the file is mapped, state written
+ * by the process survives even if JVM crashes. Journal is disabled until it is open.
+ *
+ * <pre>
+ * header: int magic, int version, int slots, int used
+ * slot:   short name length, name (UTF-8), byte state, long timestamp (ms)
+ * </pre>
+ */
+public class RelayStateJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayStateJournal.class);
+
+    /**
+     * Default number of slots.
+     */
+    public static final int DEFAULT_SLOTS = 1024;
+
+    private static final int MAGIC = 0x4A52534A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 128;
+    private static final int NAME_OFFSET = 2;
+    private static final int NAME_SIZE = 110;
+    private static final int STATE_OFFSET = 112;
+    private static final int TIMESTAMP_OFFSET = 120;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final RelayStateJournal INSTANCE = new RelayStateJournal();
+
+    /**
+     * Mapped journal file, null when journal is not open.
+     */
+    private volatile MappedByteBuffer buffer = null;
+
+    private File file = null;
+
+    private int capacity = 0;
+
+    /**
+     * Slot of every journaled relay name.
+     */
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    /**
+     * Open the journal, so relays state is recorded and relays discovered afterwards are restored
+     * from it. Journal is created when file does not exist or it has been created with different
+     * number of slots.
+     *
+     * @param file the journal file
+     * @throws RelayException when journal cannot be open
+     * @see #open(File, int)
+     */
+    public void open(File file) {
+        open(file, DEFAULT_SLOTS);
+    }
+
+    /**
+     * Open the journal, so relays state is recorded and relays discovered afterwards are restored
+     * from it. Journal is created when file does not exist or it has been created with different
+     * number of slots.
+     *
+     * @param file the journal file
+     * @param capacity the maximum number of journaled relays
+     * @throws IllegalArgumentException when file is null or capacity is not positive
+     * @throws RelayException when journal cannot be open
+     */
+    public synchronized void open(File file, int capacity) {
+
+        if (file == null) {
+            throw new IllegalArgumentException("Journal file cannot be null!");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Journal capacity must be positive (%d)", capacity));
+        }
+
+        close();
+
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+
+        MappedByteBuffer tmp = null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            boolean valid = raf.length() == size;
+            raf.setLength(size);
+            tmp = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!valid || tmp.getInt(0) != MAGIC || tmp.getInt(4) != VERSION || tmp.getInt(8) != capacity) {
+                LOG.info("Creating relay state journal {}", file);
+                tmp.putInt(0, MAGIC);
+                tmp.putInt(4, VERSION);
+                tmp.putInt(8, capacity);
+                tmp.putInt(12, 0);
+            }
+        } catch (IOException e) {
+            throw new RelayException(String.format("Cannot open relay state journal %s", file), e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    LOG.trace("Cannot close journal file", e);
+                }
+            }
+        }
+
+        // journal written by process which crashed or by something else is created again
+
+        int used = tmp.getInt(12);
+        boolean valid = used >= 0 && used <= capacity;
+        for (int i = 0; valid && i < used; i++) {
+            String name = readName(tmp, i);
+            if (name == null) {
+                valid = false;
+            } else {
+                slots.put(name, i);
+            }
+        }
+
+        if (!valid) {
+            LOG.warn("Relay state journal {} is corrupted, creating new one", file);
+            slots.clear();
+            tmp.putInt(12, 0);
+            used = 0;
+        }
+
+        LOG.debug("Relay state journal {} has {} records", file, used);
+
+        this.file = file;
+        this.capacity = capacity;
+        this.buffer = tmp;
+    }
+
+    /**
+     * Close the journal, relays state is not recorded anymore.
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+            file = null;
+            slots.clear();
+        }
+    }
+
+    /**
+     * @return True if journal is open
+     */
+    public boolean isOpen() {
+        return buffer != null;
+    }
+
+    /**
+     * @return Journal file or null if journal is not open
+     */
+    public synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Relay name journaled in the slot or null if its length is not valid
+     */
+    private static String readName(MappedByteBuffer buffer, int slot) {
+        int offset = HEADER_SIZE + slot * SLOT_SIZE;
+        int length = buffer.getShort(offset);
+        if (length < 0 || length > NAME_SIZE) {
+            return null;
+        }
+        byte[] name = new byte[length];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = buffer.get(offset + NAME_OFFSET + i);
+        }
+        return new String(name, UTF8);
+    }
+
+    /**
+     * Record relay state. Relay which has not been journaled yet gets new slot, which is the only
+     * case when anything is allocated.
+     *
+     * @param name the relay name
+     * @param open true if relay is open, false otherwise
+     */
+    void record(String name, boolean open) {
+
+        if (buffer == null) {
+            return;
+        }
+
+        synchronized (this) {
+
+            MappedByteBuffer tmp = buffer;
+            if (tmp == null) {
+                return;
+            }
+
+            Integer slot = slots.get(name);
+            if (slot == null && (slot = allocate(tmp, name)) == null) {
+                return;
+            }
+
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            tmp.putLong(offset + TIMESTAMP_OFFSET, System.currentTimeMillis());
+            tmp.put(offset + STATE_OFFSET, (byte) (open ? 1 : 0));
+        }
+    }
+
+    private Integer allocate(MappedByteBuffer buffer, String name) {
+
+        byte[] bytes = name.getBytes(UTF8);
+        if (bytes.length > NAME_SIZE) {
+            LOG.warn("Relay name {} is too long to be journaled", name);
+            return null;
+        }
+
+        int used = buffer.getInt(12);
+        if (used >= capacity) {
+            LOG.warn("Relay state journal is full, relay {} will not be journaled", name);
+            return null;
+        }
+
+        int offset = HEADER_SIZE + used * SLOT_SIZE;
+        buffer.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(offset + NAME_OFFSET + i, bytes[i]);
+        }
+        buffer.putInt(12, used + 1);
+
+        slots.put(name, used);
+
+        return used;
+    }
+
+    /**
+     * @param name the relay name
+     * @return 1 if relay was open, 0 if it was closed, -1 if it has not been journaled
+     */
+    synchronized int getState(String name) {
+        Integer slot = slots.get(name);
+        if (buffer == null || slot == null) {
+            return -1;
+        }
+        return buffer.get(HEADER_SIZE + slot * SLOT_SIZE + STATE_OFFSET);
+    }
+
+    /**
+     * @param name the relay name
+     * @return Time when relay state has been recorded (ms) or 0 if it has not been journaled
+     */
+    synchronized long getTimestamp(String name) {
+        Integer slot = slots.get(name);
+        if (buffer == null || slot == null) {
+            return 0;
+        }
+        return buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Restore freshly discovered relays from the journal. Relays which were open are immediately
+     * reported as open, without touching the devices. Restored devices which are able to read
+     * their state are then reconciled in background, one request per physical device, and relays
+     * which turn out to be closed are closed.
+     *
+     * @param relays the relays to be restored
+     */
+    void restore(List<Relay> relays) {
+
+        if (buffer == null) {
+            return;
+        }
+
+        final Map<Object, List<Relay>> boards = new LinkedHashMap<Object, List<Relay>>();
+
+        for (Relay relay : relays) {
+
+            if (getState(relay.getName()) != 1 || !relay.restore()) {
+                continue;
+            }
+
+            LOG.debug("Relay {} has been restored as open", relay.getName());
+
+            RelayDevice device = relay.getDevice();
+            if (device instanceof RelayDevice.StateReadable) {
+                Object key = ((RelayDevice.StateReadable) device).getPhysicalKey();
+                List<Relay> board = boards.get(key);
+                if (board == null) {
+                    board = new ArrayList<Relay>();
+                    boards.put(key, board);
+                }
+                board.add(relay);
+            }
+        }
+
+        for (final List<Relay> board : boards.values()) {
+
+            final RelayReadStateTask task = new RelayReadStateTask(Relay.getDriver(), board.get(0).getDevice());
+            task.setPriority(RelayTask.Priority.BACKGROUND);
+
+            task.submit().addCallback(new RelayFuture.Callback<Void>() {
+
+                @Override
+                public void completed(Void nothing) {
+                    for (Relay relay : board) {
+                        int channel = ((RelayDevice.StateReadable) relay.getDevice()).getChannel();
+                        if ((task.getState() & (1L << channel)) == 0) {
+                            relay.reconcileClosed();
+                        }
+                    }
+                }
+
+                @Override
+                public void failed(Throwable t) {
+                    LOG.debug(String.format("Cannot reconcile state of %s", board.get(0).getName()), t);
+                }
+            });
+        }
+    }
+
+    public static RelayStateJournal getInstance() {
+        return INSTANCE;
+    }
+}
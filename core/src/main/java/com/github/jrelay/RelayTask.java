@@ -1,14 +1,68 @@
 package com.github.jrelay;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by nightingale on 29.04.16.
  */
 public abstract class RelayTask {
 
+    /**
+     * Task priority. Processor always processes tasks of higher priority before tasks of lower
+     * priority, tasks of the same priority are processed in order they have been submitted.
+     */
+    public static enum Priority {
+
+        /**
+         * Safety related tasks (e.g. emergency switch off) which must never wait for routine work.
+         */
+        CRITICAL,
+
+        /**
+         * Routine relay switching.
+         */
+        NORMAL,
+
+        /**
+         * Tasks nobody is waiting for, e.g. device discovery probes.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Task is waiting to be processed.
+     */
+    private static final int PENDING = 0;
+
+    /**
+     * Task processing has been started.
+     */
+    private static final int STARTED = 1;
+
+    /**
+     * Task has been superseded by newer task of the same relay and will not be processed.
+     */
+    private static final int SUPERSEDED = 2;
+
+    /**
+     * Task has been cancelled before processing started (e.g. because its deadline elapsed).
+     */
+    private static final int CANCELLED = 3;
+
     private boolean doSync = true;
     private RelayProcessor processor = null;
     private RelayDevice device = null;
     private Throwable throwable = null;
+    private long submitTime = 0;
+    private Priority priority = Priority.NORMAL;
+    private final RelayFuture<Void> future = new RelayFuture<Void>();
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private List<RelayTask> superseded = null;
+    private RelayLock fence = null;
 
     public RelayTask(boolean threadSafe, RelayDevice device) {
         this.doSync = !threadSafe;
@@ -38,17 +92,268 @@ public abstract class RelayTask {
         boolean alreadyInSync = Thread.currentThread() instanceof RelayProcessor.ProcessorThread;
 
         if (alreadyInSync) {
-            handle();
+            start();
+            perform();
         } else {
+            if (processor == null) {
+                throw new RuntimeException("Task should be processed, but processor is null");
+            }
             if (doSync) {
-                if (processor == null) {
-                    throw new RuntimeException("Driver should be synchronized, but processor is null");
-                }
                 processor.process(this);
             } else {
-                handle();
+                processor.execute(this);
+            }
+        }
+    }
+
+    /**
+     * Process task by processor thread, but do not wait longer than given timeout. If the deadline
+     * elapses before the task has been started, it is cancelled and will not be processed at all.
+     * Task is always processed by the processor thread, even for thread-safe drivers, so the
+     * deadline can be enforced.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit
+     * @throws InterruptedException when thread has been interrupted
+     * @throws TimeoutException when task has not been processed before the deadline
+     */
+    public void process(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+
+        boolean alreadyInSync = Thread.currentThread() instanceof RelayProcessor.ProcessorThread;
+
+        if (alreadyInSync) {
+            start();
+            perform();
+        } else {
+            if (processor == null) {
+                throw new RuntimeException("Task should be processed with deadline, but processor is null");
+            }
+            processor.process(this, timeout, unit);
+        }
+    }
+
+    /**
+     * Submit task to be processed by processor thread and return immediately. This is done even
+     * for thread-safe drivers, so the calling thread never waits for the device.
+     *
+     * @return Future completed when task has been processed
+     */
+    public RelayFuture<Void> submit() {
+
+        boolean alreadyInSync = Thread.currentThread() instanceof RelayProcessor.ProcessorThread;
+
+        if (alreadyInSync) {
+            start();
+            execute();
+            complete();
+        } else {
+            if (processor == null) {
+                throw new RuntimeException("Task should be submitted, but processor is null");
+            }
+            processor.submit(this);
+        }
+
+        return future;
+    }
+
+    /**
+     * Handle task and store the throwable if it fails.
+     */
+    void execute() {
+        try {
+            perform();
+        } catch (Throwable e) {
+            setThrowable(e);
+        }
+    }
+
+    /**
+     * Check the relay lock and handle the task. Task of relay whose lock has been lost to other
+     * process is rejected before anything is sent to the device, and fencing token is passed to
+     * devices which are able to reject stale commands by themselves.
+     *
+     * @throws RelayLockException when relay lock has been lost
+     */
+    final void perform() {
+        RelayLock tmp = fence;
+        if (tmp != null) {
+            long token = tmp.fence();
+            if (token != -1 && device instanceof RelayDevice.Fenced) {
+                ((RelayDevice.Fenced) device).setFencingToken(token);
+            }
+        }
+        handle();
+    }
+
+    /**
+     * Fence the task with relay lock, so it is rejected when the lock is lost before the task is
+     * handled.
+     *
+     * @param lock the relay lock or null if task is not fenced
+     */
+    void setFence(RelayLock lock) {
+        this.fence = lock;
+    }
+
+    /**
+     * Can this task be coalesced with other pending tasks of the same relay. Only tasks which
+     * set the final relay state (so that only the last of them matters) should return true.
+     *
+     * @return True if task can be coalesced, false otherwise
+     */
+    protected boolean isCoalescable() {
+        return false;
+    }
+
+    /**
+     * Mark task as started. Task which has been superseded cannot be started.
+     *
+     * @return True if task has been started, false if it was superseded
+     */
+    boolean start() {
+        return state.compareAndSet(PENDING, STARTED);
+    }
+
+    /**
+     * Check if task can be reset and reused. Only task which has been started can be reused,
+     * because processor starts tasks after they have been taken from the queue. Task which has
+     * been superseded or cancelled was completed without being processed, so it can still be
+     * waiting in the queue and resetting it would process it later once again.
+     *
+     * @return True if task has been started, false otherwise
+     */
+    boolean isReusable() {
+        return state.get() == STARTED;
+    }
+
+    /**
+     * Cancel task which has not been started yet and complete it with the given cause.
+     *
+     * @param t the cancellation cause
+     * @return True if task has been cancelled, false if its processing has already started
+     */
+    boolean cancel(Throwable t) {
+        if (!state.compareAndSet(PENDING, CANCELLED)) {
+            return false;
+        }
+        complete(t);
+        return true;
+    }
+
+    /**
+     * Complete task with the given failure, no matter if it is still being processed. This is used
+     * to release callers waiting for the task which got stuck in the device.
+     *
+     * @param t the failure cause
+     * @return True if task future has been completed, false if it was already done
+     */
+    boolean fail(Throwable t) {
+        return complete(t);
+    }
+
+    /**
+     * Mark this pending task as superseded by the given one. Superseded task is never processed,
+     * instead it is completed together with the task which superseded it. Tasks superseded by
+     * this one are handed over to the survivor, so the caller must hold the lock under which
+     * tasks of the same relay are superseded and started, otherwise other producer could take
+     * this task over before the hand-off is finished.
+     *
+     * @param survivor the newer task of the same relay
+     * @return True if task has been superseded, false if its processing has already started
+     */
+    boolean supersede(RelayTask survivor) {
+
+        if (!state.compareAndSet(PENDING, SUPERSEDED)) {
+            return false;
+        }
+
+        List<RelayTask> tasks = new ArrayList<RelayTask>();
+        if (superseded != null) {
+            tasks.addAll(superseded);
+            superseded = null;
+        }
+        tasks.add(this);
+
+        survivor.superseded = tasks;
+
+        return true;
+    }
+
+    /**
+     * Complete task future, either successfully or with the throwable set. Tasks superseded by
+     * this one are completed first, with the same outcome.
+     */
+    void complete() {
+        complete(throwable);
+    }
+
+    private boolean complete(Throwable t) {
+        if (superseded != null) {
+            for (RelayTask task : superseded) {
+                task.setThrowable(t);
+                task.complete(t);
             }
         }
+        if (t == null) {
+            return future.complete(null);
+        } else {
+            return future.fail(t);
+        }
+    }
+
+    /**
+     * Prepare task to be processed again, so the same instance can be reused for the next
+     * operation instead of allocating new one. It must only be called when task has been
+     * successfully completed, it is reusable and nobody else holds it anymore.
+     *
+     * @see #isReusable()
+     */
+    void reset() {
+        state.set(PENDING);
+        throwable = null;
+        submitTime = 0;
+        superseded = null;
+        priority = Priority.NORMAL;
+        fence = null;
+        future.reset();
+    }
+
+    /**
+     * @return Future completed when task has been processed
+     */
+    public RelayFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * @return Task priority
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set task priority. It has to be set before task is processed or submitted.
+     *
+     * @param priority the task priority
+     * @throws IllegalArgumentException when priority is null
+     */
+    public void setPriority(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Task priority cannot be null");
+        }
+        this.priority = priority;
+    }
+
+    /**
+     * @return Time when task has been enqueued by the processor (ns)
+     */
+    long getSubmitTime() {
+        return submitTime;
+    }
+
+    void setSubmitTime(long submitTime) {
+        this.submitTime = submitTime;
     }
 
     public Throwable getThrowable() {
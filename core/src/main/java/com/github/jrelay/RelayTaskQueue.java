@@ -0,0 +1,178 @@
+package com.github.jrelay;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Blocking queue of relay tasks ordered by the task priority. Tasks of higher priority are always
+ * taken before tasks of lower priority, tasks of the same priority are taken in FIFO order. Every
+ * priority is bounded separately, so flood of routine tasks can never prevent critical task from
+ * being enqueued. Intrinsic monitor is used instead of explicit locks, so neither producer nor
+ * consumer allocates anything when it has to wait.
+ */
+final class RelayTaskQueue {
+
+    private final List<ArrayDeque<RelayTask>> queues;
+    private final int capacity;
+    private int count = 0;
+
+    /**
+     * @param capacity the maximum number of tasks of single priority
+     */
+    public RelayTaskQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Queue capacity must be positive (%d)", capacity));
+        }
+        RelayTask.Priority[] priorities = RelayTask.Priority.values();
+        this.capacity = capacity;
+        this.queues = new ArrayList<ArrayDeque<RelayTask>>(priorities.length);
+        for (int i = 0; i < priorities.length; i++) {
+            queues.add(new ArrayDeque<RelayTask>());
+        }
+    }
+
+    private ArrayDeque<RelayTask> queue(RelayTask task) {
+        return queues.get(task.getPriority().ordinal());
+    }
+
+    private void enqueue(ArrayDeque<RelayTask> queue, RelayTask task) {
+        queue.addLast(task);
+        count++;
+        notifyAll();
+    }
+
+    private RelayTask dequeue() {
+        for (int i = 0; i < queues.size(); i++) {
+            RelayTask task = queues.get(i).pollFirst();
+            if (task != null) {
+                count--;
+                notifyAll();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Enqueue task if there is a free slot for its priority.
+     *
+     * @param task the task to be enqueued
+     * @return True if task has been enqueued, false if queue is full
+     */
+    public synchronized boolean offer(RelayTask task) {
+        ArrayDeque<RelayTask> queue = queue(task);
+        if (queue.size() >= capacity) {
+            return false;
+        }
+        enqueue(queue, task);
+        return true;
+    }
+
+    /**
+     * Enqueue task, wait for a free slot for its priority if necessary.
+     *
+     * @param task the task to be enqueued
+     * @throws InterruptedException when thread has been interrupted while waiting
+     */
+    public synchronized void put(RelayTask task) throws InterruptedException {
+        ArrayDeque<RelayTask> queue = queue(task);
+        while (queue.size() >= capacity) {
+            wait();
+        }
+        enqueue(queue, task);
+    }
+
+    /**
+     * Take the oldest task of the highest priority, wait if queue is empty.
+     *
+     * @return Task to be processed
+     * @throws InterruptedException when thread has been interrupted while waiting
+     */
+    public synchronized RelayTask take() throws InterruptedException {
+        while (count == 0) {
+            wait();
+        }
+        return dequeue();
+    }
+
+    /**
+     * @return The oldest task of the highest priority or null if queue is empty
+     */
+    public synchronized RelayTask poll() {
+        return dequeue();
+    }
+
+    /**
+     * Remove the oldest task of given relay device which has the same priority as the given task.
+     *
+     * @param task the task whose device and priority are used
+     * @return Removed task or null if there is no such task
+     */
+    public synchronized RelayTask removeOldest(RelayTask task) {
+        Iterator<RelayTask> i = queue(task).iterator();
+        while (i.hasNext()) {
+            RelayTask t = i.next();
+            if (t.getDevice() == task.getDevice()) {
+                i.remove();
+                count--;
+                notifyAll();
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replace the given task in the queue with the new one, as a single operation. New task is
+     * enqueued as the newest one of its priority. The slot freed by the old task is used when
+     * both tasks have the same priority, otherwise there has to be a free slot for the new task.
+     *
+     * @param task the task to be replaced
+     * @param replacement the new task
+     * @return True if task has been replaced, false if it was not in the queue or there is no
+     *         free slot for the new task
+     */
+    public synchronized boolean replace(RelayTask task, RelayTask replacement) {
+        ArrayDeque<RelayTask> queue = queue(replacement);
+        if (queue != queue(task) && queue.size() >= capacity) {
+            return false;
+        }
+        Iterator<RelayTask> i = queue(task).iterator();
+        while (i.hasNext()) {
+            if (i.next() == task) {
+                i.remove();
+                queue.addLast(replacement);
+                notifyAll();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all tasks from the queue, in the same order they would be taken.
+     *
+     * @param tasks the collection to which tasks are added
+     * @return Number of removed tasks
+     */
+    public synchronized int drainTo(Collection<RelayTask> tasks) {
+        int n = count;
+        for (ArrayDeque<RelayTask> queue : queues) {
+            tasks.addAll(queue);
+            queue.clear();
+        }
+        count = 0;
+        notifyAll();
+        return n;
+    }
+
+    /**
+     * @return Number of tasks in the queue
+     */
+    public synchronized int size() {
+        return count;
+    }
+}
@@ -0,0 +1,332 @@
+package com.github.jrelay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel executing delayed relay actions (pulses, delayed switching, etc). All
+ * actions share single timer thread, so any number of pending actions costs only memory. Time is
+ * divided into ticks, every slot of the wheel holds actions which expire in the same tick (of the
+ * current or one of the next rounds), so scheduling and expiration is O(1) no matter how many
+ * actions are pending. Actions are executed with tick precision by the timer thread and therefore
+ * they have to return quickly and never block, e.g. by submitting asynchronous relay task.
+ */
+public class RelayTimer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayTimer.class);
+
+    /**
+     * Default tick duration (ms).
+     */
+    public static final long DEFAULT_TICK = 10;
+
+    /**
+     * Default number of slots in the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Thread executing expired actions.
+     */
+    public static final class TimerThread extends Thread {
+
+        public TimerThread(Runnable r) {
+            super(r, "relay-timer");
+            setUncaughtExceptionHandler(RelayExceptionHandler.getInstance());
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Action scheduled to be executed after delay.
+     */
+    public static final class Timeout {
+
+        private final Runnable action;
+        private final long deadline;
+        private long rounds = 0;
+        private Timeout next = null;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel action which has not been executed yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return True if action has been cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * The wheel, accessed only by the timer thread.
+     */
+    private static final class Wheel implements Runnable {
+
+        private final Timeout[] slots;
+        private final int mask;
+        private final long tick;
+
+        /**
+         * Actions scheduled since the last tick, waiting to be put into the wheel.
+         */
+        private final ArrayDeque<Timeout> incoming = new ArrayDeque<Timeout>();
+
+        private final long start = System.nanoTime();
+
+        private long ticks = 0;
+
+        public Wheel(int size, long tick) {
+            this.slots = new Timeout[size];
+            this.mask = size - 1;
+            this.tick = tick;
+        }
+
+        public void add(Timeout timeout) {
+            synchronized (incoming) {
+                incoming.addLast(timeout);
+            }
+        }
+
+        private void transfer() {
+            synchronized (incoming) {
+                Timeout timeout = null;
+                while ((timeout = incoming.pollFirst()) != null) {
+                    if (timeout.cancelled) {
+                        pending.decrementAndGet();
+                        continue;
+                    }
+                    long expires = Math.max((timeout.deadline - start) / tick, ticks);
+                    timeout.rounds = (expires - ticks) / slots.length;
+                    int slot = (int) (expires & mask);
+                    timeout.next = slots[slot];
+                    slots[slot] = timeout;
+                }
+            }
+        }
+
+        private void expire(int slot) {
+
+            Timeout prev = null;
+            Timeout timeout = slots[slot];
+
+            while (timeout != null) {
+
+                Timeout next = timeout.next;
+
+                if (timeout.cancelled || timeout.rounds <= 0) {
+
+                    if (prev == null) {
+                        slots[slot] = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    timeout.next = null;
+                    pending.decrementAndGet();
+
+                    if (!timeout.cancelled) {
+                        try {
+                            timeout.action.run();
+                        } catch (Throwable t) {
+                            LOG.error("Exception when executing timed relay action", t);
+                        }
+                    }
+
+                } else {
+                    timeout.rounds--;
+                    prev = timeout;
+                }
+
+                timeout = next;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+
+                // sleep may wake up slightly earlier, actions must never expire before deadline
+
+                long sleep = 0;
+                while ((sleep = start + (ticks + 1) * tick - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                transfer();
+                expire((int) (ticks & mask));
+
+                ticks++;
+            }
+        }
+    }
+
+    private static final RelayTimer INSTANCE = new RelayTimer();
+
+    /**
+     * Number of actions which has been scheduled but not executed nor cancelled yet.
+     */
+    private static final AtomicInteger pending = new AtomicInteger(0);
+
+    private static volatile long tick = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TICK);
+
+    private static volatile int wheelSize = DEFAULT_WHEEL_SIZE;
+
+    /**
+     * The wheel, null when timer is not started.
+     */
+    private static volatile Wheel wheel = null;
+
+    /**
+     * Timer thread, null when timer is not started.
+     */
+    private static Thread thread = null;
+
+    /**
+     * Schedule action to be executed by the timer thread after given delay. Action must return
+     * quickly and must never block.
+     *
+     * @param action the action to be executed
+     * @param delay the delay
+     * @param unit the time unit
+     * @return Timeout which can be used to cancel the action
+     * @throws IllegalArgumentException when action is null, delay is negative or unit is null
+     */
+    public Timeout schedule(Runnable action, long delay, TimeUnit unit) {
+        if (action == null) {
+            throw new IllegalArgumentException("Timed action cannot be null!");
+        }
+        if (delay < 0) {
+            throw new IllegalArgumentException(String.format("Delay cannot be negative (%d)", delay));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+
+        Timeout timeout = new Timeout(action, System.nanoTime() + unit.toNanos(delay));
+        pending.incrementAndGet();
+        getWheel().add(timeout);
+
+        return timeout;
+    }
+
+    private static Wheel getWheel() {
+
+        Wheel current = wheel;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (RelayTimer.class) {
+            if (wheel == null) {
+                LOG.debug("Starting relay timer");
+                Wheel tmp = new Wheel(wheelSize, tick);
+                thread = new TimerThread(tmp);
+                thread.start();
+                wheel = tmp;
+            }
+            return wheel;
+        }
+    }
+
+    /**
+     * Stop timer thread. Pending actions are discarded.
+     */
+    public void shutdown() {
+
+        Thread tmp = null;
+
+        synchronized (RelayTimer.class) {
+            if (wheel == null) {
+                return;
+            }
+            tmp = thread;
+            thread = null;
+            wheel = null;
+        }
+
+        LOG.debug("Shutting down relay timer");
+
+        tmp.interrupt();
+        try {
+            tmp.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        pending.set(0);
+    }
+
+    /**
+     * Set tick duration. New value will be used when timer is started next time.
+     *
+     * @param duration the tick duration
+     * @param unit the time unit
+     * @throws IllegalArgumentException when duration is not positive or unit is null
+     */
+    public void setTick(long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException(String.format("Tick duration must be positive (%d)", duration));
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("Time unit cannot be null!");
+        }
+        tick = unit.toNanos(duration);
+    }
+
+    /**
+     * @param unit the time unit
+     * @return Tick duration
+     */
+    public long getTick(TimeUnit unit) {
+        return unit.convert(tick, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Set number of slots in the wheel. New value will be used when timer is started next time.
+     *
+     * @param size the number of slots, must be power of two
+     * @throws IllegalArgumentException when size is not positive power of two
+     */
+    public void setWheelSize(int size) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException(String.format("Wheel size must be power of two (%d)", size));
+        }
+        wheelSize = size;
+    }
+
+    /**
+     * @return Number of slots in the wheel
+     */
+    public int getWheelSize() {
+        return wheelSize;
+    }
+
+    /**
+     * @return Number of actions waiting to be executed
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    public static RelayTimer getInstance() {
+        return INSTANCE;
+    }
+}
@@ -7,7 +7,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 /**
  * Created by nightingale on 29.04.16.
  */
-public class RelayDummyDevice implements RelayDevice {
+public class RelayDummyDevice implements RelayDevice, RelayDevice.Restorable {
 
     private AtomicBoolean open = new AtomicBoolean(false);
 
@@ -45,4 +45,9 @@ public class RelayDummyDevice implements RelayDevice {
     public boolean isOpen() {
         return open.get();
     }
+
+    @Override
+    public void restore(boolean open) {
+        this.open.set(open);
+    }
 }
@@ -0,0 +1,76 @@
+package com.github.jrelay.task;
+
+import com.github.jrelay.RelayDevice;
+import com.github.jrelay.RelayDriver;
+import com.github.jrelay.RelayTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Switches several channels of the same physical device at once. Devices which implement
+ * {@link RelayDevice.MaskSwitchable} are switched with single request, other devices are switched
+ * one by one, but still within the single task.
+ */
+public class RelayBoardTask extends RelayTask {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayBoardTask.class);
+
+    private final RelayDevice[] channels;
+    private final long on;
+    private final long off;
+
+    /**
+     * @param driver the driver
+     * @param channels the channel devices of single physical device, indexed by channel number
+     * @param on the mask of channels to be open
+     * @param off the mask of channels to be closed
+     */
+    public RelayBoardTask(RelayDriver driver, RelayDevice[] channels, long on, long off) {
+        super(driver, first(channels, on | off));
+        this.channels = channels;
+        this.on = on;
+        this.off = off;
+    }
+
+    private static RelayDevice first(RelayDevice[] channels, long mask) {
+        for (int i = 0; i < channels.length; i++) {
+            if ((mask & (1L << i)) != 0 && channels[i] != null) {
+                return channels[i];
+            }
+        }
+        throw new IllegalArgumentException("Mask does not select any channel");
+    }
+
+    public void apply() throws InterruptedException {
+        process();
+    }
+
+    @Override
+    protected void handle() {
+
+        RelayDevice device = getDevice();
+
+        if (device instanceof RelayDevice.MaskSwitchable) {
+
+            LOG.debug("Switching channels of {}, on {}, off {}", device.getName(), on, off);
+
+            ((RelayDevice.MaskSwitchable) device).applyMask(on, off);
+
+            return;
+        }
+
+        for (int i = 0; i < channels.length; i++) {
+
+            long bit = 1L << i;
+
+            if ((off & bit) != 0 && channels[i].isOpen()) {
+                LOG.debug("Closing {}", channels[i].getName());
+                channels[i].close();
+            }
+            if ((on & bit) != 0 && !channels[i].isOpen()) {
+                LOG.debug("Opening {}", channels[i].getName());
+                channels[i].open();
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.github.jrelay.task;
 
 import com.github.jrelay.RelayDevice;
 import com.github.jrelay.RelayDriver;
+import com.github.jrelay.RelayFuture;
 import com.github.jrelay.RelayTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,15 @@ public class RelayCloseTask extends RelayTask {
         process();
     }
 
+    public RelayFuture<Void> closeAsync() {
+        return submit();
+    }
+
+    @Override
+    protected boolean isCoalescable() {
+        return true;
+    }
+
     @Override
     protected void handle() {
 
@@ -29,7 +39,7 @@ public class RelayCloseTask extends RelayTask {
             return;
         }
 
-        LOG.info("Closing {}", device.getName());
+        LOG.debug("Closing {}", device.getName());
 
         device.close();
     }
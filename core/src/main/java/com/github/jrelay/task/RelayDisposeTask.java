@@ -2,6 +2,7 @@ package com.github.jrelay.task;
 
 import com.github.jrelay.RelayDevice;
 import com.github.jrelay.RelayDriver;
+import com.github.jrelay.RelayFuture;
 import com.github.jrelay.RelayTask;
 
 /**
@@ -17,6 +18,10 @@ public class RelayDisposeTask extends RelayTask {
         process();
     }
 
+    public RelayFuture<Void> disposeAsync() {
+        return submit();
+    }
+
     @Override
     protected void handle() {
         getDevice().dispose();
@@ -2,6 +2,7 @@ package com.github.jrelay.task;
 
 import com.github.jrelay.RelayDevice;
 import com.github.jrelay.RelayDriver;
+import com.github.jrelay.RelayFuture;
 import com.github.jrelay.RelayTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,15 @@ public class RelayOpenTask extends RelayTask {
         process();
     }
 
+    public RelayFuture<Void> openAsync() {
+        return submit();
+    }
+
+    @Override
+    protected boolean isCoalescable() {
+        return true;
+    }
+
     @Override
     protected void handle() {
 
@@ -30,7 +40,7 @@ public class RelayOpenTask extends RelayTask {
             return;
         }
 
-        LOG.info("Opening webcam {}", device.getName());
+        LOG.debug("Opening relay {}", device.getName());
 
         device.open();
     }
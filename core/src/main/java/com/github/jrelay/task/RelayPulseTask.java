@@ -0,0 +1,54 @@
+package com.github.jrelay.task;
+
+import com.github.jrelay.RelayDevice;
+import com.github.jrelay.RelayDriver;
+import com.github.jrelay.RelayFuture;
+import com.github.jrelay.RelayTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts hardware pulse of the {@link RelayDevice.Pulsable} device.
+ */
+public class RelayPulseTask extends RelayTask {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayPulseTask.class);
+
+    /**
+     * Time (from {@link System#nanoTime()}) when the pulse has been started.
+     */
+    private volatile long started = 0;
+
+    public RelayPulseTask(RelayDriver driver, RelayDevice device) {
+        super(driver, device);
+        if (!(device instanceof RelayDevice.Pulsable)) {
+            throw new IllegalArgumentException(String.format("Device %s cannot pulse", device.getName()));
+        }
+    }
+
+    public RelayFuture<Void> pulseAsync() {
+        return submit();
+    }
+
+    /**
+     * Get time when device has been asked to pulse. It's only valid after the task has been
+     * handled.
+     *
+     * @return Pulse start time in nanoseconds (from {@link System#nanoTime()})
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    @Override
+    protected void handle() {
+
+        RelayDevice device = getDevice();
+
+        LOG.debug("Pulsing {}", device.getName());
+
+        started = System.nanoTime();
+
+        ((RelayDevice.Pulsable) device).pulse();
+    }
+}
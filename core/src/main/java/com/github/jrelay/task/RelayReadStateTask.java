@@ -0,0 +1,52 @@
+package com.github.jrelay.task;
+
+import com.github.jrelay.RelayDevice;
+import com.github.jrelay.RelayDriver;
+import com.github.jrelay.RelayTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads state of all channels of the physical device with single request.
+ */
+public class RelayReadStateTask extends RelayTask {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayReadStateTask.class);
+
+    private volatile long state = 0;
+
+    public RelayReadStateTask(RelayDriver driver, RelayDevice device) {
+        super(driver, device);
+        if (!(device instanceof RelayDevice.StateReadable)) {
+            throw new IllegalArgumentException(String.format("Device %s cannot read its state", device.getName()));
+        }
+    }
+
+    /**
+     * Read physical device state.
+     *
+     * @return Bit mask of open channels
+     * @throws InterruptedException when thread has been interrupted
+     */
+    public long read() throws InterruptedException {
+        process();
+        return state;
+    }
+
+    /**
+     * @return Bit mask of open channels read by the last processing
+     */
+    public long getState() {
+        return state;
+    }
+
+    @Override
+    protected void handle() {
+
+        RelayDevice.StateReadable device = (RelayDevice.StateReadable) getDevice();
+
+        LOG.debug("Reading state of {}", device.getPhysicalKey());
+
+        state = device.readState();
+    }
+}
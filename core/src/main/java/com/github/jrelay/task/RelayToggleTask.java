@@ -0,0 +1,56 @@
+package com.github.jrelay.task;
+
+import com.github.jrelay.RelayDevice;
+import com.github.jrelay.RelayDriver;
+import com.github.jrelay.RelayFuture;
+import com.github.jrelay.RelayTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flips the device state. Devices which implement {@link RelayDevice.Toggleable} are toggled with
+ * single request, other devices are open or closed depending on their current state. Since task
+ * is processed by the device lane, no other task of the same device can interleave.
+ */
+public class RelayToggleTask extends RelayTask {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelayToggleTask.class);
+
+    private volatile boolean state = false;
+
+    public RelayToggleTask(RelayDriver driver, RelayDevice device) {
+        super(driver, device);
+    }
+
+    public RelayFuture<Void> toggleAsync() {
+        return submit();
+    }
+
+    /**
+     * @return True if device is open after toggle, false if it is closed
+     */
+    public boolean getState() {
+        return state;
+    }
+
+    @Override
+    protected void handle() {
+
+        RelayDevice device = getDevice();
+
+        LOG.debug("Toggling {}", device.getName());
+
+        if (device instanceof RelayDevice.Toggleable) {
+            state = ((RelayDevice.Toggleable) device).toggle();
+            return;
+        }
+
+        if (device.isOpen()) {
+            device.close();
+        } else {
+            device.open();
+        }
+
+        state = device.isOpen();
+    }
+}
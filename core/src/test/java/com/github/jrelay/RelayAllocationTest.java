@@ -0,0 +1,194 @@
+package com.github.jrelay;
+
+import ch.qos.logback.classic.Level;
+import com.github.jrelay.dummy.RelayDummyDevice;
+import com.github.jrelay.dummy.RelayDummyDriver;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RelayAllocationTest {
+
+    private static final int WARMUP = 20000;
+    private static final int TOGGLES = 10000;
+
+    private ch.qos.logback.classic.Logger logger = null;
+    private Level level = null;
+
+    @Before
+    public void prepare() {
+        logger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("com.github.jrelay");
+        level = logger.getLevel();
+        logger.setLevel(Level.INFO);
+        Relay.resetDriver();
+        Relay.setDriver(new RelayDummyDriver(1));
+    }
+
+    @After
+    public void cleanup() {
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+        logger.setLevel(level);
+    }
+
+    private static long[] getSwitchingThreads() {
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t instanceof RelayProcessor.ProcessorThread || t instanceof RelayEventDispatcher.DispatcherThread) {
+                ids.add(t.getId());
+            }
+        }
+        long[] tmp = new long[ids.size()];
+        for (int i = 0; i < tmp.length; i++) {
+            tmp[i] = ids.get(i);
+        }
+        return tmp;
+    }
+
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean mx, long[] ids) {
+        long sum = 0;
+        for (long bytes : mx.getThreadAllocatedBytes(ids)) {
+            sum += bytes;
+        }
+        return sum;
+    }
+
+    private static long getAllocatedPerToggle(Relay relay) {
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < WARMUP; i++) {
+            relay.open();
+            relay.close();
+        }
+
+        long[] ids = getSwitchingThreads();
+        long before = getAllocatedBytes(mx, ids);
+        long overhead = getAllocatedBytes(mx, ids) - before;
+
+        before = getAllocatedBytes(mx, ids);
+        for (int i = 0; i < TOGGLES; i++) {
+            relay.open();
+            relay.close();
+        }
+
+        return (getAllocatedBytes(mx, ids) - before - overhead) / TOGGLES;
+    }
+
+    /**
+     * Event size depends on the JVM (e.g. compressed oops), so it's measured rather than assumed.
+     *
+     * @param relay the relay of the events
+     * @return Bytes allocated to create one relay event
+     */
+    private static long getAllocatedPerEvent(Relay relay) {
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        RelayEvent[] events = new RelayEvent[TOGGLES];
+
+        long[] ids = new long[] { Thread.currentThread().getId() };
+        long before = getAllocatedBytes(mx, ids);
+        for (int i = 0; i < TOGGLES; i++) {
+            events[i] = new RelayEvent(RelayEventType.OPEN, relay);
+        }
+
+        return (getAllocatedBytes(mx, ids) - before) / events.length;
+    }
+
+    @Before
+    public void checkSupported() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported());
+    }
+
+    /**
+     * Relay lock is claimed and released under the lock of the shared lock table file, and JDK
+     * allocates new file lock every time the file is locked (and sometimes more), so toggles are
+     * measured only with the lock disabled.
+     */
+    @Test
+    public void testToggleWithoutLockDoesNotAllocate() {
+
+        Relay relay = Relay.getDefault();
+        relay.getLock().disable();
+
+        Assertions.assertThat(getAllocatedPerToggle(relay)).isEqualTo(0);
+    }
+
+    @Test
+    public void testToggleAllocatesOnlyEventsForListeners() {
+
+        Relay relay = Relay.getDefault();
+        relay.getLock().disable();
+
+        // event dropped from full mailbox would allocate exception, so mailbox has to hold all of
+        // them in case dispatcher falls behind
+
+        RelayEventDispatcher dispatcher = RelayEventDispatcher.getInstance();
+        int capacity = dispatcher.getMailboxCapacity();
+        dispatcher.setMailboxCapacity(2 * (WARMUP + TOGGLES));
+        try {
+            relay.addRelayListener(new RelayListener() {
+
+                @Override
+                public void relayOpen(RelayEvent we) {
+                }
+
+                @Override
+                public void relayClosed(RelayEvent we) {
+                }
+
+                @Override
+                public void relayDisposed(RelayEvent we) {
+                }
+            });
+        } finally {
+            dispatcher.setMailboxCapacity(capacity);
+        }
+
+        // every toggle creates two events (open and close), each carrying its own sequence number
+        // and timestamp, nothing else should be allocated
+
+        Assertions.assertThat(getAllocatedPerToggle(relay)).isEqualTo(2 * getAllocatedPerEvent(relay));
+    }
+
+    @Test
+    public void testDiscoveredRelayIsLightweight() {
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        int n = 1000;
+        RelayDummyDevice device = new RelayDummyDevice(0);
+        Relay[] relays = new Relay[n];
+
+        for (int i = 0; i < n; i++) {
+            relays[i] = new Relay(device);
+        }
+
+        long[] ids = new long[] { Thread.currentThread().getId() };
+        long before = getAllocatedBytes(mx, ids);
+        for (int i = 0; i < n; i++) {
+            relays[i] = new Relay(device);
+        }
+        long allocated = (getAllocatedBytes(mx, ids) - before) / n;
+
+        // neither lock nor mailbox is created until relay is open or listener is added
+
+        Assertions.assertThat(allocated).isLessThanOrEqualTo(256);
+        Assertions.assertThat(relays[0].getRelayListenersCount()).isEqualTo(0);
+    }
+}
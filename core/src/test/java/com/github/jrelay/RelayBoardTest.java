@@ -0,0 +1,247 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RelayBoardTest {
+
+    /**
+     * Channel of the board which switches all its channels with single request.
+     */
+    private static class MaskChannel extends DummyDevice implements RelayDevice.MaskSwitchable {
+
+        private final List<MaskChannel> board;
+        private final AtomicInteger requests;
+        private final int channel;
+
+        public MaskChannel(List<MaskChannel> board, AtomicInteger requests, int channel) {
+            this.board = board;
+            this.requests = requests;
+            this.channel = channel;
+        }
+
+        @Override
+        public void applyMask(long on, long off) {
+            requests.incrementAndGet();
+            for (MaskChannel c : board) {
+                if ((on & (1L << c.channel)) != 0) {
+                    c.open();
+                }
+                if ((off & (1L << c.channel)) != 0) {
+                    c.close();
+                }
+            }
+        }
+
+        @Override
+        public long readState() {
+            long state = 0;
+            for (MaskChannel c : board) {
+                if (c.isOpen()) {
+                    state |= 1L << c.channel;
+                }
+            }
+            return state;
+        }
+
+        @Override
+        public int getChannel() {
+            return channel;
+        }
+
+        @Override
+        public Object getPhysicalKey() {
+            return board;
+        }
+    }
+
+    /**
+     * Channel of the board which can only be switched channel by channel.
+     */
+    private static class PlainChannel extends DummyDevice implements RelayDevice.PhysicalDevice {
+
+        @Override
+        public Object getPhysicalKey() {
+            return "plain-board";
+        }
+    }
+
+    private static class BoardDriver implements RelayDriver {
+
+        private final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    private final AtomicInteger requests = new AtomicInteger(0);
+
+    private BoardDriver driver = null;
+
+    @Before
+    public void prepare() {
+
+        driver = new BoardDriver();
+
+        List<MaskChannel> board = new ArrayList<MaskChannel>();
+        for (int i = 0; i < 4; i++) {
+            board.add(new MaskChannel(board, requests, i));
+        }
+        driver.devices.addAll(board);
+
+        for (int i = 0; i < 3; i++) {
+            driver.devices.add(new PlainChannel());
+        }
+
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+    }
+
+    @After
+    public void cleanup() {
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+    }
+
+    @Test
+    public void testRelaysAreGroupedIntoBoards() {
+
+        List<Relay> relays = Relay.getRelays();
+
+        RelayBoard board = relays.get(0).getBoard();
+        RelayBoard plain = relays.get(4).getBoard();
+
+        Assertions.assertThat(board).isNotNull();
+        Assertions.assertThat(board.getRelays()).containsExactlyElementsOf(relays.subList(0, 4));
+        Assertions.assertThat(board.getChannels()).isEqualTo(0xF);
+
+        Assertions.assertThat(plain).isNotNull().isNotSameAs(board);
+        Assertions.assertThat(plain.getRelays()).containsExactlyElementsOf(relays.subList(4, 7));
+        Assertions.assertThat(plain.getChannel(relays.get(6))).isEqualTo(2);
+    }
+
+    @Test
+    public void testHotplugKeepsOtherRelaysAndBoards() {
+
+        List<Relay> relays = Relay.getRelays();
+        RelayBoard board = relays.get(0).getBoard();
+        RelayBoard plain = relays.get(4).getBoard();
+
+        relays.get(0).open();
+
+        // channel added to the plain board
+
+        driver.devices.add(new PlainChannel());
+        Relay.getDiscoveryService().scan();
+
+        List<Relay> added = Relay.getRelays();
+
+        Assertions.assertThat(added).hasSize(8);
+        Assertions.assertThat(added.subList(0, 7)).containsExactlyElementsOf(relays);
+        Assertions.assertThat(added.get(0).isOpen()).isTrue();
+        Assertions.assertThat(added.get(0).getBoard()).isSameAs(board);
+        Assertions.assertThat(added.get(7).getBoard()).isNotSameAs(plain).isSameAs(added.get(4).getBoard());
+        Assertions.assertThat(added.get(4).getBoard().getRelays()).containsExactlyElementsOf(added.subList(4, 8));
+
+        // channel removed from the plain board
+
+        driver.devices.remove(5);
+        Relay.getDiscoveryService().scan();
+
+        List<Relay> removed = Relay.getRelays();
+
+        Assertions.assertThat(removed).hasSize(7).doesNotContain(relays.get(5));
+        Assertions.assertThat(removed.get(0).getBoard()).isSameAs(board);
+        Assertions.assertThat(removed.get(4).getBoard().getRelays()).containsExactly(relays.get(4), relays.get(6), added.get(7));
+        Assertions.assertThat(Relay.getRelayByHandle(relays.get(6).getHandle())).isSameAs(relays.get(6));
+        Assertions.assertThat(Relay.getRelayByHandle(relays.get(5).getHandle())).isNull();
+    }
+
+    @Test
+    public void testApplyMaskUsesSingleRequest() {
+
+        List<Relay> relays = Relay.getRelays();
+        RelayBoard board = relays.get(0).getBoard();
+
+        final AtomicInteger events = new AtomicInteger(0);
+        relays.get(2).addRelayListener(new RelayListener() {
+
+            @Override
+            public void relayOpen(RelayEvent we) {
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void relayClosed(RelayEvent we) {
+            }
+
+            @Override
+            public void relayDisposed(RelayEvent we) {
+            }
+        });
+
+        Assertions.assertThat(board.applyMask(0x5, 0)).isTrue();
+        Assertions.assertThat(requests.get()).isEqualTo(1);
+        Assertions.assertThat(board.readMask()).isEqualTo(0x5);
+        Assertions.assertThat(relays.get(0).isOpen()).isTrue();
+        Assertions.assertThat(relays.get(1).isOpen()).isFalse();
+        Assertions.assertThat(relays.get(2).isOpen()).isTrue();
+
+        Assertions.assertThat(board.applyMask(0x2, 0x1)).isTrue();
+        Assertions.assertThat(requests.get()).isEqualTo(2);
+        Assertions.assertThat(board.readMask()).isEqualTo(0x6);
+
+        // nothing to switch, no request
+
+        Assertions.assertThat(board.applyMask(0x6, 0)).isTrue();
+        Assertions.assertThat(requests.get()).isEqualTo(2);
+
+        long end = System.currentTimeMillis() + 5000;
+        while (events.get() == 0 && System.currentTimeMillis() < end) {
+            Thread.yield();
+        }
+        Assertions.assertThat(events.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOpenAllFallsBackToChannelWrites() {
+
+        List<Relay> relays = Relay.getRelays();
+
+        Assertions.assertThat(Relay.openAll(relays)).isTrue();
+        Assertions.assertThat(requests.get()).isEqualTo(1);
+        for (Relay relay : relays) {
+            Assertions.assertThat(relay.isOpen()).isTrue();
+            Assertions.assertThat(relay.getDevice().isOpen()).isTrue();
+        }
+        Assertions.assertThat(relays.get(4).getBoard().readMask()).isEqualTo(0x7);
+
+        Assertions.assertThat(Relay.closeAll(relays)).isTrue();
+        Assertions.assertThat(requests.get()).isEqualTo(2);
+        for (Relay relay : relays) {
+            Assertions.assertThat(relay.isOpen()).isFalse();
+            Assertions.assertThat(relay.getDevice().isOpen()).isFalse();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverlappingMasks() {
+        Relay.getRelays().get(0).getBoard().applyMask(0x1, 0x1);
+    }
+}
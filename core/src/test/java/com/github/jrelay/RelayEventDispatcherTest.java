@@ -0,0 +1,193 @@
+package com.github.jrelay;
+
+import com.github.jrelay.dummy.RelayDummyDriver;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RelayEventDispatcherTest {
+
+    private static class RecordingListener implements RelayListener {
+
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        private final CountDownLatch latch;
+
+        public RecordingListener(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        private void record(RelayEvent we) {
+            events.add(we.getType().name());
+            threads.add(Thread.currentThread());
+            latch.countDown();
+        }
+
+        @Override
+        public void relayOpen(RelayEvent we) {
+            record(we);
+        }
+
+        @Override
+        public void relayClosed(RelayEvent we) {
+            record(we);
+        }
+
+        @Override
+        public void relayDisposed(RelayEvent we) {
+            record(we);
+        }
+    }
+
+    @Before
+    public void prepare() {
+        Relay.resetDriver();
+        Relay.setDriver(new RelayDummyDriver(2));
+    }
+
+    @After
+    public void cleanup() {
+        RelayEventBatcher.getInstance().setBatchSize(RelayEventBatcher.DEFAULT_BATCH_SIZE);
+        RelayEventBatcher.getInstance().setMaxLatency(RelayEventBatcher.DEFAULT_MAX_LATENCY, TimeUnit.MILLISECONDS);
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+    }
+
+    @Test
+    public void testEventsAreDeliveredInOrderByDispatcher() throws Exception {
+
+        Relay relay = Relay.getRelays().get(0);
+        relay.getLock().disable();
+
+        RecordingListener listener = new RecordingListener(6);
+        relay.addRelayListener(listener);
+
+        for (int i = 0; i < 3; i++) {
+            relay.open();
+            relay.close();
+        }
+
+        Assertions.assertThat(listener.latch.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(listener.events).containsExactly("OPEN", "CLOSED", "OPEN", "CLOSED", "OPEN", "CLOSED");
+        for (Thread t : listener.threads) {
+            Assertions.assertThat(t).isInstanceOf(RelayEventDispatcher.DispatcherThread.class);
+        }
+    }
+
+    @Test
+    public void testSlowListenerDoesNotDelayOtherRelays() throws Exception {
+
+        Relay slow = Relay.getRelays().get(0);
+        Relay fast = Relay.getRelays().get(1);
+        slow.getLock().disable();
+        fast.getLock().disable();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        slow.addRelayListener(new RecordingListener(1) {
+
+            @Override
+            public void relayOpen(RelayEvent we) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        RecordingListener listener = new RecordingListener(2);
+        fast.addRelayListener(listener);
+
+        slow.open();
+        fast.open();
+        fast.close();
+
+        Assertions.assertThat(listener.latch.await(2, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(listener.events).containsExactly("OPEN", "CLOSED");
+
+        release.countDown();
+    }
+
+    @Test
+    public void testBatchListenerReceivesEventsInBatches() throws Exception {
+
+        RelayEventBatcher.getInstance().setBatchSize(4);
+        RelayEventBatcher.getInstance().setMaxLatency(10, TimeUnit.SECONDS);
+
+        Relay relay = Relay.getRelays().get(0);
+        relay.getLock().disable();
+
+        final List<List<RelayEvent>> batches = Collections.synchronizedList(new ArrayList<List<RelayEvent>>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        RelayBatchListener listener = new RelayBatchListener() {
+
+            @Override
+            public void relayEvents(List<RelayEvent> events) {
+                batches.add(events);
+                latch.countDown();
+            }
+        };
+
+        Relay.addBatchListener(listener);
+        try {
+            for (int i = 0; i < 4; i++) {
+                relay.open();
+                relay.close();
+            }
+
+            Assertions.assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            Relay.removeBatchListener(listener);
+        }
+
+        long sequence = 0;
+        for (List<RelayEvent> batch : batches) {
+            Assertions.assertThat(batch).hasSize(4);
+            for (RelayEvent event : batch) {
+                Assertions.assertThat(event.getSequence()).isGreaterThan(sequence);
+                sequence = event.getSequence();
+            }
+        }
+    }
+
+    @Test
+    public void testBatchIsDeliveredAfterMaxLatency() throws Exception {
+
+        RelayEventBatcher.getInstance().setMaxLatency(50, TimeUnit.MILLISECONDS);
+
+        Relay relay = Relay.getRelays().get(0);
+        relay.getLock().disable();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<RelayEvent> received = Collections.synchronizedList(new ArrayList<RelayEvent>());
+        RelayBatchListener listener = new RelayBatchListener() {
+
+            @Override
+            public void relayEvents(List<RelayEvent> events) {
+                received.addAll(events);
+                latch.countDown();
+            }
+        };
+
+        Relay.addBatchListener(listener);
+        try {
+            relay.open();
+            Assertions.assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            Relay.removeBatchListener(listener);
+        }
+
+        Assertions.assertThat(received).hasSize(1);
+        Assertions.assertThat(received.get(0).getType()).isEqualTo(RelayEventType.OPEN);
+        Assertions.assertThat(received.get(0).getSource()).isSameAs(relay);
+    }
+}
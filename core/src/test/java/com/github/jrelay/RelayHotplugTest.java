@@ -0,0 +1,275 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RelayHotplugTest {
+
+    /**
+     * Device living on the node file.
+     */
+    private static class NodeDevice extends DummyDevice {
+
+        private final File node;
+
+        public NodeDevice(File node) {
+            this.node = node;
+        }
+
+        @Override
+        public String getName() {
+            return node.getName();
+        }
+    }
+
+    /**
+     * Driver whose devices are files in the directory, polling is too slow to notice them.
+     */
+    private static class HotplugDriver implements RelayDriver, RelayDiscoverySupport, RelayHotplugSupport {
+
+        private final File directory;
+        private final AtomicInteger scans = new AtomicInteger(0);
+        private final AtomicInteger probes = new AtomicInteger(0);
+
+        public HotplugDriver(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            scans.incrementAndGet();
+            List<RelayDevice> devices = new ArrayList<RelayDevice>();
+            for (File node : directory.listFiles()) {
+                if (isHotplugNode(node)) {
+                    devices.add(new NodeDevice(node));
+                }
+            }
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+
+        @Override
+        public long getScanInterval() {
+            return 60000;
+        }
+
+        @Override
+        public boolean isScanPossible() {
+            return true;
+        }
+
+        @Override
+        public boolean isHotplugPossible() {
+            return true;
+        }
+
+        @Override
+        public List<File> getHotplugDirectories() {
+            return Arrays.asList(directory);
+        }
+
+        @Override
+        public boolean isHotplugNode(File node) {
+            return node.getName().startsWith("relay-");
+        }
+
+        @Override
+        public File getHotplugNode(RelayDevice device) {
+            return ((NodeDevice) device).node;
+        }
+
+        @Override
+        public List<RelayDevice> getDevices(File node) {
+            probes.incrementAndGet();
+            if (!node.exists()) {
+                return Collections.emptyList();
+            }
+            return Collections.<RelayDevice>singletonList(new NodeDevice(node));
+        }
+    }
+
+    private File directory = null;
+    private HotplugDriver driver = null;
+
+    @Before
+    public void prepare() throws IOException {
+        directory = Files.createTempDirectory("relay-hotplug").toFile();
+        driver = new HotplugDriver(directory);
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+    }
+
+    @After
+    public void cleanup() {
+        Relay.resetDriver();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static void await(String name, boolean present) throws InterruptedException {
+        for (int i = 0; i < 500 && (Relay.getRelayByName(name) != null) != present; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testNodesAreWatched() throws Exception {
+
+        Assertions.assertThat(Relay.getRelays()).isEmpty();
+
+        for (int i = 0; i < 500 && !Relay.getDiscoveryService().isWatching(); i++) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertThat(Relay.getDiscoveryService().isWatching()).isTrue();
+
+        new File(directory, "relay-1").createNewFile();
+        await("relay-1", true);
+
+        Relay first = Relay.getRelayByName("relay-1");
+
+        Assertions.assertThat(first).isNotNull();
+
+        new File(directory, "relay-2").createNewFile();
+        new File(directory, "other").createNewFile();
+        await("relay-2", true);
+
+        Assertions.assertThat(Relay.getRelayByName("relay-2")).isNotNull();
+        Assertions.assertThat(Relay.getRelayByName("relay-1")).isSameAs(first);
+
+        new File(directory, "relay-1").delete();
+        await("relay-1", false);
+
+        Assertions.assertThat(Relay.getRelayByName("relay-1")).isNull();
+        Assertions.assertThat(Relay.getRelays()).hasSize(1);
+
+        // only created nodes are probed, devices are enumerated only when discovered and when
+        // watching has started
+
+        Assertions.assertThat(driver.probes.get()).isEqualTo(2);
+        Assertions.assertThat(driver.scans.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testOpenRelayIsKeptWhenNodeStillExists() throws Exception {
+
+        File node = new File(directory, "relay-1");
+        node.createNewFile();
+
+        Relay relay = Relay.getRelayByName("relay-1");
+
+        Assertions.assertThat(relay).isNotNull();
+
+        relay.open();
+
+        try {
+
+            // event of the node which still exists neither probes it again nor disposes its relay
+
+            int probes = driver.probes.get();
+
+            Relay.getDiscoveryService().scan(Arrays.asList(node));
+
+            Assertions.assertThat(driver.probes.get()).isEqualTo(probes);
+            Assertions.assertThat(Relay.getRelayByName("relay-1")).isSameAs(relay);
+            Assertions.assertThat(relay.isOpen()).isTrue();
+
+            // relay is disposed when node is deleted
+
+            node.delete();
+            Relay.getDiscoveryService().scan(Arrays.asList(node));
+
+            Assertions.assertThat(Relay.getRelayByName("relay-1")).isNull();
+            Assertions.assertThat(relay.isOpen()).isFalse();
+
+        } finally {
+            relay.close();
+        }
+    }
+
+    @Test
+    public void testReplugInSingleBatchRenewsRelay() throws Exception {
+
+        File node = new File(directory, "relay-1");
+        node.createNewFile();
+
+        Relay relay = Relay.getRelayByName("relay-1");
+
+        Assertions.assertThat(relay).isNotNull();
+
+        relay.open();
+
+        try {
+
+            // node has been deleted and created again before the batch was taken, so the relay
+            // is backed by device which is not there anymore
+
+            int probes = driver.probes.get();
+
+            Relay.getDiscoveryService().scan(Arrays.asList(node), Arrays.asList(node));
+
+            Relay renewed = Relay.getRelayByName("relay-1");
+
+            Assertions.assertThat(driver.probes.get()).isEqualTo(probes + 1);
+            Assertions.assertThat(renewed).isNotNull();
+            Assertions.assertThat(renewed).isNotSameAs(relay);
+            Assertions.assertThat(renewed.isOpen()).isFalse();
+            Assertions.assertThat(relay.isOpen()).isFalse();
+
+            // lock of the disposed relay has been released, so the renewed one can be open
+
+            renewed.open();
+            renewed.close();
+
+        } finally {
+            relay.close();
+        }
+    }
+
+    @Test
+    public void testWatcherReportsReplugAsDeleted() throws Exception {
+
+        File other = Files.createTempDirectory("relay-hotplug").toFile();
+        File node = new File(other, "relay-1");
+        node.createNewFile();
+
+        RelayHotplugWatcher watcher = new RelayHotplugWatcher(new HotplugDriver(other));
+
+        try {
+
+            node.delete();
+            node.createNewFile();
+
+            Set<File> deleted = new HashSet<File>();
+            Set<File> nodes = watcher.take(deleted);
+
+            Assertions.assertThat(nodes).containsOnly(node);
+            Assertions.assertThat(deleted).containsOnly(node);
+
+        } finally {
+            watcher.close();
+            node.delete();
+            other.delete();
+        }
+    }
+}
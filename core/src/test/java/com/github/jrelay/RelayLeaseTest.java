@@ -0,0 +1,172 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RelayLeaseTest {
+
+    /**
+     * Device which remembers fencing tokens of the commands.
+     */
+    private static class FencedDevice extends DummyDevice implements RelayDevice.Fenced {
+
+        private final List<Long> tokens = new ArrayList<Long>();
+
+        @Override
+        public void setFencingToken(long token) {
+            tokens.add(token);
+        }
+    }
+
+    private static class FencedDriver implements RelayDriver {
+
+        private final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    private FencedDevice device = null;
+
+    @Before
+    public void prepare() {
+        FencedDriver driver = new FencedDriver();
+        driver.devices.add(device = new FencedDevice());
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+    }
+
+    @After
+    public void cleanup() {
+        RelayLockHeartbeat.getInstance().resetLeaseDuration();
+        RelayLockHeartbeat.getInstance().setInterval(RelayLock.INTERVAL, TimeUnit.MILLISECONDS);
+        Relay.getDefault().close();
+        Relay.resetDriver();
+    }
+
+    @Test
+    public void testFencingTokensIncrease() {
+
+        Relay relay = Relay.getDefault();
+        RelayLock lock = relay.getLock();
+
+        Assertions.assertThat(relay.getFencingToken()).isEqualTo(-1);
+
+        lock.lock();
+        long first = lock.getFencingToken();
+        lock.validate(first);
+        lock.unlock();
+
+        Assertions.assertThat(lock.getFencingToken()).isEqualTo(-1);
+
+        try {
+            lock.validate(first);
+            Assertions.fail("Token of released lock should be stale");
+        } catch (RelayLockException e) {
+            // expected
+        }
+
+        relay.open();
+        long second = relay.getFencingToken();
+
+        Assertions.assertThat(second).isGreaterThan(first);
+        Assertions.assertThat(device.tokens).containsExactly(second);
+
+        relay.close();
+
+        Assertions.assertThat(device.tokens).containsExactly(second, second);
+        Assertions.assertThat(relay.getFencingToken()).isEqualTo(-1);
+    }
+
+    @Test
+    public void testLeaseDurationMustBeLongerThanInterval() {
+
+        RelayLockHeartbeat heartbeat = RelayLockHeartbeat.getInstance();
+
+        Assertions.assertThat(heartbeat.getLeaseDuration(TimeUnit.MILLISECONDS))
+                .isEqualTo(2 * RelayLock.INTERVAL);
+
+        try {
+            heartbeat.setLeaseDuration(RelayLock.INTERVAL, TimeUnit.MILLISECONDS);
+            Assertions.fail("Lease equal to interval should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        heartbeat.setInterval(20, TimeUnit.MILLISECONDS);
+        heartbeat.setLeaseDuration(100, TimeUnit.MILLISECONDS);
+
+        try {
+            heartbeat.setInterval(100, TimeUnit.MILLISECONDS);
+            Assertions.fail("Interval equal to lease should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Assertions.assertThat(heartbeat.getLeaseDuration(TimeUnit.MILLISECONDS)).isEqualTo(100);
+    }
+
+    @Test
+    public void testStaleOwnerIsFenced() throws InterruptedException {
+
+        RelayLockHeartbeat heartbeat = RelayLockHeartbeat.getInstance();
+        heartbeat.setInterval(20, TimeUnit.MILLISECONDS);
+        heartbeat.setLeaseDuration(100, TimeUnit.MILLISECONDS);
+
+        Relay relay = Relay.getDefault();
+        relay.open();
+
+        long stale = relay.getFencingToken();
+
+        // owner is paused, so its heartbeat stops and the lease expires
+
+        heartbeat.unregister(relay.getLock());
+        Thread.sleep(200);
+
+        // other owner takes the relay over
+
+        RelayLock other = new RelayLock(relay);
+
+        Assertions.assertThat(other.isLocked()).isFalse();
+
+        other.lock();
+
+        try {
+
+            Assertions.assertThat(other.getFencingToken()).isGreaterThan(stale);
+
+            try {
+                relay.close();
+                Assertions.fail("Relay with stale fencing token should not be closed");
+            } catch (RelayException e) {
+                Assertions.assertThat(e.getCause()).isInstanceOf(RelayLockException.class);
+            }
+
+            Assertions.assertThat(relay.isOpen()).isTrue();
+            Assertions.assertThat(device.isOpen()).isTrue();
+            Assertions.assertThat(device.tokens).containsExactly(stale);
+
+            // stale owner unlocking does not release lock of the new owner
+
+            relay.getLock().unlock();
+            other.validate(other.getFencingToken());
+
+        } finally {
+            other.unlock();
+        }
+    }
+}
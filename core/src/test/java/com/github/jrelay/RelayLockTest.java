@@ -9,10 +9,18 @@ import org.assertj.core.api.Assertions;
 import org.easymock.EasyMock;
 import org.easymock.EasyMockRunner;
 import org.easymock.EasyMockSupport;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
 @RunWith(EasyMockRunner.class)
 public class RelayLockTest extends EasyMockSupport {
 
@@ -59,5 +67,337 @@ public class RelayLockTest extends EasyMockSupport {
 		
     }
 
+    @Test
+    public void testLockIsReleasedForOthers() throws Exception {
+
+        RelayLock first = new RelayLock(relay);
+        RelayLock second = new RelayLock(relay);
+
+        Assertions.assertThat(first.getLockFile())
+                .isEqualTo(RelayLockTable.getInstance().getFile());
+
+        first.lock();
+        first.unlock();
+
+        Assertions.assertThat(second.isLocked())
+                .isFalse();
 
-}
\ No newline at end of file
+        second.lock();
+
+        Assertions.assertThat(first.isLocked())
+                .isTrue();
+
+        second.unlock();
+
+        Assertions.assertThat(first.isLocked())
+                .isFalse();
+    }
+
+    /**
+     * Claim relay slot like other process in the same PID namespace would do, table layout is
+     * described in {@link RelayLockTable}. Relay must have been locked before, so it has a slot.
+     * Namespace and start time of the process which claimed the slot before are kept.
+     */
+    static void claimAs(String name, long owner, long expires) throws IOException {
+        claimAs(name, owner, null, expires);
+    }
+
+    /**
+     * Claim relay slot like other process would do.
+     *
+     * @see #claimAs(String, long, long)
+     */
+    static void claimAs(String name, long owner, Long namespace, long expires) throws IOException {
+
+        int slot = RelayLockTable.getInstance().find(name);
+        RandomAccessFile raf = new RandomAccessFile(RelayLockTable.getInstance().getFile(), "rw");
+
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            int offset = 16 + slot * 48;
+            buffer.putLong(offset + 24, buffer.getLong(offset + 24) + 2);
+            buffer.putLong(offset + 8, owner);
+            buffer.putLong(offset + 16, expires);
+            if (namespace != null) {
+                buffer.putLong(offset + 32, namespace);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testLockLeftByPreviousProcessWithTheSameId() throws Exception {
+
+        RelayLockTable table = RelayLockTable.getInstance();
+        RelayLock lock = new RelayLock(relay);
+
+        lock.lock();
+        long pid = table.getOwner(table.find("test-relay"));
+        long token = lock.getFencingToken();
+        lock.unlock();
+
+        // process with the same identifier (e.g. restarted in container) crashed holding the lock
+
+        claimAs("test-relay", pid, System.currentTimeMillis() + 60000);
+
+        Assertions.assertThat(lock.isLocked())
+                .isFalse();
+        Assertions.assertThat(table.getForeignOwner("test-relay"))
+                .isEqualTo(-1);
+
+        lock.lock();
+
+        try {
+            Assertions.assertThat(lock.getFencingToken())
+                    .isGreaterThan(token + 1);
+            Assertions.assertThat(new RelayLock(relay).isLocked())
+                    .isTrue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void testLockOfProcessInOtherNamespaceIsKeptUntilItExpires() throws Exception {
+
+        RelayLockTable table = RelayLockTable.getInstance();
+        RelayLock lock = new RelayLock(relay);
+
+        lock.lock();
+        lock.unlock();
+
+        // process identifier of other container cannot be checked, even if there is no such
+        // process in this container
+
+        claimAs("test-relay", Long.MAX_VALUE, 42L, System.currentTimeMillis() + 60000);
+
+        Assertions.assertThat(lock.isLocked())
+                .isTrue();
+        Assertions.assertThat(table.getForeignOwner("test-relay"))
+                .isEqualTo(Long.MAX_VALUE);
+
+        claimAs("test-relay", Long.MAX_VALUE, 42L, System.currentTimeMillis() - 1);
+
+        Assertions.assertThat(lock.isLocked())
+                .isFalse();
+    }
+
+    @Test
+    public void testLockOfProcessWhoseIdentifierIsReusedIsTakenOver() throws Exception {
+
+        Assume.assumeTrue(new File("/proc/1/stat").isFile());
+
+        RelayLock lock = new RelayLock(relay);
+
+        lock.lock();
+        lock.unlock();
+
+        // process 1 is running, but it has been started at other time than the owner
+
+        claimAs("test-relay", 1, System.currentTimeMillis() + 60000);
+
+        Assertions.assertThat(lock.isLocked())
+                .isFalse();
+        Assertions.assertThat(RelayLockTable.getInstance().getForeignOwner("test-relay"))
+                .isEqualTo(-1);
+    }
+
+    @Test
+    public void testHeartbeatsShareSingleThread() throws Exception {
+
+        Relay other = EasyMock.createNiceMock(Relay.class);
+        EasyMock.expect(other.getName())
+                .andReturn("test-relay-2")
+                .anyTimes();
+        EasyMock.replay(other);
+
+        RelayLockHeartbeat heartbeat = RelayLockHeartbeat.getInstance();
+        heartbeat.setInterval(50, TimeUnit.MILLISECONDS);
+
+        RelayLock first = new RelayLock(relay);
+        RelayLock second = new RelayLock(other);
+
+        int locks = heartbeat.getLocks();
+
+        try {
+
+            first.lock();
+            second.lock();
+
+            long ticks = heartbeat.getTicks();
+
+            // locks expire after two intervals unless heartbeat keeps them alive
+
+            Thread.sleep(300);
+
+            Assertions.assertThat(heartbeat.getTicks() - ticks)
+                    .isGreaterThanOrEqualTo(2);
+            Assertions.assertThat(heartbeat.getLocks())
+                    .isEqualTo(locks + 2);
+            Assertions.assertThat(new RelayLock(relay).isLocked())
+                    .isTrue();
+            Assertions.assertThat(new RelayLock(other).isLocked())
+                    .isTrue();
+
+            int threads = 0;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t instanceof RelayLockHeartbeat.HeartbeatThread) {
+                    threads++;
+                }
+            }
+
+            Assertions.assertThat(threads)
+                    .isEqualTo(1);
+
+        } finally {
+            first.unlock();
+            second.unlock();
+            heartbeat.setInterval(RelayLock.INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        Assertions.assertThat(heartbeat.getLocks())
+                .isEqualTo(locks);
+    }
+
+    /**
+     * Create lock table file with the given header, table layout is described in
+     * {@link RelayLockTable}.
+     */
+    private static File createTable(int version, int slots, long length) throws IOException {
+
+        File file = File.createTempFile("relay-lock-table", null);
+        file.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            raf.writeInt(0x4A524C54);
+            raf.writeInt(version);
+            raf.writeInt(slots);
+        } finally {
+            raf.close();
+        }
+
+        return file;
+    }
+
+    @Test
+    public void testTableOfOtherVersionIsCreatedAgain() throws Exception {
+
+        RelayLockTable table = new RelayLockTable(createTable(1, 4, 16 + 4 * 48));
+
+        Assertions.assertThat(table.getSlots())
+                .isEqualTo(RelayLockTable.DEFAULT_SLOTS);
+        Assertions.assertThat(table.getFile().length())
+                .isEqualTo(16 + RelayLockTable.DEFAULT_SLOTS * 48);
+    }
+
+    @Test
+    public void testTableWithCorruptedSlotsIsCreatedAgain() throws Exception {
+
+        // table is shorter than its slots, or it claims more slots than there can ever be
+
+        RelayLockTable truncated = new RelayLockTable(createTable(4, 4, 16 + 3 * 48));
+        RelayLockTable negative = new RelayLockTable(createTable(4, -1, 16));
+        RelayLockTable huge = new RelayLockTable(createTable(4, Integer.MAX_VALUE, 16));
+
+        Assertions.assertThat(truncated.getSlots())
+                .isEqualTo(RelayLockTable.DEFAULT_SLOTS);
+        Assertions.assertThat(negative.getSlots())
+                .isEqualTo(RelayLockTable.DEFAULT_SLOTS);
+        Assertions.assertThat(huge.getSlots())
+                .isEqualTo(RelayLockTable.DEFAULT_SLOTS);
+    }
+
+    @Test
+    public void testValidTableIsKept() throws Exception {
+
+        RelayLockTable table = new RelayLockTable(createTable(4, 4, 16 + 4 * 48));
+
+        Assertions.assertThat(table.getSlots())
+                .isEqualTo(4);
+        Assertions.assertThat(table.getFile().length())
+                .isEqualTo(16 + 4 * 48);
+    }
+
+    @Test
+    public void testSlotsWhichAreNotLockedAreReused() throws Exception {
+
+        RelayLockTable table = new RelayLockTable(createTable(4, 4, 16 + 4 * 48));
+        long expires = System.currentTimeMillis() + 60000;
+
+        int[] slots = new int[4];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = table.claim("relay-" + i, expires);
+        }
+
+        // all slots are locked
+
+        try {
+            table.claim("relay-4", expires);
+            fail("Table should be full");
+        } catch (RelayLockException e) {
+            // expected
+        }
+
+        table.release(slots[1], table.getGeneration(slots[1]));
+
+        int slot = table.claim("relay-4", expires);
+
+        Assertions.assertThat(slot)
+                .isEqualTo(slots[1]);
+        Assertions.assertThat(table.find("relay-1"))
+                .isEqualTo(-1);
+        Assertions.assertThat(table.find("relay-4"))
+                .isEqualTo(slot);
+
+        // many more relays than slots can be locked one after another
+
+        for (int i = 0; i < slots.length; i++) {
+            table.release(slots[i], table.getGeneration(slots[i]));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            slot = table.claim("other-" + i, expires);
+            table.release(slot, table.getGeneration(slot));
+        }
+    }
+
+    @Test
+    public void testSlotLeftHalfWrittenIsNotLocked() throws Exception {
+
+        RelayLockTable table = new RelayLockTable(createTable(4, 4, 16 + 4 * 48));
+
+        int slot = table.claim("relay", System.currentTimeMillis() + 60000);
+        long generation = table.getGeneration(slot);
+
+        // process which is running (init) crashed while writing the slot, so generation is odd
+
+        RandomAccessFile raf = new RandomAccessFile(table.getFile(), "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            int offset = 16 + slot * 48;
+            buffer.putLong(offset + 8, 1);
+            buffer.putLong(offset + 24, generation + 1);
+        } finally {
+            raf.close();
+        }
+
+        Assertions.assertThat(table.isLocked("relay"))
+                .isFalse();
+        Assertions.assertThat(table.getForeignOwner("relay"))
+                .isEqualTo(-1);
+        Assertions.assertThat(table.isCurrent(slot, generation))
+                .isFalse();
+
+        // slot is written again and its generation is even
+
+        Assertions.assertThat(table.claim("relay", System.currentTimeMillis() + 60000))
+                .isEqualTo(slot);
+        Assertions.assertThat(table.getGeneration(slot))
+                .isEqualTo(generation + 2);
+        Assertions.assertThat(table.isLocked("relay"))
+                .isTrue();
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.jrelay;
+
+import com.github.jrelay.dummy.RelayDummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class RelayLockWatcherTest {
+
+    private static final int NUMBER = 7321;
+
+    /**
+     * Other process holding the relay lock until its standard input is closed.
+     */
+    public static final class Holder {
+
+        public static void main(String[] args) throws Exception {
+            Relay relay = new Relay(new RelayDummyDevice(Integer.parseInt(args[0])));
+            relay.getLock().lock();
+            System.out.println("locked");
+            System.out.flush();
+            while (System.in.read() != -1) {
+                // wait for parent
+            }
+            relay.getLock().unlock();
+        }
+    }
+
+    private static class SingleDriver implements RelayDriver {
+
+        private final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    private final BlockingQueue<RelayLockEvent> events = new LinkedBlockingQueue<RelayLockEvent>();
+
+    private final RelayLockListener listener = new RelayLockListener() {
+
+        @Override
+        public void relayLocked(RelayLockEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void relayUnlocked(RelayLockEvent event) {
+            events.add(event);
+        }
+    };
+
+    private Process holder = null;
+
+    @Before
+    public void prepare() {
+        SingleDriver driver = new SingleDriver();
+        driver.devices.add(new RelayDummyDevice(NUMBER));
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+        RelayLockWatcher.getInstance().setInterval(50, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void cleanup() {
+        if (holder != null) {
+            holder.destroy();
+        }
+        Relay.removeLockListener(listener);
+        RelayLockWatcher.getInstance().setInterval(RelayLockWatcher.DEFAULT_INTERVAL, TimeUnit.MILLISECONDS);
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+    }
+
+    @Test
+    public void testLockOfOtherProcessIsReported() throws Exception {
+
+        Relay relay = Relay.getDefault();
+        Relay.addLockListener(listener);
+
+        Assertions.assertThat(relay.isLockedByOtherProcess()).isFalse();
+
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        holder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Holder.class.getName(), Integer.toString(NUMBER))
+                .redirectErrorStream(true)
+                .start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(holder.getInputStream()));
+        String line = null;
+        while ((line = reader.readLine()) != null && !line.equals("locked")) {
+            // skip child logs
+        }
+
+        Assertions.assertThat(line).isEqualTo("locked");
+
+        RelayLockEvent locked = events.poll(5, TimeUnit.SECONDS);
+
+        Assertions.assertThat(locked).isNotNull();
+        Assertions.assertThat(locked.getType()).isEqualTo(RelayLockEvent.LOCKED);
+        Assertions.assertThat(locked.getRelay()).isSameAs(relay);
+        Assertions.assertThat(relay.isLockedByOtherProcess()).isTrue();
+
+        try {
+            relay.open();
+            Assertions.fail("Relay locked by other process must not be open");
+        } catch (RelayLockException e) {
+            Assertions.assertThat(relay.isOpen()).isFalse();
+        }
+
+        // other process releases the lock
+
+        holder.getOutputStream().close();
+
+        RelayLockEvent unlocked = events.poll(5, TimeUnit.SECONDS);
+
+        Assertions.assertThat(unlocked).isNotNull();
+        Assertions.assertThat(unlocked.getType()).isEqualTo(RelayLockEvent.UNLOCKED);
+        Assertions.assertThat(unlocked.getOwner()).isEqualTo(locked.getOwner());
+        Assertions.assertThat(relay.isLockedByOtherProcess()).isFalse();
+    }
+}
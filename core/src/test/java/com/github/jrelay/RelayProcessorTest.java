@@ -0,0 +1,642 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RelayProcessorTest {
+
+    private static class BoardChannel extends DummyDevice implements RelayDevice.PhysicalDevice {
+
+        private final String board;
+
+        public BoardChannel(String board) {
+            this.board = board;
+        }
+
+        @Override
+        public Object getPhysicalKey() {
+            return board;
+        }
+    }
+
+    private static class BlockingTask extends RelayTask {
+
+        private final CountDownLatch entered;
+        private final CountDownLatch release;
+        private final AtomicInteger concurrent;
+        private final AtomicInteger maxConcurrent;
+
+        public BlockingTask(RelayDevice device, CountDownLatch entered, CountDownLatch release,
+                            AtomicInteger concurrent, AtomicInteger maxConcurrent) {
+            super(device);
+            this.entered = entered;
+            this.release = release;
+            this.concurrent = concurrent;
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        @Override
+        protected void handle() {
+            int c = concurrent.incrementAndGet();
+            if (c > maxConcurrent.get()) {
+                maxConcurrent.set(c);
+            }
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+
+    private static class SwitchTask extends RelayTask {
+
+        private final AtomicInteger handled;
+
+        public SwitchTask(RelayDevice device, AtomicInteger handled) {
+            super(device);
+            this.handled = handled;
+        }
+
+        @Override
+        protected boolean isCoalescable() {
+            return true;
+        }
+
+        @Override
+        protected void handle() {
+            handled.incrementAndGet();
+        }
+    }
+
+    private static class RecordingTask extends RelayTask {
+
+        private final List<String> order;
+        private final String name;
+
+        public RecordingTask(boolean threadSafe, RelayDevice device, Priority priority, List<String> order, String name) {
+            super(threadSafe, device);
+            this.order = order;
+            this.name = name;
+            setPriority(priority);
+        }
+
+        @Override
+        protected void handle() {
+            order.add(name);
+        }
+    }
+
+    private static Thread processInBackground(final RelayTask task) {
+        Thread t = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    task.process();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    @Before
+    public void prepare() {
+        RelayProcessor.getInstance().shutdown();
+    }
+
+    @After
+    public void cleanup() {
+        RelayProcessor.getInstance().shutdown();
+        RelayProcessor.getInstance().setMaxLanes(RelayProcessor.DEFAULT_MAX_LANES);
+        RelayProcessor.getInstance().setQueueCapacity(RelayProcessor.DEFAULT_QUEUE_CAPACITY);
+        RelayProcessor.getInstance().setOverflowPolicy(RelayProcessor.OverflowPolicy.BLOCK);
+        RelayProcessor.getInstance().setCoalescing(false);
+        RelayProcessor.getInstance().setHungTaskTimeout(RelayProcessor.DEFAULT_HUNG_TASK_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testDifferentBoardsAreProcessedInParallel() throws Exception {
+
+        RelayProcessor.getInstance().setMaxLanes(2);
+
+        // find two boards which are mapped into different lanes
+
+        RelayDevice first = new BoardChannel("board-0");
+        RelayDevice second = null;
+        for (int i = 1; second == null; i++) {
+            String board = "board-" + i;
+            if (RelayProcessor.getLaneIndex(board, 2) != RelayProcessor.getLaneIndex("board-0", 2)) {
+                second = new BoardChannel(board);
+            }
+        }
+
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+
+        Thread t1 = processInBackground(new BlockingTask(first, entered, release, concurrent, maxConcurrent));
+        Thread t2 = processInBackground(new BlockingTask(second, entered, release, concurrent, maxConcurrent));
+
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        release.countDown();
+        t1.join();
+        t2.join();
+
+        Assertions.assertThat(maxConcurrent.get()).isEqualTo(2);
+        Assertions.assertThat(RelayProcessor.getInstance().getLaneStatistics()).hasSize(2);
+    }
+
+    @Test
+    public void testChannelsOfTheSameBoardAreSerialized() throws Exception {
+
+        RelayDevice first = new BoardChannel("board");
+        RelayDevice second = new BoardChannel("board");
+
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+
+        Thread t1 = processInBackground(new BlockingTask(first, entered, release, concurrent, maxConcurrent));
+        Thread t2 = processInBackground(new BlockingTask(second, entered, release, concurrent, maxConcurrent));
+
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        Thread.sleep(100);
+        release.countDown();
+        t1.join();
+        t2.join();
+
+        Assertions.assertThat(maxConcurrent.get()).isEqualTo(1);
+
+        RelayProcessor.LaneStatistics statistics = RelayProcessor.getInstance().getLaneStatistics().get(0);
+        Assertions.assertThat(statistics.getProcessed()).isEqualTo(2);
+        Assertions.assertThat(statistics.getMaxDepth()).isEqualTo(2);
+        Assertions.assertThat(statistics.getDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSubmitDoesNotWaitForTask() throws Exception {
+
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        BlockingTask task = new BlockingTask(new BoardChannel("board"), entered, release, new AtomicInteger(), new AtomicInteger());
+        RelayFuture<Void> future = task.submit();
+
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(future.isDone()).isFalse();
+
+        release.countDown();
+
+        Assertions.assertThat(future.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(future.getThrowable()).isNull();
+    }
+
+    @Test
+    public void testFailWhenQueueIsFull() throws Exception {
+
+        RelayProcessor.getInstance().setQueueCapacity(1);
+        RelayProcessor.getInstance().setOverflowPolicy(RelayProcessor.OverflowPolicy.FAIL);
+
+        RelayDevice device = new BoardChannel("board");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        RelayFuture<Void> running = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        RelayFuture<Void> queued = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        RelayFuture<Void> rejected = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+
+        Assertions.assertThat(rejected.isDone()).isTrue();
+        Assertions.assertThat(rejected.getThrowable()).isInstanceOf(RejectedExecutionException.class);
+
+        release.countDown();
+
+        Assertions.assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(queued.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(queued.getThrowable()).isNull();
+
+        RelayProcessor.LaneStatistics statistics = RelayProcessor.getInstance().getLaneStatistics().get(0);
+        Assertions.assertThat(statistics.getRejected()).isEqualTo(1);
+        Assertions.assertThat(statistics.getProcessed()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDropOldestTaskOfTheSameRelay() throws Exception {
+
+        RelayProcessor.getInstance().setQueueCapacity(1);
+        RelayProcessor.getInstance().setOverflowPolicy(RelayProcessor.OverflowPolicy.DROP_OLDEST);
+
+        RelayDevice device = new BoardChannel("board");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        RelayFuture<Void> running = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        RelayFuture<Void> oldest = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        RelayFuture<Void> newest = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+
+        Assertions.assertThat(oldest.isDone()).isTrue();
+        Assertions.assertThat(oldest.getThrowable()).isInstanceOf(RejectedExecutionException.class);
+
+        release.countDown();
+
+        Assertions.assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(newest.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(newest.getThrowable()).isNull();
+
+        RelayProcessor.LaneStatistics statistics = RelayProcessor.getInstance().getLaneStatistics().get(0);
+        Assertions.assertThat(statistics.getDropped()).isEqualTo(1);
+        Assertions.assertThat(statistics.getProcessed()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCoalescePendingCommandsOfTheSameRelay() throws Exception {
+
+        RelayProcessor.getInstance().setCoalescing(true);
+
+        RelayDevice device = new BoardChannel("board");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+
+        RelayFuture<Void> running = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        RelayFuture<Void> first = new SwitchTask(device, handled).submit();
+        RelayFuture<Void> second = new SwitchTask(device, handled).submit();
+        RelayFuture<Void> third = new SwitchTask(device, handled).submit();
+
+        release.countDown();
+
+        Assertions.assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(third.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(first.isDone()).isTrue();
+        Assertions.assertThat(second.isDone()).isTrue();
+        Assertions.assertThat(handled.get()).isEqualTo(1);
+
+        RelayProcessor.LaneStatistics statistics = RelayProcessor.getInstance().getLaneStatistics().get(0);
+        Assertions.assertThat(statistics.getCoalesced()).isEqualTo(2);
+        Assertions.assertThat(statistics.getDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRejectedTaskDoesNotFailCoalescedTasks() throws Exception {
+
+        RelayProcessor.getInstance().setQueueCapacity(1);
+        RelayProcessor.getInstance().setOverflowPolicy(RelayProcessor.OverflowPolicy.FAIL);
+        RelayProcessor.getInstance().setCoalescing(true);
+
+        RelayDevice device = new BoardChannel("board");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+
+        RelayFuture<Void> running = new BlockingTask(new BoardChannel("board"), entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // the second command takes the place of the first one, even though the queue is full
+
+        RelayFuture<Void> first = new SwitchTask(device, handled).submit();
+        RelayFuture<Void> second = new SwitchTask(device, handled).submit();
+
+        Assertions.assertThat(second.isDone()).isFalse();
+
+        // critical command cannot take the place of the normal one, since critical slot is taken
+
+        BlockingTask blocking = new BlockingTask(new BoardChannel("board"), entered, release, new AtomicInteger(), new AtomicInteger());
+        blocking.setPriority(RelayTask.Priority.CRITICAL);
+        RelayFuture<Void> critical = blocking.submit();
+
+        SwitchTask task = new SwitchTask(device, handled);
+        task.setPriority(RelayTask.Priority.CRITICAL);
+        RelayFuture<Void> rejected = task.submit();
+
+        Assertions.assertThat(rejected.isDone()).isTrue();
+        Assertions.assertThat(rejected.getThrowable()).isInstanceOf(RejectedExecutionException.class);
+        Assertions.assertThat(first.isDone()).isFalse();
+
+        release.countDown();
+
+        Assertions.assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(critical.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(second.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(second.getThrowable()).isNull();
+        Assertions.assertThat(first.isDone()).isTrue();
+        Assertions.assertThat(first.getThrowable()).isNull();
+        Assertions.assertThat(handled.get()).isEqualTo(1);
+
+        RelayProcessor.LaneStatistics statistics = RelayProcessor.getInstance().getLaneStatistics().get(0);
+        Assertions.assertThat(statistics.getCoalesced()).isEqualTo(1);
+        Assertions.assertThat(statistics.getRejected()).isEqualTo(1);
+        Assertions.assertThat(statistics.getDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCoalescingDoesNotLoseTasksOfConcurrentProducers() throws Exception {
+
+        RelayProcessor.getInstance().setCoalescing(true);
+
+        final RelayDevice device = new BoardChannel("board");
+        final AtomicInteger handled = new AtomicInteger();
+        final int producers = 8;
+        final int tasks = 2000;
+
+        final List<RelayFuture<Void>> futures = Collections.synchronizedList(new ArrayList<RelayFuture<Void>>());
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < tasks; j++) {
+                        futures.add(new SwitchTask(device, handled).submit());
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assertions.assertThat(futures).hasSize(producers * tasks);
+
+        // every superseded task is completed together with the task which superseded it
+
+        for (RelayFuture<Void> future : futures) {
+            Assertions.assertThat(future.await(5, TimeUnit.SECONDS)).isTrue();
+            Assertions.assertThat(future.getThrowable()).isNull();
+        }
+
+        RelayProcessor.LaneStatistics statistics = RelayProcessor.getInstance().getLaneStatistics().get(0);
+        Assertions.assertThat(statistics.getCoalesced() + handled.get()).isEqualTo(producers * tasks);
+        Assertions.assertThat(statistics.getDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSupersededTaskIsNotReused() throws Exception {
+
+        RelayProcessor.getInstance().setCoalescing(true);
+
+        final BoardChannel busy = new BoardChannel("board");
+        final BoardChannel channel = new BoardChannel("board");
+
+        Relay.resetDriver();
+        Relay.setDriver(new RelayDriver() {
+
+            @Override
+            public List<RelayDevice> getDevices() {
+                return Arrays.<RelayDevice>asList(channel);
+            }
+
+            @Override
+            public boolean isThreadSafe() {
+                return false;
+            }
+        });
+
+        try {
+
+            final Relay relay = Relay.getDefault();
+
+            // other channel of the same board keeps the lane busy
+
+            CountDownLatch entered = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            RelayFuture<Void> running = new BlockingTask(busy, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+            Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+            Thread opening = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    relay.open();
+                }
+            });
+            opening.start();
+
+            RelayProcessor.LaneStatistics statistics = null;
+            for (int i = 0; i < 500 && (statistics = RelayProcessor.getInstance().getLaneStatistics().get(0)).getDepth() < 2; i++) {
+                Thread.sleep(10);
+            }
+
+            Assertions.assertThat(statistics.getDepth()).isEqualTo(2);
+
+            // critical close supersedes pending open
+
+            Thread closing = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    relay.close(RelayTask.Priority.CRITICAL);
+                }
+            });
+            closing.start();
+
+            for (int i = 0; i < 500 && RelayProcessor.getInstance().getLaneStatistics().get(0).getCoalesced() < 1; i++) {
+                Thread.sleep(10);
+            }
+
+            Assertions.assertThat(RelayProcessor.getInstance().getLaneStatistics().get(0).getCoalesced()).isEqualTo(1);
+
+            // keep the lane busy again until both callers returned, so the open task would be
+            // reused before lane could take it from the queue
+
+            CountDownLatch entered2 = new CountDownLatch(1);
+            CountDownLatch release2 = new CountDownLatch(1);
+            BlockingTask blocking = new BlockingTask(busy, entered2, release2, new AtomicInteger(), new AtomicInteger());
+            blocking.setPriority(RelayTask.Priority.CRITICAL);
+            RelayFuture<Void> running2 = blocking.submit();
+
+            release.countDown();
+
+            Assertions.assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+            Assertions.assertThat(entered2.await(5, TimeUnit.SECONDS)).isTrue();
+
+            opening.join(5000);
+            closing.join(5000);
+
+            release2.countDown();
+
+            Assertions.assertThat(running2.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // wait for everything which could still be in the queue
+
+            new SwitchTask(busy, new AtomicInteger()).process(5, TimeUnit.SECONDS);
+
+            Assertions.assertThat(relay.isOpen()).isFalse();
+            Assertions.assertThat(channel.isOpen()).isFalse();
+            Assertions.assertThat(RelayProcessor.getInstance().getLaneStatistics().get(0).getDepth()).isEqualTo(0);
+
+        } finally {
+            Relay.resetDriver();
+        }
+    }
+
+    @Test
+    public void testPendingTaskIsCancelledWhenDeadlineElapses() throws Exception {
+
+        RelayDevice device = new BoardChannel("board");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+
+        RelayFuture<Void> running = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        SwitchTask late = new SwitchTask(device, handled);
+        try {
+            late.process(100, TimeUnit.MILLISECONDS);
+            Assertions.fail("Task should not be processed before deadline");
+        } catch (TimeoutException e) {
+            Assertions.assertThat(late.getFuture().getThrowable()).isSameAs(e);
+        }
+
+        release.countDown();
+
+        Assertions.assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        new SwitchTask(device, handled).process(5, TimeUnit.SECONDS);
+
+        Assertions.assertThat(handled.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testHungDeviceIsMovedToQuarantine() throws Exception {
+
+        RelayProcessor.getInstance().setMaxLanes(1);
+        RelayProcessor.getInstance().setHungTaskTimeout(200, TimeUnit.MILLISECONDS);
+
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+
+        BlockingTask hung = new BlockingTask(new BoardChannel("hung"), entered, release, new AtomicInteger(), new AtomicInteger());
+        RelayFuture<Void> future = hung.submit();
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // other board shares the only lane with the hung one
+
+        RelayFuture<Void> other = new SwitchTask(new BoardChannel("other"), handled).submit();
+
+        Assertions.assertThat(future.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(future.getThrowable()).isInstanceOf(TimeoutException.class);
+        Assertions.assertThat(other.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(other.getThrowable()).isNull();
+        Assertions.assertThat(handled.get()).isEqualTo(1);
+
+        int quarantined = 0;
+        for (RelayProcessor.LaneStatistics statistics : RelayProcessor.getInstance().getLaneStatistics()) {
+            if (statistics.isQuarantined()) {
+                quarantined++;
+                Assertions.assertThat(statistics.getTimedOut()).isEqualTo(1);
+            }
+        }
+        Assertions.assertThat(quarantined).isEqualTo(1);
+
+        release.countDown();
+    }
+
+    @Test
+    public void testHigherPriorityTasksAreProcessedFirst() throws Exception {
+
+        RelayDevice device = new BoardChannel("board");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        long critical = RelayProcessor.getInstance().getPriorityStatistics().get(0).getProcessed();
+
+        RelayFuture<Void> running = new BlockingTask(device, entered, release, new AtomicInteger(), new AtomicInteger()).submit();
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        new RecordingTask(false, device, RelayTask.Priority.BACKGROUND, order, "background").submit();
+        new RecordingTask(false, device, RelayTask.Priority.NORMAL, order, "normal-1").submit();
+        new RecordingTask(false, device, RelayTask.Priority.NORMAL, order, "normal-2").submit();
+        RelayFuture<Void> last = new RecordingTask(false, device, RelayTask.Priority.CRITICAL, order, "critical").submit();
+
+        release.countDown();
+
+        Assertions.assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+        new RecordingTask(false, device, RelayTask.Priority.BACKGROUND, order, "barrier").process();
+
+        Assertions.assertThat(last.isDone()).isTrue();
+        Assertions.assertThat(order).containsExactly("critical", "normal-1", "normal-2", "background", "barrier");
+
+        RelayProcessor.PriorityStatistics statistics = RelayProcessor.getInstance().getPriorityStatistics().get(0);
+        Assertions.assertThat(statistics.getPriority()).isEqualTo(RelayTask.Priority.CRITICAL);
+        Assertions.assertThat(statistics.getProcessed()).isEqualTo(critical + 1);
+    }
+
+    @Test
+    public void testDirectTaskWaitsForHigherPriorityTask() throws Exception {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        RelayTask critical = new RelayTask(true, new BoardChannel("first")) {
+
+            @Override
+            protected void handle() {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add("critical");
+            }
+        };
+        critical.setPriority(RelayTask.Priority.CRITICAL);
+
+        Thread t1 = processInBackground(critical);
+        Assertions.assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        Thread t2 = processInBackground(new RecordingTask(true, new BoardChannel("second"), RelayTask.Priority.BACKGROUND, order, "background"));
+
+        Thread.sleep(100);
+        Assertions.assertThat(order).isEmpty();
+
+        release.countDown();
+        t1.join();
+        t2.join();
+
+        Assertions.assertThat(order).containsExactly("critical", "background");
+    }
+}
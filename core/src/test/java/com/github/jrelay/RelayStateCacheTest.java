@@ -0,0 +1,173 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RelayStateCacheTest {
+
+    private static final AtomicInteger BOARDS = new AtomicInteger(0);
+
+    /**
+     * Board whose channels can also be switched manually, bypassing the API.
+     */
+    private static class Board {
+
+        private final String key = "board-" + BOARDS.incrementAndGet();
+        private final AtomicLong state = new AtomicLong(0);
+        private final AtomicInteger reads = new AtomicInteger(0);
+    }
+
+    private static class BoardChannel extends DummyDevice implements RelayDevice.StateReadable {
+
+        private final Board board;
+        private final int channel;
+
+        public BoardChannel(Board board, int channel) {
+            this.board = board;
+            this.channel = channel;
+        }
+
+        @Override
+        public void open() {
+            super.open();
+            board.state.set(board.state.get() | (1L << channel));
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            board.state.set(board.state.get() & ~(1L << channel));
+        }
+
+        @Override
+        public long readState() {
+            board.reads.incrementAndGet();
+            return board.state.get();
+        }
+
+        @Override
+        public int getChannel() {
+            return channel;
+        }
+
+        @Override
+        public Object getPhysicalKey() {
+            return board.key;
+        }
+    }
+
+    private static class BoardDriver implements RelayDriver {
+
+        private final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+
+        public BoardDriver(Board board, int channels) {
+            for (int i = 0; i < channels; i++) {
+                devices.add(new BoardChannel(board, i));
+            }
+        }
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    private Board board = null;
+
+    @Before
+    public void prepare() {
+        board = new Board();
+        Relay.resetDriver();
+        Relay.setDriver(new BoardDriver(board, 4));
+    }
+
+    @After
+    public void cleanup() {
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+        RelayStateCache.getInstance().invalidate(board.key);
+    }
+
+    @Test
+    public void testAllChannelsAreReadWithSingleRequest() {
+
+        List<Relay> relays = Relay.getRelays();
+
+        // channel 2 switched manually
+
+        board.state.set(1L << 2);
+
+        for (int i = 0; i < 1000; i++) {
+            for (Relay relay : relays) {
+                relay.getState(1, TimeUnit.MINUTES);
+            }
+        }
+
+        Assertions.assertThat(board.reads.get()).isEqualTo(1);
+        Assertions.assertThat(relays.get(2).isOpen()).isFalse();
+        Assertions.assertThat(relays.get(2).getState(1, TimeUnit.MINUTES)).isTrue();
+        Assertions.assertThat(relays.get(0).getState(1, TimeUnit.MINUTES)).isFalse();
+
+        // switched off manually, cached state is used until it's stale
+
+        board.state.set(0);
+
+        Assertions.assertThat(relays.get(2).getState(1, TimeUnit.MINUTES)).isTrue();
+        Assertions.assertThat(relays.get(2).getState(0, TimeUnit.MILLISECONDS)).isFalse();
+        Assertions.assertThat(board.reads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSwitchingUpdatesCachedState() {
+
+        Relay relay = Relay.getRelays().get(1);
+
+        Assertions.assertThat(relay.getState(1, TimeUnit.MINUTES)).isFalse();
+
+        relay.open();
+        Assertions.assertThat(relay.getState(1, TimeUnit.MINUTES)).isTrue();
+
+        relay.close();
+        Assertions.assertThat(relay.getState(1, TimeUnit.MINUTES)).isFalse();
+
+        Assertions.assertThat(board.reads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPollerRefreshesState() throws InterruptedException {
+
+        Relay relay = Relay.getRelays().get(3);
+        Assertions.assertThat(relay.getState(1, TimeUnit.MINUTES)).isFalse();
+
+        RelayStateCache cache = RelayStateCache.getInstance();
+        cache.setPollInterval(10, TimeUnit.MILLISECONDS);
+        try {
+            board.state.set(1L << 3);
+            long end = System.currentTimeMillis() + 5000;
+            while (!relay.getState(1, TimeUnit.MINUTES) && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+        } finally {
+            cache.setPollInterval(0, TimeUnit.MILLISECONDS);
+        }
+
+        Assertions.assertThat(relay.getState(1, TimeUnit.MINUTES)).isTrue();
+        Assertions.assertThat(board.reads.get()).isGreaterThan(1);
+    }
+}
@@ -0,0 +1,278 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RelayStateJournalTest {
+
+    /**
+     * Device with fixed name, so it's found in the journal after restart.
+     */
+    private static class NamedDevice extends DummyDevice implements RelayDevice.Restorable {
+
+        private final String name;
+        private int restores = 0;
+
+        public NamedDevice(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void restore(boolean open) {
+            restores++;
+            if (open) {
+                super.open();
+            } else {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Device which reads back its state, the hardware is always closed.
+     */
+    private static class ReadableDevice extends NamedDevice implements RelayDevice.StateReadable {
+
+        public ReadableDevice(String name) {
+            super(name);
+        }
+
+        @Override
+        public long readState() {
+            return 0;
+        }
+
+        @Override
+        public int getChannel() {
+            return 0;
+        }
+
+        @Override
+        public Object getPhysicalKey() {
+            return getName();
+        }
+    }
+
+    private static class JournalDriver implements RelayDriver {
+
+        private final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    private File file = null;
+
+    @Before
+    public void prepare() throws IOException {
+        file = File.createTempFile("relay-journal", ".bin");
+        RelayStateJournal.getInstance().open(file, 16);
+    }
+
+    @After
+    public void cleanup() {
+        RelayStateJournal.getInstance().close();
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+        file.delete();
+    }
+
+    /**
+     * Simulate JVM restart, journal is closed before relays are disposed.
+     */
+    private void restart(RelayDevice... devices) {
+
+        RelayStateJournal.getInstance().close();
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+
+        RelayStateJournal.getInstance().open(file, 16);
+
+        JournalDriver driver = new JournalDriver();
+        for (RelayDevice device : devices) {
+            driver.devices.add(device);
+        }
+        Relay.setDriver(driver);
+    }
+
+    @Test
+    public void testRelaysAreRestored() {
+
+        JournalDriver driver = new JournalDriver();
+        driver.devices.add(new NamedDevice("journal-1"));
+        driver.devices.add(new NamedDevice("journal-2"));
+        driver.devices.add(new NamedDevice("journal-3"));
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+
+        Relay.getRelays().get(0).open();
+        Relay.getRelays().get(1).open();
+        Relay.getRelays().get(1).close();
+
+        Assertions.assertThat(RelayStateJournal.getInstance().getState("journal-1")).isEqualTo(1);
+        Assertions.assertThat(RelayStateJournal.getInstance().getState("journal-2")).isEqualTo(0);
+        Assertions.assertThat(RelayStateJournal.getInstance().getState("journal-3")).isEqualTo(-1);
+        Assertions.assertThat(RelayStateJournal.getInstance().getTimestamp("journal-1")).isPositive();
+
+        NamedDevice first = new NamedDevice("journal-1");
+        NamedDevice second = new NamedDevice("journal-2");
+        restart(first, second);
+
+        List<Relay> relays = Relay.getRelays();
+
+        Assertions.assertThat(relays.get(0).isOpen()).isTrue();
+        Assertions.assertThat(first.isOpen()).isTrue();
+        Assertions.assertThat(first.restores).isEqualTo(1);
+        Assertions.assertThat(relays.get(1).isOpen()).isFalse();
+        Assertions.assertThat(second.restores).isEqualTo(0);
+
+        // restored relay is closed like any other
+
+        relays.get(0).close();
+
+        Assertions.assertThat(first.isOpen()).isFalse();
+        Assertions.assertThat(RelayStateJournal.getInstance().getState("journal-1")).isEqualTo(0);
+    }
+
+    @Test
+    public void testRelayIsRestoredWhenLockOwnerCrashed() throws IOException {
+
+        Assume.assumeTrue(new File("/proc/self").isDirectory());
+
+        JournalDriver driver = new JournalDriver();
+        driver.devices.add(new NamedDevice("journal-crashed"));
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+
+        Relay.getDefault().open();
+
+        NamedDevice device = new NamedDevice("journal-crashed");
+        restart(device);
+
+        // process which crashed still holds the lock whose lease has not expired yet
+
+        RelayLockTest.claimAs("journal-crashed", Long.MAX_VALUE, System.currentTimeMillis() + 60000);
+
+        Relay relay = Relay.getDefault();
+
+        Assertions.assertThat(relay.isOpen()).isTrue();
+        Assertions.assertThat(relay.isLockedByOtherProcess()).isFalse();
+        Assertions.assertThat(device.restores).isEqualTo(1);
+    }
+
+    /**
+     * Overwrite part of the closed journal, header is 16 bytes and slot is 128 bytes.
+     */
+    private void corrupt(long position, int value, boolean integer) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            if (integer) {
+                raf.writeInt(value);
+            } else {
+                raf.writeShort(value);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testJournalWithInvalidNameIsCreatedAgain() throws IOException {
+
+        Relay.resetDriver();
+        Relay.setDriver(new JournalDriver());
+
+        RelayStateJournal journal = RelayStateJournal.getInstance();
+        journal.record("journal-1", true);
+        journal.record("journal-2", true);
+        journal.close();
+
+        corrupt(16 + 128, Short.MAX_VALUE, false);
+        journal.open(file, 16);
+
+        Assertions.assertThat(journal.getState("journal-1")).isEqualTo(-1);
+        Assertions.assertThat(journal.getState("journal-2")).isEqualTo(-1);
+
+        journal.record("journal-3", true);
+
+        Assertions.assertThat(journal.getState("journal-3")).isEqualTo(1);
+    }
+
+    @Test
+    public void testJournalWithInvalidUsedSlotsIsCreatedAgain() throws IOException {
+
+        Relay.resetDriver();
+        Relay.setDriver(new JournalDriver());
+
+        RelayStateJournal journal = RelayStateJournal.getInstance();
+        journal.record("journal-1", true);
+        journal.close();
+
+        corrupt(12, 17, true);
+        journal.open(file, 16);
+
+        Assertions.assertThat(journal.getState("journal-1")).isEqualTo(-1);
+
+        corrupt(12, -1, true);
+        journal.open(file, 16);
+        journal.record("journal-2", true);
+
+        Assertions.assertThat(journal.getState("journal-2")).isEqualTo(1);
+    }
+
+    @Test
+    public void testRestoredRelayIsReconciled() throws InterruptedException {
+
+        JournalDriver driver = new JournalDriver();
+        driver.devices.add(new ReadableDevice("journal-readable"));
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+
+        Relay.getDefault().open();
+
+        // relay has been switched off while application was not running
+
+        ReadableDevice device = new ReadableDevice("journal-readable");
+        restart(device);
+
+        Relay relay = Relay.getDefault();
+
+        // relay is marked closed before the journal is updated, so wait for both
+
+        RelayStateJournal journal = RelayStateJournal.getInstance();
+        for (int i = 0; i < 100 && (relay.isOpen() || journal.getState("journal-readable") != 0); i++) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertThat(relay.isOpen()).isFalse();
+        Assertions.assertThat(device.isOpen()).isFalse();
+        Assertions.assertThat(RelayStateJournal.getInstance().getState("journal-readable")).isEqualTo(0);
+    }
+}
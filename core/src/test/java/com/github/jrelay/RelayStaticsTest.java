@@ -1,6 +1,7 @@
 package com.github.jrelay;
 
 import com.github.jrelay.dummy.RelayDummyDriver;
+import com.github.jrelay.test.DummyDevice;
 import com.github.jrelay.test.DummyDriver;
 import com.github.jrelay.test.DummyDriver2;
 import com.github.jrelay.test.DummyDriver3;
@@ -9,7 +10,9 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by nightingale on 30.04.16.
@@ -95,6 +98,39 @@ public class RelayStaticsTest {
         System.out.println(Thread.currentThread().getName() + ": test_close() end");
     }
 
+    @Test
+    public void testOpenCloseAsync() throws Exception {
+
+        Relay relay = Relay.getDefault();
+
+        Assert.assertTrue(relay.openAsync().get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(relay.isOpen());
+        Assert.assertTrue(relay.getDevice().isOpen());
+
+        Assert.assertTrue(relay.closeAsync().get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(relay.isOpen());
+        Assert.assertFalse(relay.getDevice().isOpen());
+    }
+
+    @Test
+    public void testShutdownCoordinatorDisposesRelaysInParallel() throws Exception {
+
+        Relay.setDriver(new RelayDummyDriver(3));
+
+        List<Relay> relays = Relay.getRelays();
+        for (Relay relay : relays) {
+            relay.getLock().disable();
+            relay.open();
+        }
+
+        Assert.assertTrue(RelayShutdownCoordinator.getInstance().dispose(relays));
+
+        for (Relay relay : relays) {
+            Assert.assertFalse(relay.isOpen());
+            Assert.assertFalse(relay.getDevice().isOpen());
+        }
+    }
+
     @Test
     public void test_setDriver() throws InstantiationException {
 
@@ -136,4 +172,146 @@ public class RelayStaticsTest {
         Relay.getRelayByName(null);
     }
 
+    @Test
+    public void testGetRelayByHandle() throws InstantiationException {
+        Relay.setDriver(new DummyDriver());
+
+        List<Relay> relays = Relay.getRelays();
+        for (int i = 0; i < relays.size(); i++) {
+            Relay relay = relays.get(i);
+            Assert.assertEquals(i, relay.getHandle());
+            Assert.assertSame(relay, Relay.getRelayByHandle(relay.getHandle()));
+            Assert.assertSame(relay, Relay.getRelayByName(relay.getName()));
+        }
+
+        Assert.assertNull(Relay.getRelayByHandle(relays.size()));
+        Assert.assertNull(Relay.getRelayByHandle(-1));
+
+        Assert.assertTrue(Relay.openByHandle(1));
+        Assert.assertTrue(relays.get(1).isOpen());
+        Assert.assertTrue(Relay.getStateByHandle(1, 0, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(Relay.closeByHandle(1));
+        Assert.assertFalse(relays.get(1).isOpen());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOpenByUnknownHandle() throws InstantiationException {
+        Relay.setDriver(new DummyDriver());
+        Relay.openByHandle(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testGetRelaysSnapshot() {
+
+        final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+        devices.add(new DummyDevice());
+        devices.add(new DummyDevice());
+
+        Relay.setDriver(new RelayDriver() {
+
+            @Override
+            public List<RelayDevice> getDevices() {
+                return devices;
+            }
+
+            @Override
+            public boolean isThreadSafe() {
+                return false;
+            }
+        });
+
+        Assert.assertEquals(0, Relay.getRelaysVersion());
+
+        List<Relay> relays = Relay.getRelays();
+        long version = Relay.getRelaysVersion();
+
+        Assert.assertTrue(version > 0);
+        Assert.assertSame(relays, Relay.getRelays());
+        Assert.assertEquals(version, Relay.getRelaysVersion());
+
+        // snapshot is replaced, not modified, when relays are added
+
+        devices.add(new DummyDevice());
+        Relay.getDiscoveryService().scan();
+
+        Assert.assertTrue(Relay.getRelaysVersion() > version);
+        Assert.assertEquals(2, relays.size());
+        Assert.assertEquals(3, Relay.getRelays().size());
+    }
+
+    @Test
+    public void testScanReportsOnlyChanges() {
+
+        final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+        devices.add(new DummyDevice());
+        devices.add(new DummyDevice());
+        devices.add(new DummyDevice());
+
+        Relay.setDriver(new RelayDriver() {
+
+            @Override
+            public List<RelayDevice> getDevices() {
+                return devices;
+            }
+
+            @Override
+            public boolean isThreadSafe() {
+                return false;
+            }
+        });
+
+        final List<String> found = new ArrayList<String>();
+        final List<String> gone = new ArrayList<String>();
+
+        RelayDiscoveryListener listener = new RelayDiscoveryListener() {
+
+            @Override
+            public void relayFound(RelayDiscoveryEvent event) {
+                found.add(event.getRelay().getName());
+            }
+
+            @Override
+            public void relayGone(RelayDiscoveryEvent event) {
+                gone.add(event.getRelay().getName());
+            }
+        };
+
+        List<Relay> relays = Relay.getRelays();
+        long version = Relay.getRelaysVersion();
+
+        Relay.addDiscoveryListener(listener);
+
+        try {
+
+            // nothing has changed, relays are not republished
+
+            Relay.getDiscoveryService().scan();
+
+            Assert.assertSame(relays, Relay.getRelays());
+            Assert.assertEquals(version, Relay.getRelaysVersion());
+            Assert.assertTrue(found.isEmpty());
+            Assert.assertTrue(gone.isEmpty());
+
+            // one device replaced by other, both are reported by single scan
+
+            RelayDevice removed = devices.remove(1);
+            RelayDevice added = new DummyDevice();
+            devices.add(added);
+
+            Relay.getDiscoveryService().scan();
+
+            Assert.assertEquals(version + 1, Relay.getRelaysVersion());
+            Assert.assertEquals(3, Relay.getRelays().size());
+            Assert.assertEquals(1, found.size());
+            Assert.assertEquals(added.getName(), found.get(0));
+            Assert.assertEquals(1, gone.size());
+            Assert.assertEquals(removed.getName(), gone.get(0));
+            Assert.assertNull(Relay.getRelayByName(removed.getName()));
+            Assert.assertNotNull(Relay.getRelayByName(added.getName()));
+
+        } finally {
+            Relay.removeDiscoveryListener(listener);
+        }
+    }
+
 }
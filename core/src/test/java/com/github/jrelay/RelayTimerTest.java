@@ -0,0 +1,211 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RelayTimerTest {
+
+    /**
+     * Device timing its pulses by itself.
+     */
+    private static class PulsingDevice extends DummyDevice implements RelayDevice.Pulsable {
+
+        private final AtomicInteger pulses = new AtomicInteger(0);
+        private final AtomicInteger opens = new AtomicInteger(0);
+        private final AtomicInteger closes = new AtomicInteger(0);
+        private volatile long duration = 50;
+        private volatile long latency = 0;
+
+        @Override
+        public void open() {
+            opens.incrementAndGet();
+            super.open();
+        }
+
+        @Override
+        public void close() {
+            closes.incrementAndGet();
+            super.close();
+        }
+
+        @Override
+        public long getPulseDuration(TimeUnit unit) {
+            return unit.convert(duration, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void pulse() {
+            pulses.incrementAndGet();
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class PulsingDriver implements RelayDriver {
+
+        private final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    private PulsingDevice device = null;
+
+    @Before
+    public void prepare() {
+        PulsingDriver driver = new PulsingDriver();
+        driver.devices.add(device = new PulsingDevice());
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+    }
+
+    @After
+    public void cleanup() {
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+    }
+
+    @Test
+    public void testManyActionsShareSingleThread() throws InterruptedException {
+
+        final int n = 10000;
+        final CountDownLatch latch = new CountDownLatch(n);
+        final AtomicLong early = new AtomicLong(0);
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        RelayTimer timer = RelayTimer.getInstance();
+
+        for (int i = 0; i < n; i++) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(i % 200);
+            timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (System.nanoTime() < deadline) {
+                        early.incrementAndGet();
+                    }
+                    synchronized (threads) {
+                        if (!threads.contains(Thread.currentThread())) {
+                            threads.add(Thread.currentThread());
+                        }
+                    }
+                    latch.countDown();
+                }
+            }, i % 200, TimeUnit.MILLISECONDS);
+        }
+
+        Assertions.assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(early.get()).isEqualTo(0);
+        Assertions.assertThat(threads).hasSize(1);
+        Assertions.assertThat(threads.get(0)).isInstanceOf(RelayTimer.TimerThread.class);
+        Assertions.assertThat(timer.getPending()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCancelledActionIsNotExecuted() throws InterruptedException {
+
+        final AtomicInteger executed = new AtomicInteger(0);
+        Runnable action = new Runnable() {
+
+            @Override
+            public void run() {
+                executed.incrementAndGet();
+            }
+        };
+
+        RelayTimer timer = RelayTimer.getInstance();
+        RelayTimer.Timeout cancelled = timer.schedule(action, 50, TimeUnit.MILLISECONDS);
+        timer.schedule(action, 50, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+
+        Thread.sleep(300);
+
+        Assertions.assertThat(executed.get()).isEqualTo(1);
+        Assertions.assertThat(timer.getPending()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPulseUsesHardwareMomentarySwitching() throws Exception {
+
+        Relay relay = Relay.getDefault();
+
+        RelayFuture<Boolean> pulse = relay.pulse(50, TimeUnit.MILLISECONDS);
+        Assertions.assertThat(pulse.get(5, TimeUnit.SECONDS)).isTrue();
+
+        Assertions.assertThat(device.pulses.get()).isEqualTo(1);
+        Assertions.assertThat(device.opens.get()).isEqualTo(0);
+        Assertions.assertThat(device.closes.get()).isEqualTo(0);
+        Assertions.assertThat(relay.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testHardwarePulseEndsWithDeviceWindow() throws Exception {
+
+        device.duration = 400;
+        device.latency = 400;
+
+        Relay relay = Relay.getDefault();
+
+        long start = System.nanoTime();
+        RelayFuture<Boolean> pulse = relay.pulse(400, TimeUnit.MILLISECONDS);
+        Assertions.assertThat(pulse.get(5, TimeUnit.SECONDS)).isTrue();
+        long elapsed = System.nanoTime() - start;
+
+        // device acknowledges the pulse only when it's over, relay must not stay open for
+        // another pulse duration after that
+
+        Assertions.assertThat(elapsed).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(400));
+        Assertions.assertThat(elapsed).isLessThan(TimeUnit.MILLISECONDS.toNanos(700));
+        Assertions.assertThat(device.pulses.get()).isEqualTo(1);
+        Assertions.assertThat(relay.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testPulseFallsBackToTimer() throws Exception {
+
+        Relay relay = Relay.getDefault();
+
+        long start = System.nanoTime();
+        RelayFuture<Boolean> pulse = relay.pulse(100, TimeUnit.MILLISECONDS);
+        Assertions.assertThat(pulse.get(5, TimeUnit.SECONDS)).isTrue();
+
+        Assertions.assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+        Assertions.assertThat(device.pulses.get()).isEqualTo(0);
+        Assertions.assertThat(device.opens.get()).isEqualTo(1);
+        Assertions.assertThat(relay.isOpen()).isFalse();
+        Assertions.assertThat(device.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testOpenFor() throws Exception {
+
+        Relay relay = Relay.getDefault();
+
+        RelayFuture<Boolean> closed = relay.openFor(100, TimeUnit.MILLISECONDS);
+        Assertions.assertThat(relay.isOpen()).isTrue();
+        Assertions.assertThat(closed.get(5, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(relay.isOpen()).isFalse();
+    }
+}
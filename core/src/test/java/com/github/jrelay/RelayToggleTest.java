@@ -0,0 +1,169 @@
+package com.github.jrelay;
+
+import com.github.jrelay.test.DummyDevice;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RelayToggleTest {
+
+    /**
+     * Device which flips its state with single request.
+     */
+    private static class ToggleDevice extends DummyDevice implements RelayDevice.Toggleable {
+
+        private final AtomicInteger toggles = new AtomicInteger(0);
+
+        @Override
+        public boolean toggle() {
+            toggles.incrementAndGet();
+            if (isOpen()) {
+                close();
+            } else {
+                open();
+            }
+            return isOpen();
+        }
+    }
+
+    private static class ToggleDriver implements RelayDriver {
+
+        private final List<RelayDevice> devices = new ArrayList<RelayDevice>();
+
+        @Override
+        public List<RelayDevice> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    private ToggleDevice toggleable = null;
+    private DummyDevice plain = null;
+
+    @Before
+    public void prepare() {
+        ToggleDriver driver = new ToggleDriver();
+        driver.devices.add(toggleable = new ToggleDevice());
+        driver.devices.add(plain = new DummyDevice());
+        Relay.resetDriver();
+        Relay.setDriver(driver);
+    }
+
+    @After
+    public void cleanup() {
+        for (Relay relay : Relay.getRelays()) {
+            relay.close();
+        }
+        Relay.resetDriver();
+    }
+
+    @Test
+    public void testNativeToggle() {
+
+        Relay relay = Relay.getRelays().get(0);
+
+        Assertions.assertThat(relay.toggle()).isTrue();
+        Assertions.assertThat(relay.isOpen()).isTrue();
+        Assertions.assertThat(relay.toggle()).isFalse();
+        Assertions.assertThat(relay.isOpen()).isFalse();
+        Assertions.assertThat(toggleable.toggles.get()).isEqualTo(2);
+
+        // device switched manually, relay state follows the device
+
+        toggleable.open();
+
+        Assertions.assertThat(relay.toggle()).isFalse();
+        Assertions.assertThat(relay.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testToggleOffDoesNotLockRelayTakenOverByOtherProcess() throws Exception {
+
+        Relay relay = Relay.getRelays().get(0);
+        RelayLock lock = relay.getLock();
+
+        Assertions.assertThat(relay.toggle()).isTrue();
+
+        // other process takes the relay over while it's open
+
+        RelayLockTest.claimAs(relay.getName(), Long.MAX_VALUE, 42L, System.currentTimeMillis() + 60000);
+
+        try {
+
+            lock.heartbeat();
+
+            // toggle off must be rejected just like close, and not by trying to lock the relay
+
+            try {
+                relay.toggle();
+                Assertions.fail("Toggle of relay taken over by other process must fail");
+            } catch (RelayLockException e) {
+                Assertions.assertThat(e.getMessage()).contains("taken over");
+            }
+
+            Assertions.assertThat(lock.isHeld()).isFalse();
+            Assertions.assertThat(RelayLockTable.getInstance().getForeignOwner(relay.getName())).isEqualTo(Long.MAX_VALUE);
+            Assertions.assertThat(toggleable.toggles.get()).isEqualTo(1);
+
+            try {
+                relay.close();
+                Assertions.fail("Close of relay taken over by other process must fail");
+            } catch (RelayException e) {
+                Assertions.assertThat(e.getCause()).isInstanceOf(RelayLockException.class);
+                Assertions.assertThat(e.getCause().getMessage()).contains("taken over");
+            }
+
+        } finally {
+
+            // other process is gone, relay can be closed again
+
+            RelayLockTest.claimAs(relay.getName(), Long.MAX_VALUE, 42L, System.currentTimeMillis() - 1);
+            lock.unlock();
+        }
+
+        Assertions.assertThat(relay.toggle()).isFalse();
+        Assertions.assertThat(relay.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testConcurrentToggles() throws InterruptedException {
+
+        final Relay relay = Relay.getRelays().get(1);
+        final int threads = 7;
+        final int toggles = 101;
+        final CountDownLatch latch = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < toggles; j++) {
+                            relay.toggle();
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        latch.await();
+
+        // odd number of toggles in total, relay must end up open and agree with the device
+
+        Assertions.assertThat(plain.isOpen()).isTrue();
+        Assertions.assertThat(relay.isOpen()).isTrue();
+    }
+}
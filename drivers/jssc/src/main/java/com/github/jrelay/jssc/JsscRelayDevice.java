@@ -10,13 +10,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import jssc.*;
 
 /**
  * Created by nightingale on 04.05.16.
  */
-public class JsscRelayDevice implements RelayDevice {
+public class JsscRelayDevice implements RelayDevice, RelayDevice.StateReadable, RelayDevice.Toggleable,
+        RelayDevice.Pulsable, RelayDevice.Restorable, RelayDevice.Configurable {
 
     /**
      * Logger.
@@ -24,17 +27,30 @@ public class JsscRelayDevice implements RelayDevice {
     private static final Logger LOG = LoggerFactory.getLogger(JsscRelayDevice.class);
 
     private static final int READ_TIMEOUT = 300;
+
+    /**
+     * Parameter with duration of the momentary switching (ms). Duration is fixed by the board
+     * firmware and differs between boards, so the momentary command is only used when it's set.
+     */
+    public static final String PARAM_MOMENTARY_DURATION = "momentaryDuration";
     private final byte channel;
     private final SerialPort serialPort;
+    private final String name;
 
     private AtomicBoolean open = new AtomicBoolean(false);
     private AtomicBoolean disposed = new AtomicBoolean(false);
     private AtomicBoolean initialized = new AtomicBoolean(false);
 
+    private volatile long momentaryDuration = 0;
+
 
     public JsscRelayDevice(byte channel, SerialPort serialPort) {
         this.channel = channel;
         this.serialPort = serialPort;
+        this.name = new StringBuilder(serialPort.getPortName())
+                .append(" > channel: ")
+                .append(channel)
+                .toString();
     }
 
     private synchronized void init() {
@@ -59,10 +75,7 @@ public class JsscRelayDevice implements RelayDevice {
      */
     @Override
     public String getName() {
-        StringBuilder nameBuilder = new StringBuilder(serialPort.getPortName())
-                .append(" > channel: ")
-                .append(channel);
-        return nameBuilder.toString();
+        return name;
     }
 
     /**
@@ -74,7 +87,7 @@ public class JsscRelayDevice implements RelayDevice {
             return;
         }
 
-        LOG.debug(String.format("Opening UsbHidRelay device %s", getName()));
+        LOG.debug("Opening UsbHidRelay device {}", name);
 
         init();
 
@@ -90,7 +103,7 @@ public class JsscRelayDevice implements RelayDevice {
                     throw new RuntimeException("Device response error " + this.getName());
                 }
             } catch (SerialPortException | SerialPortTimeoutException ex) {
-                LOG.error(String.format("Error while device opening %s", getName()), ex);
+                LOG.error("Error while device opening {}", name, ex);
                 open.compareAndSet(true, false);
             }
         }
@@ -106,7 +119,7 @@ public class JsscRelayDevice implements RelayDevice {
             return;
         }
 
-        LOG.debug(String.format("Closing UsbHidRelay device channel %s", getName()));
+        LOG.debug("Closing UsbHidRelay device channel {}", name);
 
         synchronized(serialPort) {
             try {
@@ -120,7 +133,7 @@ public class JsscRelayDevice implements RelayDevice {
                     throw new RuntimeException("Device response error " + this.getName());
                 }
             } catch (SerialPortException | SerialPortTimeoutException ex) {
-                LOG.error(String.format("Error while device opening %s", getName()), ex);
+                LOG.error("Error while device opening {}", name, ex);
                 open.compareAndSet(true, false);
             }
         }
@@ -135,7 +148,7 @@ public class JsscRelayDevice implements RelayDevice {
             return;
         }
 
-        LOG.debug(String.format("Disposing JsscRelay device %s", getName()));
+        LOG.debug("Disposing JsscRelay device {}", name);
 
         close();
 
@@ -143,7 +156,7 @@ public class JsscRelayDevice implements RelayDevice {
             try {
                 serialPort.closePort();
             } catch (SerialPortException ex) {
-                LOG.debug(String.format("Closing JsscRelay device channel %s", getName()), ex);
+                LOG.debug("Closing JsscRelay device channel {}", name, ex);
             }
         }
     }
@@ -158,6 +171,132 @@ public class JsscRelayDevice implements RelayDevice {
         return open.get();
     }
 
+    @Override
+    public void restore(boolean open) {
+        this.open.set(open);
+    }
+
+    /**
+     * Channels of the same board share one serial port.
+     *
+     * @return Serial port name
+     */
+    @Override
+    public Object getPhysicalKey() {
+        return serialPort.getPortName();
+    }
+
+    /**
+     * Read state of all channels of the board with single status frame.
+     *
+     * @return Bit mask of open channels
+     */
+    @Override
+    public long readState() {
+
+        init();
+
+        synchronized(serialPort) {
+            try {
+                byte[] cmd = JsscRelayCommandBuilder.INSTANCE_4CH.getControlCommand(ControlCommand.READING_STATUS, channel);
+                serialPort.writeBytes(cmd);
+
+                byte[] actualResp = serialPort.readBytes(8, READ_TIMEOUT);
+
+                return JsscRelayCommandBuilder.INSTANCE_4CH.getState(actualResp);
+            } catch (SerialPortException | SerialPortTimeoutException ex) {
+                throw new RuntimeException("Cannot read state of " + serialPort.getPortName(), ex);
+            } catch (IllegalArgumentException ex) {
+                throw new RuntimeException("Device response error " + serialPort.getPortName(), ex);
+            }
+        }
+    }
+
+    @Override
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * Toggle channel with single command. Board answers with the same frame as to the open or
+     * close command, so the new state is taken from the response.
+     *
+     * @return True if channel is open after toggle, false otherwise
+     */
+    @Override
+    public boolean toggle() {
+
+        LOG.debug("Toggling JsscRelay device {}", name);
+
+        init();
+
+        synchronized(serialPort) {
+            try {
+                byte[] cmd = JsscRelayCommandBuilder.INSTANCE_4CH.getControlCommand(ControlCommand.TOGGLE, channel);
+                serialPort.writeBytes(cmd);
+
+                byte[] actualResp = serialPort.readBytes(8, READ_TIMEOUT);
+
+                if (Arrays.equals(actualResp, JsscRelayCommandBuilder.INSTANCE_4CH.getReturnCommand(CommandReturn.OPEN, channel))) {
+                    open.set(true);
+                } else if (Arrays.equals(actualResp, JsscRelayCommandBuilder.INSTANCE_4CH.getReturnCommand(CommandReturn.CLOSE, channel))) {
+                    open.set(false);
+                } else {
+                    throw new RuntimeException("Device response error " + this.getName());
+                }
+
+                return open.get();
+            } catch (SerialPortException | SerialPortTimeoutException ex) {
+                throw new RuntimeException("Cannot toggle " + this.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Set device parameters, the only supported one is {@link #PARAM_MOMENTARY_DURATION}.
+     *
+     * @param parameters the parameters
+     */
+    @Override
+    public void setParameters(Map<String, ?> parameters) {
+        Object duration = parameters.get(PARAM_MOMENTARY_DURATION);
+        if (duration instanceof Number) {
+            momentaryDuration = ((Number) duration).longValue();
+        }
+    }
+
+    @Override
+    public long getPulseDuration(TimeUnit unit) {
+        return unit.convert(momentaryDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Switch channel on with momentary command, board switches it off by itself.
+     */
+    @Override
+    public void pulse() {
+
+        LOG.debug("Pulsing JsscRelay device {}", name);
+
+        init();
+
+        synchronized(serialPort) {
+            try {
+                byte[] cmd = JsscRelayCommandBuilder.INSTANCE_4CH.getControlCommand(ControlCommand.MOMENTARY, channel);
+                serialPort.writeBytes(cmd);
+
+                byte[] actualResp = serialPort.readBytes(8, READ_TIMEOUT);
+
+                if (actualResp[0] != JsscRelayCommandBuilder.READING_STATE_RESPONSE[0]
+                        || actualResp[1] != JsscRelayCommandBuilder.READING_STATE_RESPONSE[1]) {
+                    throw new RuntimeException("Device response error " + this.getName());
+                }
+            } catch (SerialPortException | SerialPortTimeoutException ex) {
+                throw new RuntimeException("Cannot pulse " + this.getName(), ex);
+            }
+        }
+    }
+
     public SerialPort getSerialPort(){
         return serialPort;
     }
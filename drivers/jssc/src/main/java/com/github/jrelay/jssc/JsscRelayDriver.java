@@ -4,6 +4,7 @@ import com.github.jrelay.RelayDevice;
 import com.github.jrelay.RelayDiscoverySupport;
 import com.github.jrelay.RelayDriver;
 import com.github.jrelay.RelayExceptionHandler;
+import com.github.jrelay.RelayHotplugSupport;
 import com.github.jrelay.jssc.impl.DeviceDiscovery;
 import com.github.jrelay.jssc.impl.Relay2ChannelsDeviceDiscovery;
 import com.github.jrelay.jssc.impl.Relay4ChannelsDeviceDiscovery;
@@ -13,17 +14,20 @@ import jssc.SerialPortList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * Created by nightingale on 04.05.16.
  */
-public class JsscRelayDriver implements RelayDriver, RelayDiscoverySupport {
+public class JsscRelayDriver implements RelayDriver, RelayDiscoverySupport, RelayHotplugSupport {
 
     /**
      * Logger.
@@ -35,6 +39,16 @@ public class JsscRelayDriver implements RelayDriver, RelayDiscoverySupport {
     private static final DeviceDiscovery<SerialPort> relay4ChannelsDeviceDiscovery = new Relay4ChannelsDeviceDiscovery();
 
 
+    /**
+     * Serial port nodes on Linux, the same which are listed by {@link SerialPortList}.
+     */
+    private static final Pattern PORT_PATTERN = Pattern.compile("(ttyS|ttyUSB|ttyACM|ttyAMA|rfcomm)[0-9]{1,3}");
+
+    /**
+     * Directory of serial port nodes.
+     */
+    private static final File DEV = new File("/dev");
+
     /**
      * Thread factory.
      *
@@ -110,6 +124,11 @@ public class JsscRelayDriver implements RelayDriver, RelayDiscoverySupport {
      */
     private volatile boolean scanning = false;
 
+    /**
+     * Are serial ports re-probed only when their nodes are created or deleted.
+     */
+    private volatile boolean hotplug = false;
+
     /**
      * Execution service.
      */
@@ -229,6 +248,84 @@ public class JsscRelayDriver implements RelayDriver, RelayDiscoverySupport {
             this.scanning = scanning;
         }
 
+        @Override
+        public boolean isHotplugPossible() {
+            return hotplug && DEV.isDirectory() && System.getProperty("os.name", "").startsWith("Linux");
+        }
+
+        /**
+         * Set hotplug discovery possible. When enabled on Linux, only serial ports whose nodes
+         * have been created or deleted in /dev are probed, instead of probing all ports once per
+         * scan interval. Links in /dev/serial/by-id are not watched since they always point to
+         * nodes in /dev.
+         *
+         * @param hotplug true to enable hotplug discovery
+         */
+        public void setHotplugPossible(boolean hotplug) {
+            this.hotplug = hotplug;
+        }
+
+        @Override
+        public List<File> getHotplugDirectories() {
+            return Arrays.asList(DEV);
+        }
+
+        @Override
+        public boolean isHotplugNode(File node) {
+            return PORT_PATTERN.matcher(node.getName()).matches();
+        }
+
+        @Override
+        public File getHotplugNode(RelayDevice device) {
+            if (device instanceof JsscRelayDevice) {
+                return new File(((JsscRelayDevice) device).getSerialPort().getPortName());
+            }
+            return null;
+        }
+
+        @Override
+        public List<RelayDevice> getDevices(File node) {
+
+            if (!node.exists()) {
+                return Collections.emptyList();
+            }
+
+            // port is probed in the same way as during full scan, so that port which hangs
+            // cannot block the watcher longer than scan timeout
+
+            SerialPort serialPort = new SerialPort(node.getPath());
+            CountDownLatch latch = new CountDownLatch(1);
+            Future<JsscRelayDevice> future = executor.submit(new DeviceAvailableCheck(new JsscRelayDevice((byte) 0, serialPort), latch));
+
+            JsscRelayDevice device = null;
+            try {
+                if (!latch.await(scanTimeout, TimeUnit.MILLISECONDS)) {
+                    future.cancel(true);
+                    LOG.debug("Serial port {} has not been probed in {} ms", node, scanTimeout);
+                    return Collections.emptyList();
+                }
+                device = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            } catch (CancellationException e) {
+                return Collections.emptyList();
+            } catch (ExecutionException e) {
+                LOG.error(e.getMessage(), e);
+                return Collections.emptyList();
+            }
+
+            if (device == null) {
+                return Collections.emptyList();
+            }
+
+            List<RelayDevice> devices = new ArrayList<RelayDevice>(2);
+            devices.add(device);
+            devices.add(new JsscRelayDevice((byte) 1, serialPort));
+
+            return devices;
+        }
+
         /**
          * @return Scan timeout in milliseconds
          */
@@ -10,6 +10,16 @@ public interface JsscRelayCommandBuilder {
     public byte[] getControlCommand(ControlCommand purpose, int channel);
 
     public byte[] getReturnCommand(CommandReturn response, int channel);
+
+    /**
+     * Parse response to the {@link ControlCommand#READING_STATUS} command.
+     *
+     * @param response the response frame
+     * @return Bit mask of open channels, bit n is set when channel n is open
+     * @throws IllegalArgumentException when response is not valid state frame
+     */
+    public long getState(byte[] response);
+
     public static final JsscRelayCommandBuilder INSTANCE_4CH = new JsscRelayCommandBuilder() {
         @Override
         public byte[] getControlCommand(ControlCommand purpose, int channel) {
@@ -222,6 +232,30 @@ public interface JsscRelayCommandBuilder {
 
             return cmd;
         }
+
+        @Override
+        public long getState(byte[] response) {
+            if (response == null || response.length != 8) {
+                throw new IllegalArgumentException("State response must have 8 bytes");
+            }
+
+            //Frame head
+            if (response[0] != READING_STATE_RESPONSE[0] || response[1] != READING_STATE_RESPONSE[1]) {
+                throw new IllegalArgumentException("Invalid state response head");
+            }
+
+            //checksum
+            int sum = 0;
+            for (int i = 0; i < 7; i++) {
+                sum += response[i] & 0xFF;
+            }
+            if ((byte) sum != response[7]) {
+                throw new IllegalArgumentException("Invalid state response checksum");
+            }
+
+            //State of channels
+            return response[6] & 0x0F;
+        }
     };
 
 }
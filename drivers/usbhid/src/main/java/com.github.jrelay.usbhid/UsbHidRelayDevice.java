@@ -10,7 +10,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 /**
  * Created by nightingale on 01.05.16.
  */
-public class UsbHidRelayDevice implements RelayDevice {
+public class UsbHidRelayDevice implements RelayDevice, RelayDevice.PhysicalDevice {
 
     /**
      * Logger.
@@ -23,6 +23,7 @@ public class UsbHidRelayDevice implements RelayDevice {
 
     private final UsbRelayDeviceInfo deviceInfo;
     private final UsbRelayManager manager;
+    private final String name;
     private int channel;
 
     private UsbRelayDeviceHandler handler = null;
@@ -40,7 +41,7 @@ public class UsbHidRelayDevice implements RelayDevice {
         try {
             this.handler = manager.deviceOpen(deviceInfo.getSerialNumber());
         }catch(UsbRelayException ex){
-            LOG.error(String.format("Error while device opening %s", getName()), ex);
+            LOG.error("Error while device opening {}", name, ex);
         }
     }
 
@@ -48,6 +49,11 @@ public class UsbHidRelayDevice implements RelayDevice {
         this.deviceInfo = deviceInfo;
         this.manager = manager;
         this.channel = channel;
+        this.name = new StringBuilder("USB > ")
+                .append(deviceInfo.getDevicePath())
+                .append(" > channel: ")
+                .append(channel)
+                .toString();
     }
 
     /**
@@ -57,11 +63,7 @@ public class UsbHidRelayDevice implements RelayDevice {
      */
     @Override
     public String getName() {
-        StringBuilder nameBuilder = new StringBuilder("USB > ")
-                .append(deviceInfo.getDevicePath())
-                .append(" > channel: ")
-                .append(channel);
-        return nameBuilder.toString();
+        return name;
     }
 
     /**
@@ -73,7 +75,7 @@ public class UsbHidRelayDevice implements RelayDevice {
             return;
         }
 
-        LOG.debug(String.format("Opening UsbHidRelay device %s", getName()));
+        LOG.debug("Opening UsbHidRelay device {}", name);
 
         init();
 
@@ -82,7 +84,7 @@ public class UsbHidRelayDevice implements RelayDevice {
                 try {
                     manager.openRelayChannel(handler, channel);
                 } catch (UsbRelayException ex) {
-                    LOG.error(String.format("Error while device opening %s", getName()), ex);
+                    LOG.error("Error while device opening {}", name, ex);
                     open.compareAndSet(true, false);
                 }
             }
@@ -99,14 +101,14 @@ public class UsbHidRelayDevice implements RelayDevice {
             return;
         }
 
-        LOG.debug(String.format("Closing UsbHidRelay device channel %s", getName()));
+        LOG.debug("Closing UsbHidRelay device channel {}", name);
 
         synchronized(this) {
             if (handler != null) {
                 try {
                     manager.closeRelayChannel(handler, channel);
                 } catch (UsbRelayException ex) {
-                    LOG.error(String.format("Error while device channel closing %s", getName()), ex);
+                    LOG.error("Error while device channel closing {}", name, ex);
                     open.compareAndSet(false, true);
                 }
             }
@@ -122,7 +124,7 @@ public class UsbHidRelayDevice implements RelayDevice {
             return;
         }
 
-        LOG.debug(String.format("Disposing UsbHidRelay device %s", getName()));
+        LOG.debug("Disposing UsbHidRelay device {}", name);
 
         close();
 
@@ -131,7 +133,7 @@ public class UsbHidRelayDevice implements RelayDevice {
                 try {
                     manager.closeRelay(handler);
                 } catch (UsbRelayException ex) {
-                    LOG.debug(String.format("Closing UsbHidRelay device channel %s", getName()));
+                    LOG.debug("Closing UsbHidRelay device channel {}", name);
                 }
             }
         }
@@ -147,4 +149,14 @@ public class UsbHidRelayDevice implements RelayDevice {
     public boolean isOpen() {
         return open.get();
     }
+
+    /**
+     * Channels of the same board share one USB device handler.
+     *
+     * @return Device serial number
+     */
+    @Override
+    public Object getPhysicalKey() {
+        return deviceInfo.getSerialNumber();
+    }
 }
@@ -1,10 +1,13 @@
 package com.github.jrelay.examples;
 
 import com.github.jrelay.Relay;
+import com.github.jrelay.RelayFuture;
 import com.github.jrelay.jssc.JsscRelayDriver;
 import com.github.jrelay.usbhid.UsbHidRelayDriver;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by nightingale on 05.05.16.
@@ -19,15 +22,14 @@ public class ManyRelaysExample {
     public static void main(String[] args) throws Exception{
         // get all available relays
         List<Relay> relays = Relay.getRelays();
+        List<RelayFuture<Boolean>> pulses = new ArrayList<RelayFuture<Boolean>>();
         for(Relay relay: relays){
-            //open relay
-            relay.open();
-            //wait
-            Thread.sleep(2000l);
-            //relay close
-            relay.close();
-            //wait again..
-            Thread.sleep(2000l);
+            //open relay for 2 seconds, no thread is waiting for the pulse to end
+            pulses.add(relay.pulse(2, TimeUnit.SECONDS));
+        }
+        //wait until all relays are closed again
+        for(RelayFuture<Boolean> pulse: pulses){
+            pulse.await();
         }
     }
 